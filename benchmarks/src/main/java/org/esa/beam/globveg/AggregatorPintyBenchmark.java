@@ -0,0 +1,162 @@
+package org.esa.beam.globveg;
+
+import org.esa.beam.binning.BinContext;
+import org.esa.beam.binning.VariableContext;
+import org.esa.beam.binning.support.ObservationImpl;
+import org.esa.beam.binning.support.VectorImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the full initSpatial to computeOutput lifecycle of the PINTY aggregator for a batch of bins.
+ * The score is the time per bin.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class AggregatorPintyBenchmark {
+
+    private static final int NUM_BINS = 256;
+
+    @Param({"1", "5", "30", "200"})
+    public int obsPerBin;
+
+    @Param({"EXACT", "APPROXIMATE", "MAD"})
+    public String mode;
+
+    private AggregatorPinty aggregator;
+    private ObservationImpl[][] observations;
+    private VectorImpl spatialVector;
+    private VectorImpl temporalVector;
+    private VectorImpl outputVector;
+    private MapBinContext ctx;
+
+    @Setup
+    public void setUp() {
+        final MyVariableContext varCtx = new MyVariableContext("fapar", "valid_fapar");
+        if ("APPROXIMATE".equals(mode)) {
+            aggregator = new AggregatorPinty(varCtx, "fapar", "valid_fapar",
+                                             AggregatorPinty.OutlierFilter.NONE, 0.0f, true, 64, 0.0f, 1.0f);
+        } else if ("MAD".equals(mode)) {
+            aggregator = new AggregatorPinty(varCtx, "fapar", "valid_fapar",
+                                             AggregatorPinty.OutlierFilter.MAD, 3.0f, false, 0, 0.0f, 0.0f);
+        } else {
+            aggregator = new AggregatorPinty(varCtx, "fapar", "valid_fapar");
+        }
+
+        final Random random = new Random(42);
+        observations = new ObservationImpl[NUM_BINS][obsPerBin];
+        for (int bin = 0; bin < NUM_BINS; bin++) {
+            for (int i = 0; i < obsPerBin; i++) {
+                // about 20% of the observations are masked out
+                final float valid = random.nextFloat() < 0.8f ? 1.0f : 0.0f;
+                observations[bin][i] = new ObservationImpl(0.0, 0.0, 4000.0 + i, random.nextFloat(), valid);
+            }
+        }
+        spatialVector = new VectorImpl(new float[2]);
+        temporalVector = new VectorImpl(new float[4]);
+        outputVector = new VectorImpl(new float[4]);
+        ctx = new MapBinContext();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_BINS)
+    public void lifecycle(Blackhole blackhole) {
+        for (int bin = 0; bin < NUM_BINS; bin++) {
+            ctx.clear();
+            aggregator.initTemporal(ctx, temporalVector);
+            for (ObservationImpl observation : observations[bin]) {
+                aggregator.initSpatial(ctx, spatialVector);
+                aggregator.aggregateSpatial(ctx, observation, spatialVector);
+                aggregator.completeSpatial(ctx, 1, spatialVector);
+                aggregator.aggregateTemporal(ctx, spatialVector, 1, temporalVector);
+            }
+            aggregator.completeTemporal(ctx, obsPerBin, temporalVector);
+            aggregator.computeOutput(temporalVector, outputVector);
+            blackhole.consume(outputVector.get(0));
+        }
+    }
+
+    private static class MapBinContext implements BinContext {
+
+        private final Map<String, Object> map = new HashMap<String, Object>();
+
+        void clear() {
+            map.clear();
+        }
+
+        @Override
+        public long getIndex() {
+            return 0;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T get(String name) {
+            return (T) map.get(name);
+        }
+
+        @Override
+        public void put(String name, Object value) {
+            map.put(name, value);
+        }
+    }
+
+    private static class MyVariableContext implements VariableContext {
+
+        private final String[] varNames;
+
+        MyVariableContext(String... varNames) {
+            this.varNames = varNames;
+        }
+
+        @Override
+        public int getVariableCount() {
+            return varNames.length;
+        }
+
+        @Override
+        public String getVariableName(int i) {
+            return varNames[i];
+        }
+
+        @Override
+        public int getVariableIndex(String name) {
+            for (int i = 0; i < varNames.length; i++) {
+                if (varNames[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public String getVariableExpression(int i) {
+            return null;
+        }
+
+        @Override
+        public String getValidMaskExpression() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.esa.beam.globveg;
+
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.globveg.util.Quantizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The array path of GlobVegOp.computeTileStack on synthetic in-memory tiles:
+ * NDVI computation for the tile followed by writing all target rows, quantized to INT16.
+ * Fetching the source tiles from the upstream operators is not part of the measurement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class GlobVegTileBenchmark {
+
+    @Param({"256", "512"})
+    public int tileSize;
+
+    @Param({"0.0", "0.5", "1.0"})
+    public float clearFraction;
+
+    private int[] cloudFree;
+    private int[] validFapar;
+    private int[] validLai;
+    private float[][] refl;
+    private float[] ndviKg;
+    private Quantizer ndviKgQuantizer;
+    private short[] timeRows;
+    private short[] timeData;
+    private byte[] validFaparData;
+    private byte[] validLaiData;
+    private short[] ndviKgData;
+
+    @Setup
+    public void setUp() {
+        final int n = tileSize * tileSize;
+        final Random random = new Random(42);
+        cloudFree = new int[n];
+        validFapar = new int[n];
+        validLai = new int[n];
+        for (int i = 0; i < n; i++) {
+            cloudFree[i] = random.nextFloat() < clearFraction ? 1 : 0;
+            validFapar[i] = random.nextFloat() < 0.9f ? 1 : 0;
+            validLai[i] = random.nextFloat() < 0.9f ? 1 : 0;
+        }
+        refl = new float[7][n];
+        for (float[] band : refl) {
+            for (int i = 0; i < n; i++) {
+                band[i] = 0.01f + 0.5f * random.nextFloat();
+            }
+        }
+        ndviKg = new float[n];
+        ndviKgQuantizer = Quantizer.create(ProductData.TYPE_INT16, -1.0, 1.0);
+        // obs_time of each row, quantized as by GlobVegOp over the time range of the scene
+        final Quantizer timeQuantizer = Quantizer.create(ProductData.TYPE_INT16, 4000.0, 4000.0 + tileSize * 1.0e-5);
+        timeRows = new short[tileSize];
+        for (int j = 0; j < tileSize; j++) {
+            timeRows[j] = (short) timeQuantizer.quantize(4000.0 + j * 1.0e-5);
+        }
+        timeData = new short[n];
+        validFaparData = new byte[n];
+        validLaiData = new byte[n];
+        ndviKgData = new short[n];
+    }
+
+    @Benchmark
+    public short[] computeTile() {
+        GlobVegOp.computeNdviKgValues(0.2744f, 0.0839f, refl[0], refl[1], refl[2], refl[3], refl[4], refl[5], refl[6],
+                                      ndviKg);
+        for (int j = 0; j < tileSize; j++) {
+            final int offset = j * tileSize;
+            Arrays.fill(timeData, offset, offset + tileSize, timeRows[j]);
+            GlobVegOp.computeRow(tileSize, offset, cloudFree, validFapar, validLai, ndviKg,
+                                 validFaparData, offset, validLaiData, offset, ndviKgData, offset, ndviKgQuantizer);
+        }
+        return ndviKgData;
+    }
+}
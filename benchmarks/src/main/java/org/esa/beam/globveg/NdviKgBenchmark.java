@@ -0,0 +1,65 @@
+package org.esa.beam.globveg;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the Kurt Guenther NDVI over large float arrays, per pixel and as array kernel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class NdviKgBenchmark {
+
+    private static final float ALPHA_KG = 0.2744f;
+    private static final float BETA_KG = 0.0839f;
+
+    @Param({"262144", "4194304"})
+    public int numPixels;
+
+    private float[][] refl;
+    private float[] ndviKg;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        refl = new float[7][numPixels];
+        for (float[] band : refl) {
+            for (int i = 0; i < numPixels; i++) {
+                band[i] = 0.01f + 0.5f * random.nextFloat();
+            }
+        }
+        ndviKg = new float[numPixels];
+    }
+
+    @Benchmark
+    public float[] perPixel() {
+        for (int i = 0; i < numPixels; i++) {
+            ndviKg[i] = GlobVegOp.computeNdviKgValue(ALPHA_KG, BETA_KG, refl[0][i], refl[1][i], refl[2][i],
+                                                     refl[3][i], refl[4][i], refl[5][i], refl[6][i]);
+        }
+        return ndviKg;
+    }
+
+    @Benchmark
+    public float[] arrayKernel() {
+        GlobVegOp.computeNdviKgValues(ALPHA_KG, BETA_KG, refl[0], refl[1], refl[2], refl[3], refl[4], refl[5], refl[6],
+                                      ndviKg);
+        return ndviKg;
+    }
+}
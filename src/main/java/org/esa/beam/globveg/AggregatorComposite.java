@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.globveg;
+
+import com.bc.ceres.binding.PropertySet;
+import org.esa.beam.binning.AbstractAggregator;
+import org.esa.beam.binning.Aggregator;
+import org.esa.beam.binning.AggregatorConfig;
+import org.esa.beam.binning.AggregatorDescriptor;
+import org.esa.beam.binning.BinContext;
+import org.esa.beam.binning.Observation;
+import org.esa.beam.binning.VariableContext;
+import org.esa.beam.binning.Vector;
+import org.esa.beam.binning.WritableVector;
+import org.esa.beam.framework.gpf.annotations.Parameter;
+import org.esa.beam.globveg.util.QuickSelect;
+
+import java.util.Arrays;
+
+/**
+ * Temporal compositing aggregators besides PINTY, no spatial aggregation:
+ * maximum value composite (e.g. max-NDVI), median and the observation closest to the median.
+ * <p/>
+ * All composites of the same variable and mask in one binning run share one {@link SharedObservationBuffer}
+ * per bin, so the observations are buffered once. The output features of a composite are
+ * {@code <var>_<suffix>}, {@code <var>_<suffix>_mjd} and {@code <var>_<suffix>_count}.
+ */
+public class AggregatorComposite extends AbstractAggregator {
+
+    /**
+     * The compositing method.
+     */
+    public enum Method {
+        /**
+         * The maximum value, the earliest of equal maxima.
+         */
+        MVC("mvc"),
+        /**
+         * The median value and the median observation time, the mean of the two middle elements for an even count.
+         */
+        MEDIAN("median"),
+        /**
+         * The observation closest to the median, on equal distance the larger value, on equal value the earlier one.
+         */
+        CLOSEST_TO_MEDIAN("cmed");
+
+        private final String suffix;
+
+        private Method(String suffix) {
+            this.suffix = suffix;
+        }
+
+        public String getSuffix() {
+            return suffix;
+        }
+    }
+
+    private final Method method;
+    private final int varIndex;
+    private final int maskIndex;
+    private final String bufferName;
+
+    public AggregatorComposite(VariableContext varCtx, Method method, String varName, String maskName) {
+        super(getDescriptorName(method), createSpatialFeatures(varName, method), createFeatures(varName, method),
+              createFeatures(varName, method));
+        if (varCtx == null) {
+            throw new NullPointerException("varCtx");
+        }
+        if (method == null) {
+            throw new NullPointerException("method");
+        }
+        this.method = method;
+        varIndex = varCtx.getVariableIndex(varName);
+        if (varIndex < 0) {
+            throw new IllegalArgumentException("varIndex < 0");
+        }
+        maskIndex = maskName != null && !maskName.isEmpty() ? varCtx.getVariableIndex(maskName) : -1;
+        // the same for all composites of the variable and mask, so they share the buffer
+        bufferName = "obs.shared." + varName + "." + (maskIndex >= 0 ? maskName : "");
+    }
+
+    private static String getDescriptorName(Method method) {
+        switch (method) {
+            case MVC:
+                return MvcDescriptor.NAME;
+            case MEDIAN:
+                return MedianDescriptor.NAME;
+            default:
+                return ClosestToMedianDescriptor.NAME;
+        }
+    }
+
+    private static String[] createSpatialFeatures(String varName, Method method) {
+        final String prefix = varName + "_" + method.getSuffix();
+        return new String[]{
+                prefix,
+                prefix + "_mjd"
+        };
+    }
+
+    private static String[] createFeatures(String varName, Method method) {
+        final String prefix = varName + "_" + method.getSuffix();
+        return new String[]{
+                prefix,
+                prefix + "_mjd",
+                prefix + "_count"
+        };
+    }
+
+    @Override
+    public void initSpatial(BinContext ctx, WritableVector spatialVector) {
+        spatialVector.set(0, Float.NaN);
+        spatialVector.set(1, Float.NaN);
+    }
+
+    @Override
+    public void aggregateSpatial(BinContext ctx, Observation observationVector, WritableVector spatialVector) {
+        // as for PINTY, there is only one observation per bin cell
+        final float value = observationVector.get(varIndex);
+        final boolean isValid = maskIndex < 0 || observationVector.get(maskIndex) == 1.0f;
+        if (isValid && !Float.isNaN(value)) {
+            spatialVector.set(0, value);
+            spatialVector.set(1, (float) observationVector.getMJD());
+        }
+    }
+
+    @Override
+    public void completeSpatial(BinContext ctx, int numSpatialObs, WritableVector spatialVector) {
+    }
+
+    @Override
+    public void initTemporal(BinContext ctx, WritableVector temporalVector) {
+        SharedObservationBuffer.join(ctx, bufferName);
+    }
+
+    @Override
+    public void aggregateTemporal(BinContext ctx, Vector spatialVector, int numSpatialObs,
+                                  WritableVector temporalVector) {
+        // NaN values are offered too, so that every sharing aggregator offers the same number of observations
+        final SharedObservationBuffer shared = ctx.get(bufferName);
+        shared.offer(spatialVector.get(0), spatialVector.get(1));
+    }
+
+    @Override
+    public void completeTemporal(BinContext ctx, int numTemporalObs, WritableVector temporalVector) {
+        final SharedObservationBuffer shared = ctx.get(bufferName);
+        final ObservationBuffer buffer = shared.getBuffer();
+        // the composites reorder the shared arrays, but values and times stay paired
+        composite(method, buffer.getValues(), buffer.getTimes(), buffer.size(), buffer.getScratch(buffer.size()),
+                  temporalVector);
+        shared.leave(ctx, bufferName);
+    }
+
+    /**
+     * Writes value, time and count of the composite into the three features of the temporal vector.
+     * The result does not depend on the order of the observations.
+     *
+     * @param values  the values, rearranged by this method along with the times
+     * @param scratch a scratch array of at least {@code count} elements
+     */
+    static void composite(Method method, float[] values, float[] times, int count, float[] scratch,
+                          WritableVector temporalVector) {
+        if (count == 0) {
+            temporalVector.set(0, Float.NaN);
+            temporalVector.set(1, Float.NaN);
+            temporalVector.set(2, 0.0f);
+            return;
+        }
+        float value;
+        float time;
+        if (method == Method.MVC) {
+            value = values[0];
+            time = times[0];
+            for (int i = 1; i < count; i++) {
+                if (values[i] > value || (values[i] == value && times[i] < time)) {
+                    value = values[i];
+                    time = times[i];
+                }
+            }
+        } else if (method == Method.MEDIAN) {
+            value = QuickSelect.median(values, times, 0, count);
+            System.arraycopy(times, 0, scratch, 0, count);
+            time = QuickSelect.median(scratch, null, 0, count);
+        } else {
+            final float median = QuickSelect.median(values, times, 0, count);
+            value = values[0];
+            time = times[0];
+            for (int i = 1; i < count; i++) {
+                final float distance = Math.abs(values[i] - median);
+                final float bestDistance = Math.abs(value - median);
+                if (distance < bestDistance ||
+                        (distance == bestDistance && values[i] > value) ||
+                        (values[i] == value && times[i] < time)) {
+                    value = values[i];
+                    time = times[i];
+                }
+            }
+        }
+        temporalVector.set(0, value);
+        temporalVector.set(1, time);
+        temporalVector.set(2, count);
+    }
+
+    @Override
+    public void computeOutput(Vector temporalVector, WritableVector outputVector) {
+        for (int i = 0; i < 3; ++i) {
+            outputVector.set(i, temporalVector.get(i));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AggregatorComposite{" +
+                "method=" + method +
+                ", varIndex=" + varIndex +
+                ", maskIndex=" + maskIndex +
+                ", spatialFeatureNames=" + Arrays.toString(getSpatialFeatureNames()) +
+                ", temporalFeatureNames=" + Arrays.toString(getTemporalFeatureNames()) +
+                ", outputFeatureNames=" + Arrays.toString(getOutputFeatureNames()) +
+                '}';
+    }
+
+    public static class Config extends AggregatorConfig {
+        @Parameter
+        String varName;
+        @Parameter
+        String maskName;
+
+        public Config() {
+            this(MvcDescriptor.NAME);
+        }
+
+        public Config(String type) {
+            super(type);
+        }
+
+        @Override
+        public String[] getVarNames() {
+            if (maskName != null && !maskName.isEmpty()) {
+                return new String[]{varName, maskName};
+            } else {
+                return new String[]{varName};
+            }
+        }
+    }
+
+    private abstract static class AbstractDescriptor implements AggregatorDescriptor {
+
+        private final String name;
+        private final Method method;
+
+        protected AbstractDescriptor(String name, Method method) {
+            this.name = name;
+            this.method = method;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public AggregatorConfig createConfig() {
+            return new Config(name);
+        }
+
+        @Override
+        public Aggregator createAggregator(VariableContext varCtx, AggregatorConfig aggregatorConfig) {
+            PropertySet propertySet = aggregatorConfig.asPropertySet();
+            return new AggregatorComposite(varCtx, method,
+                                           (String) propertySet.getValue("varName"),
+                                           (String) propertySet.getValue("maskName"));
+        }
+    }
+
+    public static class MvcDescriptor extends AbstractDescriptor {
+
+        public static final String NAME = "MVC";
+
+        public MvcDescriptor() {
+            super(NAME, Method.MVC);
+        }
+    }
+
+    public static class MedianDescriptor extends AbstractDescriptor {
+
+        public static final String NAME = "MEDIAN_COMPOSITE";
+
+        public MedianDescriptor() {
+            super(NAME, Method.MEDIAN);
+        }
+    }
+
+    public static class ClosestToMedianDescriptor extends AbstractDescriptor {
+
+        public static final String NAME = "CLOSEST_TO_MEDIAN";
+
+        public ClosestToMedianDescriptor() {
+            super(NAME, Method.CLOSEST_TO_MEDIAN);
+        }
+    }
+}
@@ -26,26 +26,104 @@ import org.esa.beam.binning.Observation;
 import org.esa.beam.binning.VariableContext;
 import org.esa.beam.binning.Vector;
 import org.esa.beam.binning.WritableVector;
-import org.esa.beam.binning.support.GrowableVector;
 import org.esa.beam.framework.gpf.annotations.Parameter;
+import org.esa.beam.globveg.util.QuickSelect;
 import org.esa.beam.util.math.MathUtils;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Arrays;
 
 /**
  * An aggregator that selects the value closest to the mean in temporal aggregation,
  * no spatial aggregation.
- * This aggregator does not implement the two cycles foreseen by Pinty, with the first filtering outliers
- * and the second selecting the value. Frequently there are only a few observations,
+ * Optionally, the two cycles foreseen by Pinty are applied, with the first filtering outliers
+ * (sigma clipping around the mean or a cutoff at a multiple of the median absolute deviation around the median)
+ * and the second selecting the value closest to the mean of the remaining observations. Count and sigma then refer
+ * to the remaining observations. Frequently there are only a few observations, so filtering is off by default.
+ * <p/>
+ * In approximate mode, the observations of a bin are not kept but summarised with fixed memory
+ * by a {@link PintySketch}. Count and sigma are exact, the selected value is at most one sketch bin width
+ * further from the mean than the exact closest-to-mean value.
+ * <p/>
+ * The temporal state of a bin can be written by {@link #writeTemporalState} after aggregating part of the
+ * observations, and merged into the state of the same bin elsewhere by {@link #mergeTemporalState}, so partial
+ * bins can be combined before they are shuffled. The binning framework does not call these methods itself,
+ * they are meant for a driver that combines partial bins, e.g. the combiner of a distributed binning job.
+ * The selection compares distances to the mean with a tolerance of 1E-6, which is not transitive, so with several
+ * values at nearly the same distance the result would depend on their order. The observations are therefore always
+ * sorted by time and value before the selection, and a merged bin is identical to the same bin aggregated by a
+ * single reducer, whatever the order the observations arrived or the partial states were merged in.
  */
 public class AggregatorPinty extends AbstractAggregator {
 
+    // scales the median absolute deviation to sigma for normally distributed values
+    private static final double MAD_TO_SIGMA = 1.4826;
+
     private final int varIndex;
     private final int maskIndex;
-    private final String mlName;
-    private final String tlName;
+    // The per-bin state can only live in the BinContext, which is a map from names to objects: the aggregator
+    // is shared by all bins and the vectors only hold floats. So the buffer is looked up once per call.
+    private final String bufferName;
+    private final ObservationBufferPool<ObservationBuffer> bufferPool;
+    private final OutlierFilter outlierFilter;
+    private final float outlierThreshold;
+    private final boolean approximate;
+    private final int approximateBinCount;
+    private final float approximateMinValue;
+    private final float approximateMaxValue;
+    // null if no metrics are collected
+    private final PintyMetrics metrics;
+
+    /**
+     * The first Pinty cycle, which removes outliers before the selection.
+     */
+    public enum OutlierFilter {
+        /**
+         * No outlier filtering.
+         */
+        NONE,
+        /**
+         * Removes values further than {@code threshold * sigma} from the mean.
+         */
+        SIGMA,
+        /**
+         * Removes values further than {@code threshold * 1.4826 * MAD} from the median.
+         */
+        MAD
+    }
 
     public AggregatorPinty(VariableContext varCtx, String varName, String maskName) {
+        this(varCtx, varName, maskName, OutlierFilter.NONE, 0.0f, false, 0, 0.0f, 0.0f);
+    }
+
+    /**
+     * @param outlierFilter       the outlier filter of the first cycle
+     * @param outlierThreshold    the threshold of the outlier filter, in units of sigma
+     * @param approximate         if true, a bin is summarised by a {@link PintySketch} of fixed size
+     *                            instead of keeping all observations
+     * @param approximateBinCount the number of value bins of the sketch
+     * @param approximateMinValue the lower bound of the expected value range
+     * @param approximateMaxValue the upper bound of the expected value range
+     */
+    public AggregatorPinty(VariableContext varCtx, String varName, String maskName,
+                           OutlierFilter outlierFilter, float outlierThreshold,
+                           boolean approximate, int approximateBinCount,
+                           float approximateMinValue, float approximateMaxValue) {
+        this(varCtx, varName, maskName, outlierFilter, outlierThreshold,
+             approximate, approximateBinCount, approximateMinValue, approximateMaxValue, false);
+    }
+
+    /**
+     * @param collectMetrics if true, the temporal aggregation is recorded in the {@link PintyMetrics}
+     *                       of the variable
+     */
+    public AggregatorPinty(VariableContext varCtx, String varName, String maskName,
+                           OutlierFilter outlierFilter, float outlierThreshold,
+                           boolean approximate, int approximateBinCount,
+                           float approximateMinValue, float approximateMaxValue,
+                           boolean collectMetrics) {
         super(Descriptor.NAME, createSpatialFeatures(varName), createFeatures(varName), createFeatures(varName));
         if (varCtx == null) {
             throw new NullPointerException("varCtx");
@@ -55,8 +133,25 @@ public class AggregatorPinty extends AbstractAggregator {
             throw new IllegalArgumentException("varIndex < 0");
         }
         maskIndex = varCtx.getVariableIndex(maskName);
-        mlName = "ml." + varName;
-        tlName = "tl." + varName;
+        bufferName = "obs." + varName;
+        bufferPool = ObservationBufferPool.create();
+        this.outlierFilter = outlierFilter != null ? outlierFilter : OutlierFilter.NONE;
+        this.outlierThreshold = outlierThreshold;
+        if (this.outlierFilter != OutlierFilter.NONE && !(outlierThreshold > 0.0f)) {
+            throw new IllegalArgumentException("outlierThreshold <= 0");
+        }
+        if (this.outlierFilter != OutlierFilter.NONE && approximate) {
+            throw new IllegalArgumentException("outlier filtering is not supported in approximate mode");
+        }
+        this.approximate = approximate;
+        this.approximateBinCount = approximateBinCount;
+        this.approximateMinValue = approximateMinValue;
+        this.approximateMaxValue = approximateMaxValue;
+        if (approximate) {
+            // fail early on an invalid sketch configuration
+            new PintySketch(approximateBinCount, approximateMinValue, approximateMaxValue);
+        }
+        metrics = collectMetrics ? PintyMetrics.forVariable(varName) : null;
     }
 
     private static String[] createSpatialFeatures(String varName) {
@@ -99,64 +194,201 @@ public class AggregatorPinty extends AbstractAggregator {
 
     @Override
     public void initTemporal(BinContext ctx, WritableVector temporalVector) {
-        ctx.put(mlName, new GrowableVector(256));
-        ctx.put(tlName, new GrowableVector(256));
+        if (approximate) {
+            ctx.put(bufferName, new PintySketch(approximateBinCount, approximateMinValue, approximateMaxValue));
+        } else {
+            ctx.put(bufferName, bufferPool.acquire());
+        }
     }
 
 
     @Override
     public void aggregateTemporal(BinContext ctx, Vector spatialVector, int numSpatialObs, WritableVector temporalVector) {
         // check necessary because we cannot suppress NaN values in spatial binning
-        if (!Float.isNaN(spatialVector.get(0))) {
-            GrowableVector measurementsVec = ctx.get(mlName);
-            GrowableVector timeVec = ctx.get(tlName);
-            measurementsVec.add(spatialVector.get(0));
-            timeVec.add(spatialVector.get(1));
+        final float value = spatialVector.get(0);
+        if (!Float.isNaN(value)) {
+            if (approximate) {
+                final PintySketch sketch = ctx.get(bufferName);
+                sketch.add(value, spatialVector.get(1));
+            } else {
+                final ObservationBuffer buffer = ctx.get(bufferName);
+                buffer.add(value, spatialVector.get(1));
+            }
         }
     }
 
     @Override
     public void completeTemporal(BinContext ctx, int numTemporalObs, WritableVector temporalVector) {
-        GrowableVector measurementsVec = ctx.get(mlName);
-        GrowableVector timeVec = ctx.get(tlName);
-        float[] measurements = measurementsVec.getElements();
-        float[] times = timeVec.getElements();
+        final long startNanos = metrics != null ? System.nanoTime() : 0L;
+        if (approximate) {
+            final int count = completeTemporalApproximate(ctx, temporalVector);
+            if (metrics != null) {
+                metrics.recordBin(count, count, false, System.nanoTime() - startNanos);
+            }
+            return;
+        }
+        final ObservationBuffer buffer = ctx.get(bufferName);
+        // canonical order, independent of the order observations arrived or partial states were merged in
+        buffer.sort();
+        int numMeasurements = buffer.size();
+        if (outlierFilter != OutlierFilter.NONE) {
+            numMeasurements = rejectOutliers(outlierFilter, outlierThreshold, buffer.getValues(), buffer.getTimes(),
+                                             numMeasurements, buffer.getScratch(numMeasurements));
+        }
+        selectClosestToMean(buffer.getValues(), buffer.getTimes(), numMeasurements, temporalVector, 0);
+        if (metrics != null) {
+            metrics.recordBin(buffer.size(), numMeasurements, buffer.isGrown(), System.nanoTime() - startNanos);
+        }
+        ctx.put(bufferName, null);
+        bufferPool.release(buffer);
+    }
 
-        if (measurements.length == 0) {
-            temporalVector.set(0, Float.NaN);
-            temporalVector.set(1, Float.NaN);
-            temporalVector.set(2, 0.0f);
-            temporalVector.set(3, Float.NaN);
+    /**
+     * Writes the partial temporal state of a bin, i.e. the observations aggregated since {@link #initTemporal}.
+     */
+    public void writeTemporalState(BinContext ctx, DataOutput out) throws IOException {
+        out.writeBoolean(approximate);
+        if (approximate) {
+            final PintySketch sketch = ctx.get(bufferName);
+            sketch.writeTo(out);
+        } else {
+            final ObservationBuffer buffer = ctx.get(bufferName);
+            buffer.writeTo(out);
+        }
+    }
+
+    /**
+     * Merges a partial temporal state written by {@link #writeTemporalState} into the temporal state of the bin,
+     * which must have been initialised by {@link #initTemporal}.
+     */
+    public void mergeTemporalState(BinContext ctx, DataInput in) throws IOException {
+        if (in.readBoolean() != approximate) {
+            throw new IOException("cannot merge " + (approximate ? "exact" : "approximate") + " PINTY state into " +
+                                          (approximate ? "approximate" : "exact") + " PINTY state");
+        }
+        if (approximate) {
+            final PintySketch sketch = ctx.get(bufferName);
+            sketch.readFrom(in);
         } else {
-            double sum = 0.0f;
-            double sumSqr = 0.0f;
-            for (float measurement : measurements) {
+            final ObservationBuffer buffer = ctx.get(bufferName);
+            buffer.readFrom(in);
+        }
+    }
+
+    /**
+     * Writes value, time, count and sigma of the observation closest to the mean
+     * into the four features of the temporal vector starting at {@code offset}.
+     */
+    static void selectClosestToMean(float[] measurements, float[] times, int numMeasurements,
+                                    WritableVector temporalVector, int offset) {
+        if (numMeasurements == 0) {
+            temporalVector.set(offset, Float.NaN);
+            temporalVector.set(offset + 1, Float.NaN);
+            temporalVector.set(offset + 2, 0.0f);
+            temporalVector.set(offset + 3, Float.NaN);
+            return;
+        }
+        double sum = 0.0;
+        double sumSqr = 0.0;
+        for (int i = 0; i < numMeasurements; ++i) {
+            final double measurement = measurements[i];
+            sum += measurement;
+            sumSqr += measurement * measurement;
+        }
+        final double meanD = sum / numMeasurements;
+        final double sigmaSqr = sumSqr / numMeasurements - meanD * meanD;
+        final float sigma = sigmaSqr > 0.0 ? (float) Math.sqrt(sigmaSqr) : 0.0f;
+        final float mean = (float) meanD;
+
+        float bestMeasurement = measurements[0];
+        float bestTime = times[0];
+        for (int i = 1; i < numMeasurements; ++i) {
+            final float currentDistance = Math.abs(measurements[i] - mean);
+            final float bestDistance = Math.abs(bestMeasurement - mean);
+            if (currentDistance < (bestDistance - 1E-6f) ||
+                    (MathUtils.equalValues(currentDistance, bestDistance, 1E-6f) && measurements[i] > bestMeasurement) || // same distance, but larger value
+                    (measurements[i] == bestMeasurement && times[i] < bestTime)) // same value, but earlier
+            {
+                bestMeasurement = measurements[i];
+                bestTime = times[i];
+            }
+        }
+
+        temporalVector.set(offset, bestMeasurement);
+        temporalVector.set(offset + 1, bestTime);
+        temporalVector.set(offset + 2, numMeasurements);
+        temporalVector.set(offset + 3, sigma);
+    }
+
+    /**
+     * First Pinty cycle: moves the observations which are not outliers to the front of the arrays,
+     * keeping values and times paired. The order of the observations is not preserved.
+     *
+     * @param scratch a scratch array of at least {@code numMeasurements} elements, needed for the MAD filter
+     * @return the number of remaining observations
+     */
+    static int rejectOutliers(OutlierFilter outlierFilter, float threshold,
+                              float[] measurements, float[] times, int numMeasurements,
+                              float[] scratch) {
+        if (numMeasurements < 3) {
+            return numMeasurements;
+        }
+        final double center;
+        final double maxDistance;
+        if (outlierFilter == OutlierFilter.SIGMA) {
+            double sum = 0.0;
+            double sumSqr = 0.0;
+            for (int i = 0; i < numMeasurements; ++i) {
+                final double measurement = measurements[i];
                 sum += measurement;
                 sumSqr += measurement * measurement;
             }
-            final float mean = (float) (sum / measurements.length);
-            final float sigmaSqr = (float) (sumSqr / measurements.length - mean * mean);
-            final float sigma = sigmaSqr > 0.0f ? (float) Math.sqrt(sigmaSqr) : 0.0f;
-
-            float bestMeasurement = measurements[0];
-            float bestTime = times[0];
-            for (int i = 1; i < measurements.length; ++i) {
-                final float currentDistance = Math.abs(measurements[i] - mean);
-                final float bestDistance = Math.abs(bestMeasurement - mean);
-                if (currentDistance < (bestDistance - 1E-6f) ||
-                        (MathUtils.equalValues(currentDistance, bestDistance, 1E-6f) && measurements[i] > bestMeasurement) || // same distance, but larger value
-                        (measurements[i] == bestMeasurement && times[i] < bestTime)) // same value, but earlier
-                {
-                    bestMeasurement = measurements[i];
-                    bestTime = times[i];
-                }
+            center = sum / numMeasurements;
+            final double sigmaSqr = sumSqr / numMeasurements - center * center;
+            maxDistance = sigmaSqr > 0.0 ? threshold * Math.sqrt(sigmaSqr) : 0.0;
+        } else {
+            center = QuickSelect.median(measurements, times, 0, numMeasurements);
+            final float[] deviations = scratch;
+            for (int i = 0; i < numMeasurements; ++i) {
+                deviations[i] = (float) Math.abs(measurements[i] - center);
             }
+            final float mad = QuickSelect.median(deviations, null, 0, numMeasurements);
+            maxDistance = threshold * MAD_TO_SIGMA * mad;
+        }
+        if (maxDistance <= 0.0) {
+            // no spread, nothing can be an outlier
+            return numMeasurements;
+        }
 
-            temporalVector.set(0, bestMeasurement);
-            temporalVector.set(1, bestTime);
-            temporalVector.set(2, measurements.length);
-            temporalVector.set(3, sigma);
+        int numRemaining = 0;
+        for (int i = 0; i < numMeasurements; ++i) {
+            if (Math.abs(measurements[i] - center) <= maxDistance) {
+                measurements[numRemaining] = measurements[i];
+                times[numRemaining] = times[i];
+                numRemaining++;
+            }
+        }
+        return numRemaining;
+    }
+
+    // returns the number of observations of the bin
+    private int completeTemporalApproximate(BinContext ctx, WritableVector temporalVector) {
+        final PintySketch sketch = ctx.get(bufferName);
+        if (sketch.getCount() == 0) {
+            temporalVector.set(0, Float.NaN);
+            temporalVector.set(1, Float.NaN);
+            temporalVector.set(2, 0.0f);
+            temporalVector.set(3, Float.NaN);
+        } else {
+            final float[] selected = new float[2];
+            sketch.selectClosestToMean(selected);
+            temporalVector.set(0, selected[0]);
+            temporalVector.set(1, selected[1]);
+            temporalVector.set(2, sketch.getCount());
+            temporalVector.set(3, (float) sketch.getSigma());
         }
+        ctx.put(bufferName, null);
+        return sketch.getCount();
     }
 
     @Override
@@ -171,6 +403,8 @@ public class AggregatorPinty extends AbstractAggregator {
         return "AggregatorPinty{" +
                 "varIndex=" + varIndex +
                 ", maskIndex=" + maskIndex +
+                ", outlierFilter=" + outlierFilter +
+                ", approximate=" + approximate +
                 ", spatialFeatureNames=" + Arrays.toString(getSpatialFeatureNames()) +
                 ", temporalFeatureNames=" + Arrays.toString(getTemporalFeatureNames()) +
                 ", outputFeatureNames=" + Arrays.toString(getOutputFeatureNames()) +
@@ -182,6 +416,23 @@ public class AggregatorPinty extends AbstractAggregator {
         String varName;
         @Parameter
         String maskName;
+        @Parameter(defaultValue = "NONE", valueSet = {"NONE", "SIGMA", "MAD"},
+                   description = "Outlier filter of the first Pinty cycle")
+        String outlierFilter;
+        @Parameter(defaultValue = "2.0", description = "Outlier threshold in units of sigma")
+        Float outlierThreshold;
+        @Parameter(defaultValue = "false",
+                   description = "Select from a fixed-size summary per bin instead of keeping all observations")
+        Boolean approximate;
+        @Parameter(defaultValue = "64", description = "Number of value bins used in approximate mode")
+        Integer approximateBinCount;
+        @Parameter(defaultValue = "0.0", description = "Lower bound of the value range used in approximate mode")
+        Float approximateMinValue;
+        @Parameter(defaultValue = "1.0", description = "Upper bound of the value range used in approximate mode")
+        Float approximateMaxValue;
+        @Parameter(defaultValue = "false",
+                   description = "Collect counters and histograms of the temporal aggregation, logged per task")
+        Boolean collectMetrics;
 
         public Config() {
             super(Descriptor.NAME);
@@ -214,9 +465,23 @@ public class AggregatorPinty extends AbstractAggregator {
         @Override
         public Aggregator createAggregator(VariableContext varCtx, AggregatorConfig aggregatorConfig) {
             PropertySet propertySet = aggregatorConfig.asPropertySet();
+            final String outlierFilter = (String) propertySet.getValue("outlierFilter");
+            final Float outlierThreshold = (Float) propertySet.getValue("outlierThreshold");
+            final Boolean approximate = (Boolean) propertySet.getValue("approximate");
+            final Integer approximateBinCount = (Integer) propertySet.getValue("approximateBinCount");
+            final Float approximateMinValue = (Float) propertySet.getValue("approximateMinValue");
+            final Float approximateMaxValue = (Float) propertySet.getValue("approximateMaxValue");
+            final Boolean collectMetrics = (Boolean) propertySet.getValue("collectMetrics");
             return new AggregatorPinty(varCtx,
                                        (String) propertySet.getValue("varName"),
-                                       (String) propertySet.getValue("maskName"));
+                                       (String) propertySet.getValue("maskName"),
+                                       outlierFilter != null ? OutlierFilter.valueOf(outlierFilter) : OutlierFilter.NONE,
+                                       outlierThreshold != null ? outlierThreshold : 2.0f,
+                                       approximate != null && approximate,
+                                       approximateBinCount != null ? approximateBinCount : 64,
+                                       approximateMinValue != null ? approximateMinValue : 0.0f,
+                                       approximateMaxValue != null ? approximateMaxValue : 1.0f,
+                                       collectMetrics != null && collectMetrics);
         }
     }
 }
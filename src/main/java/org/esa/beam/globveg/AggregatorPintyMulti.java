@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.globveg;
+
+import com.bc.ceres.binding.PropertySet;
+import org.esa.beam.binning.AbstractAggregator;
+import org.esa.beam.binning.Aggregator;
+import org.esa.beam.binning.AggregatorConfig;
+import org.esa.beam.binning.AggregatorDescriptor;
+import org.esa.beam.binning.BinContext;
+import org.esa.beam.binning.Observation;
+import org.esa.beam.binning.VariableContext;
+import org.esa.beam.binning.Vector;
+import org.esa.beam.binning.WritableVector;
+import org.esa.beam.framework.gpf.annotations.Parameter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The PINTY aggregator for several variables observed at the same time, e.g. fapar, lai and ndvi_kg.
+ * All variables share one observation time per spatial bin and one list of times per temporal bin,
+ * each variable has its own (optional) mask. The output features per variable are the same as those of
+ * {@link AggregatorPinty}.
+ */
+public class AggregatorPintyMulti extends AbstractAggregator {
+
+    private static final String TIME_FEATURE_NAME = "mjd";
+
+    private final int[] varIndexes;
+    private final int[] maskIndexes;
+    private final String bufferName;
+    private final AggregatorPinty.OutlierFilter outlierFilter;
+    private final float outlierThreshold;
+
+    private final ObservationBufferPool<MultiObservationBuffer> bufferPool;
+
+    public AggregatorPintyMulti(VariableContext varCtx, String[] varNames, String[] maskNames) {
+        this(varCtx, varNames, maskNames, AggregatorPinty.OutlierFilter.NONE, 0.0f);
+    }
+
+    /**
+     * @param maskNames        the mask variable of each variable, may be null or contain null or empty entries
+     * @param outlierFilter    the outlier filter of the first Pinty cycle
+     * @param outlierThreshold the threshold of the outlier filter, in units of sigma
+     */
+    public AggregatorPintyMulti(VariableContext varCtx, String[] varNames, String[] maskNames,
+                                AggregatorPinty.OutlierFilter outlierFilter, float outlierThreshold) {
+        super(Descriptor.NAME, createSpatialFeatures(varNames), createFeatures(varNames), createFeatures(varNames));
+        if (varCtx == null) {
+            throw new NullPointerException("varCtx");
+        }
+        if (maskNames != null && maskNames.length != varNames.length) {
+            throw new IllegalArgumentException("maskNames.length != varNames.length");
+        }
+        varIndexes = new int[varNames.length];
+        maskIndexes = new int[varNames.length];
+        for (int i = 0; i < varNames.length; i++) {
+            varIndexes[i] = varCtx.getVariableIndex(varNames[i]);
+            if (varIndexes[i] < 0) {
+                throw new IllegalArgumentException("varIndex < 0 for " + varNames[i]);
+            }
+            final String maskName = maskNames != null ? maskNames[i] : null;
+            maskIndexes[i] = maskName != null && !maskName.isEmpty() ? varCtx.getVariableIndex(maskName) : -1;
+        }
+        bufferName = "obs.multi." + Arrays.toString(varNames);
+        final int numVariables = varNames.length;
+        bufferPool = new ObservationBufferPool<MultiObservationBuffer>() {
+            @Override
+            protected MultiObservationBuffer createBuffer() {
+                return new MultiObservationBuffer(numVariables, INITIAL_CAPACITY);
+            }
+        };
+        this.outlierFilter = outlierFilter != null ? outlierFilter : AggregatorPinty.OutlierFilter.NONE;
+        this.outlierThreshold = outlierThreshold;
+        if (this.outlierFilter != AggregatorPinty.OutlierFilter.NONE && !(outlierThreshold > 0.0f)) {
+            throw new IllegalArgumentException("outlierThreshold <= 0");
+        }
+    }
+
+    private static String[] createSpatialFeatures(String[] varNames) {
+        final String[] featureNames = Arrays.copyOf(varNames, varNames.length + 1);
+        featureNames[varNames.length] = TIME_FEATURE_NAME;
+        return featureNames;
+    }
+
+    private static String[] createFeatures(String[] varNames) {
+        final List<String> featureNames = new ArrayList<String>(4 * varNames.length);
+        for (String varName : varNames) {
+            featureNames.add(varName);
+            featureNames.add(varName + "_mjd");
+            featureNames.add(varName + "_count");
+            featureNames.add(varName + "_sigma");
+        }
+        return featureNames.toArray(new String[featureNames.size()]);
+    }
+
+    @Override
+    public void initSpatial(BinContext ctx, WritableVector spatialVector) {
+        for (int i = 0; i <= varIndexes.length; i++) {
+            spatialVector.set(i, Float.NaN);
+        }
+    }
+
+    @Override
+    public void aggregateSpatial(BinContext ctx, Observation observationVector, WritableVector spatialVector) {
+        // we assume there is only one observation per bin cell. Else, 'Pinty' is not applicable.
+        boolean anyValid = false;
+        for (int i = 0; i < varIndexes.length; i++) {
+            final float value = observationVector.get(varIndexes[i]);
+            final boolean isValid = maskIndexes[i] < 0 || observationVector.get(maskIndexes[i]) == 1.0f;
+            if (isValid && !Float.isNaN(value)) {
+                spatialVector.set(i, value);
+                anyValid = true;
+            }
+        }
+        if (anyValid) {
+            spatialVector.set(varIndexes.length, (float) observationVector.getMJD());
+        }
+    }
+
+    @Override
+    public void completeSpatial(BinContext ctx, int numSpatialObs, WritableVector spatialVector) {
+    }
+
+    @Override
+    public void initTemporal(BinContext ctx, WritableVector temporalVector) {
+        ctx.put(bufferName, bufferPool.acquire());
+    }
+
+    @Override
+    public void aggregateTemporal(BinContext ctx, Vector spatialVector, int numSpatialObs, WritableVector temporalVector) {
+        // the time is only set if at least one variable is valid
+        final float time = spatialVector.get(varIndexes.length);
+        if (!Float.isNaN(time)) {
+            final MultiObservationBuffer buffer = ctx.get(bufferName);
+            buffer.add(spatialVector, 0, time);
+        }
+    }
+
+    @Override
+    public void completeTemporal(BinContext ctx, int numTemporalObs, WritableVector temporalVector) {
+        final MultiObservationBuffer buffer = ctx.get(bufferName);
+        for (int i = 0; i < varIndexes.length; i++) {
+            int numValid = buffer.collectValid(i);
+            // the same canonical order as AggregatorPinty, so near ties are broken alike
+            ObservationBuffer.sort(buffer.getValidValues(), buffer.getValidTimes(), numValid);
+            if (outlierFilter != AggregatorPinty.OutlierFilter.NONE) {
+                numValid = AggregatorPinty.rejectOutliers(outlierFilter, outlierThreshold,
+                                                          buffer.getValidValues(), buffer.getValidTimes(),
+                                                          numValid, buffer.getScratch());
+            }
+            AggregatorPinty.selectClosestToMean(buffer.getValidValues(), buffer.getValidTimes(), numValid,
+                                                temporalVector, 4 * i);
+        }
+        ctx.put(bufferName, null);
+        bufferPool.release(buffer);
+    }
+
+    @Override
+    public void computeOutput(Vector temporalVector, WritableVector outputVector) {
+        for (int i = 0; i < 4 * varIndexes.length; ++i) {
+            outputVector.set(i, temporalVector.get(i));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AggregatorPintyMulti{" +
+                "varIndexes=" + Arrays.toString(varIndexes) +
+                ", maskIndexes=" + Arrays.toString(maskIndexes) +
+                ", outlierFilter=" + outlierFilter +
+                ", spatialFeatureNames=" + Arrays.toString(getSpatialFeatureNames()) +
+                ", temporalFeatureNames=" + Arrays.toString(getTemporalFeatureNames()) +
+                ", outputFeatureNames=" + Arrays.toString(getOutputFeatureNames()) +
+                '}';
+    }
+
+    public static class Config extends AggregatorConfig {
+        @Parameter
+        String[] varNames;
+        @Parameter(description = "The mask variable of each variable, an empty entry for no mask")
+        String[] maskNames;
+        @Parameter(defaultValue = "NONE", valueSet = {"NONE", "SIGMA", "MAD"},
+                   description = "Outlier filter of the first Pinty cycle")
+        String outlierFilter;
+        @Parameter(defaultValue = "2.0", description = "Outlier threshold in units of sigma")
+        Float outlierThreshold;
+
+        public Config() {
+            super(Descriptor.NAME);
+        }
+
+        @Override
+        public String[] getVarNames() {
+            final List<String> names = new ArrayList<String>(Arrays.asList(varNames));
+            if (maskNames != null) {
+                for (String maskName : maskNames) {
+                    if (maskName != null && !maskName.isEmpty() && !names.contains(maskName)) {
+                        names.add(maskName);
+                    }
+                }
+            }
+            return names.toArray(new String[names.size()]);
+        }
+    }
+
+    public static class Descriptor implements AggregatorDescriptor {
+
+        public static final String NAME = "PINTY_MULTI";
+
+        @Override
+        public String getName() {
+            return NAME;
+        }
+
+        @Override
+        public AggregatorConfig createConfig() {
+            return new Config();
+        }
+
+        @Override
+        public Aggregator createAggregator(VariableContext varCtx, AggregatorConfig aggregatorConfig) {
+            PropertySet propertySet = aggregatorConfig.asPropertySet();
+            final String outlierFilter = (String) propertySet.getValue("outlierFilter");
+            final Float outlierThreshold = (Float) propertySet.getValue("outlierThreshold");
+            return new AggregatorPintyMulti(varCtx,
+                                            (String[]) propertySet.getValue("varNames"),
+                                            (String[]) propertySet.getValue("maskNames"),
+                                            outlierFilter != null ? AggregatorPinty.OutlierFilter.valueOf(outlierFilter) : AggregatorPinty.OutlierFilter.NONE,
+                                            outlierThreshold != null ? outlierThreshold : 2.0f);
+        }
+    }
+}
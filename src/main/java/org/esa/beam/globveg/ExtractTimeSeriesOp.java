@@ -0,0 +1,142 @@
+package org.esa.beam.globveg;
+
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.Operator;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.framework.gpf.OperatorSpi;
+import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
+import org.esa.beam.framework.gpf.annotations.Parameter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Operator to extract the time series of sites from a yearly stack written by {@link YearlyStackOp}.
+ * <p/>
+ * The sites file has one site per line, either {@code name<TAB>lat<TAB>lon} for a point or
+ * {@code name<TAB>wkt} for a polygon in lon/lat coordinates. Empty lines and lines starting with '#' are ignored.
+ * The time series are written as tab-separated text, one line per site and period.
+ *
+ * @see StackTimeSeriesExtractor
+ */
+@OperatorMetadata(alias = "Globveg.ExtractTimeSeries", version = "1.0",
+                  authors = "Brockmann Consult",
+                  copyright = "(c) 2013 Brockmann Consult",
+                  internal = true,
+                  description = "Operator to extract the time series of sites from a yearly Globveg stack.")
+public class ExtractTimeSeriesOp extends Operator {
+
+    @Parameter(description = "The yearly stack, e.g. 'L3_2010_site_FAPAR.tif' or 'L3_2010_site_FAPAR.nc'",
+               notNull = true)
+    private File stackFile;
+
+    @Parameter(defaultValue = "fapar", description = "The stacked variable, e.g. 'fapar', 'lai' or 'ndvi_kg_max'")
+    private String variableName;
+
+    @Parameter(description = "The sites file", notNull = true)
+    private File sitesFile;
+
+    @Parameter(description = "The output file", notNull = true)
+    private File outputFile;
+
+    @Parameter(defaultValue = "256", interval = "[1,100000]",
+               description = "The size in pixels of the blocks nearby sites are read together in")
+    private int blockSize;
+
+    @Override
+    public void initialize() throws OperatorException {
+        final List<StackTimeSeriesExtractor.Site> sites;
+        try {
+            sites = readSites(sitesFile);
+        } catch (IOException e) {
+            throw new OperatorException("Failed to read sites file " + sitesFile + ": " + e.getMessage(), e);
+        }
+
+        try {
+            final StackTimeSeriesExtractor extractor = new StackTimeSeriesExtractor(stackFile, variableName, blockSize);
+            try {
+                writeTimeSeries(extractor.extract(sites), outputFile);
+            } finally {
+                extractor.close();
+            }
+        } catch (IOException e) {
+            throw new OperatorException("Failed to extract time series from " + stackFile + ": " + e.getMessage(), e);
+        }
+        System.out.println("Extracted time series of " + sites.size() + " sites from " + stackFile.getName() + ".");
+
+        final Product dummyTargetProduct = new Product("a", "b", 0, 0);
+        setTargetProduct(dummyTargetProduct);
+    }
+
+    static List<StackTimeSeriesExtractor.Site> readSites(File file) throws IOException {
+        final List<StackTimeSeriesExtractor.Site> sites = new ArrayList<StackTimeSeriesExtractor.Site>();
+        final WKTReader wktReader = new WKTReader();
+        final BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] columns = line.split("\t");
+                try {
+                    if (columns.length == 3) {
+                        sites.add(StackTimeSeriesExtractor.Site.createPoint(columns[0],
+                                                                             Double.parseDouble(columns[1]),
+                                                                             Double.parseDouble(columns[2])));
+                    } else if (columns.length == 2) {
+                        sites.add(new StackTimeSeriesExtractor.Site(columns[0], wktReader.read(columns[1])));
+                    } else {
+                        throw new IOException("Line " + lineNumber + ": expected 'name<TAB>lat<TAB>lon' " +
+                                                      "or 'name<TAB>wkt'");
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException("Line " + lineNumber + ": " + e.getMessage(), e);
+                } catch (ParseException e) {
+                    throw new IOException("Line " + lineNumber + ": " + e.getMessage(), e);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return sites;
+    }
+
+    private static void writeTimeSeries(List<StackTimeSeriesExtractor.TimeSeries> timeSeriesList,
+                                        File file) throws IOException {
+        final PrintWriter writer = new PrintWriter(new FileWriter(file));
+        try {
+            writer.println("site\tperiod\tvalue\tmjd\tcount\tpixels");
+            for (StackTimeSeriesExtractor.TimeSeries timeSeries : timeSeriesList) {
+                for (int t = 0; t < timeSeries.periods.length; t++) {
+                    writer.println(timeSeries.siteName + "\t" + timeSeries.periods[t] + "\t" +
+                                           timeSeries.values[t] + "\t" + timeSeries.mjds[t] + "\t" +
+                                           timeSeries.counts[t] + "\t" + timeSeries.pixelCounts[t]);
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        if (writer.checkError()) {
+            throw new IOException("Failed to write " + file);
+        }
+    }
+
+    public static class Spi extends OperatorSpi {
+
+        public Spi() {
+            super(ExtractTimeSeriesOp.class);
+        }
+    }
+}
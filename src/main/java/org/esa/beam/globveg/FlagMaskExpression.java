@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.globveg;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.FlagCoding;
+import org.esa.beam.framework.datamodel.MetadataAttribute;
+import org.esa.beam.framework.datamodel.Product;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A boolean band maths expression of the form {@code [not] band.FLAG and [not] band.FLAG ...}, compiled into
+ * bit mask tests over the raw samples of the flag bands. A flag {@code band.FLAG} is set if
+ * {@code (sample & mask) == value}, as in band maths.
+ * <p/>
+ * Per band, all flags required to be set are tested at once, as are all single-bit flags required to be clear.
+ */
+class FlagMaskExpression {
+
+    private final Band[] bands;
+    private final int[] setMasks;
+    private final int[] setValues;
+    private final int[] clearMasks;
+    // multi-bit flags required to be unset, per band: {mask, value} pairs
+    private final int[][] unsetTerms;
+
+    private FlagMaskExpression(Band[] bands, int[] setMasks, int[] setValues, int[] clearMasks, int[][] unsetTerms) {
+        this.bands = bands;
+        this.setMasks = setMasks;
+        this.setValues = setValues;
+        this.clearMasks = clearMasks;
+        this.unsetTerms = unsetTerms;
+    }
+
+    /**
+     * @param expression the expression
+     * @param product    the product of the flag bands
+     * @return the compiled expression, or null if the expression has another form or refers to unknown flags,
+     *         so that it must be evaluated by band maths
+     */
+    static FlagMaskExpression compile(String expression, Product product) {
+        if (expression == null) {
+            return null;
+        }
+        final String[] tokens = expression.replace("&&", " and ").replace("!", " not ").trim().split("\\s+");
+        final Map<Band, List<int[]>> setTerms = new LinkedHashMap<Band, List<int[]>>();
+        final Map<Band, List<int[]>> unsetTerms = new LinkedHashMap<Band, List<int[]>>();
+        boolean expectTerm = true;
+        boolean negated = false;
+        for (String token : tokens) {
+            if (expectTerm) {
+                if (token.equalsIgnoreCase("not")) {
+                    negated = !negated;
+                    continue;
+                }
+                final int dotIndex = token.indexOf('.');
+                if (dotIndex <= 0) {
+                    return null;
+                }
+                final Band band = product.getBand(token.substring(0, dotIndex));
+                final int[] maskAndValue = band != null ? getFlag(band.getFlagCoding(), token.substring(dotIndex + 1))
+                                                       : null;
+                if (maskAndValue == null) {
+                    return null;
+                }
+                final Map<Band, List<int[]>> terms = negated ? unsetTerms : setTerms;
+                if (!terms.containsKey(band)) {
+                    terms.put(band, new ArrayList<int[]>());
+                }
+                terms.get(band).add(maskAndValue);
+                if (!setTerms.containsKey(band)) {
+                    setTerms.put(band, new ArrayList<int[]>());
+                }
+                negated = false;
+                expectTerm = false;
+            } else if (token.equalsIgnoreCase("and")) {
+                expectTerm = true;
+            } else {
+                return null;
+            }
+        }
+        if (expectTerm) {
+            return null;
+        }
+
+        final int bandCount = setTerms.size();
+        final Band[] bands = setTerms.keySet().toArray(new Band[bandCount]);
+        final int[] setMasks = new int[bandCount];
+        final int[] setValues = new int[bandCount];
+        final int[] clearMasks = new int[bandCount];
+        final int[][] remainingUnsetTerms = new int[bandCount][];
+        for (int i = 0; i < bandCount; i++) {
+            for (int[] term : setTerms.get(bands[i])) {
+                if ((setMasks[i] & term[0] & (setValues[i] ^ term[1])) != 0) {
+                    // contradicting flags, leave that to band maths
+                    return null;
+                }
+                setMasks[i] |= term[0];
+                setValues[i] |= term[1];
+            }
+            final List<Integer> multiBitTerms = new ArrayList<Integer>();
+            if (unsetTerms.containsKey(bands[i])) {
+                for (int[] term : unsetTerms.get(bands[i])) {
+                    if (term[0] == term[1] && Integer.bitCount(term[0]) == 1) {
+                        clearMasks[i] |= term[0];
+                    } else {
+                        multiBitTerms.add(term[0]);
+                        multiBitTerms.add(term[1]);
+                    }
+                }
+            }
+            remainingUnsetTerms[i] = new int[multiBitTerms.size()];
+            for (int k = 0; k < remainingUnsetTerms[i].length; k++) {
+                remainingUnsetTerms[i][k] = multiBitTerms.get(k);
+            }
+        }
+        return new FlagMaskExpression(bands, setMasks, setValues, clearMasks, remainingUnsetTerms);
+    }
+
+    // returns {mask, value} of the flag, null if there is no such flag
+    private static int[] getFlag(FlagCoding flagCoding, String flagName) {
+        if (flagCoding == null) {
+            return null;
+        }
+        final MetadataAttribute flag = flagCoding.getFlag(flagName);
+        if (flag == null) {
+            return null;
+        }
+        final int mask = flag.getData().getElemIntAt(0);
+        final int value = flag.getData().getNumElems() > 1 ? flag.getData().getElemIntAt(1) : mask;
+        return new int[]{mask, value};
+    }
+
+    /**
+     * @return the flag bands, in the order their samples are expected by {@link #evaluate}
+     */
+    Band[] getBands() {
+        return bands.clone();
+    }
+
+    /**
+     * Evaluates the expression for the pixels of a tile.
+     *
+     * @param flagSamples the raw samples of each flag band of the tile
+     * @param mask        receives 1 where the expression is true, 0 elsewhere
+     */
+    void evaluate(int[][] flagSamples, int[] mask) {
+        for (int i = 0; i < mask.length; i++) {
+            mask[i] = 1;
+        }
+        for (int b = 0; b < bands.length; b++) {
+            final int[] samples = flagSamples[b];
+            final int setMask = setMasks[b];
+            final int setValue = setValues[b];
+            final int clearMask = clearMasks[b];
+            final int[] terms = unsetTerms[b];
+            for (int i = 0; i < mask.length; i++) {
+                final int sample = samples[i];
+                boolean isTrue = (sample & setMask) == setValue && (sample & clearMask) == 0;
+                for (int k = 0; isTrue && k < terms.length; k += 2) {
+                    isTrue = (sample & terms[k]) != terms[k + 1];
+                }
+                if (!isTrue) {
+                    mask[i] = 0;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.globveg;
+
+import com.bc.ceres.core.ProgressMonitor;
+import com.vividsolutions.jts.geom.Geometry;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.dataio.ProductIOPlugInManager;
+import org.esa.beam.framework.dataio.ProductWriterPlugIn;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.GPF;
+import org.esa.beam.framework.gpf.Operator;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.framework.gpf.OperatorSpi;
+import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
+import org.esa.beam.framework.gpf.annotations.Parameter;
+import org.esa.beam.util.io.FileUtils;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Runs {@link GlobVegOp} over many MERIS L1b products in one JVM, so that JVM startup, operator SPI discovery and
+ * the auxdata statically cached by the upstream operators are paid once for the whole batch.
+ * Products are processed by a bounded pool of workers, each product is disposed as soon as it is written.
+ */
+@OperatorMetadata(alias = "GlobVeg.Batch",
+                  authors = "Brockmann Consult",
+                  copyright = "Brockmann Consult GmbH",
+                  version = "1.0",
+                  description = "Processes a list or directory of MERIS L1b products with the GlobVeg operator")
+public class GlobVegBatchOp extends Operator {
+
+    @Parameter(description = "The directory of the MERIS L1b products")
+    private File inputDataDir;
+
+    @Parameter(defaultValue = "MER_*.N1",
+               description = "The file name pattern of the products in the input directory, '*' and '?' as wildcards")
+    private String filenamePattern;
+
+    @Parameter(description = "The MERIS L1b product files, processed in addition to those of the input directory")
+    private File[] inputFiles;
+
+    @Parameter(defaultValue = ".", description = "Output data directory")
+    private File outputDataDir;
+
+    @Parameter(defaultValue = "BEAM-DIMAP", description = "The format of the GlobVeg products")
+    private String outputFormat;
+
+    @Parameter(defaultValue = "2", interval = "[1,64]",
+               description = "The number of products processed at the same time, each by its own worker")
+    private int numWorkers;
+
+    @Parameter(defaultValue = "true", description = "Skip products whose GlobVeg product already exists")
+    private boolean skipExisting;
+
+    // parameters passed on to GlobVegOp
+
+    @Parameter(defaultValue = "true", label = " Compute an NDVI band from Kurt Guenther algorithm")
+    private boolean computeNdviKg;
+
+    @Parameter(defaultValue = "false", label = " Copy reflectance bands to target product")
+    private boolean outputReflectanceBands;
+
+    @Parameter(defaultValue = "false", label = " Write also simple NDVI = (rad10 - rad6)/(rad10 + rad6) to target product")
+    private boolean outputNdviSimple;
+
+    @Parameter(defaultValue = "false", label = " Write all FAPAR product bands to target product")
+    private boolean copyFaparBands;
+
+    @Parameter(defaultValue = "NONE", valueSet = {"NONE", "INT16", "UINT16"},
+               description = "See GlobVeg operator")
+    private String quantizedDataType;
+
+    @Parameter(defaultValue = "false", description = "See GlobVeg operator")
+    private boolean packQualityFlags;
+
+    @Parameter(description = "See GlobVeg operator, products not intersecting the region are skipped")
+    private String region;
+
+    @Parameter(description = "See GlobVeg operator, products not intersecting any site are skipped")
+    private File sitesFile;
+
+    @Parameter(description = "See GlobVeg operator")
+    private String[] siteNames;
+
+    // null if the products are processed completely
+    private List<Geometry> regions;
+    private final AtomicInteger outsideRegionCount = new AtomicInteger();
+
+    @Override
+    public void initialize() throws OperatorException {
+        final File[] sourceFiles = getSourceFiles();
+        if (sourceFiles.length == 0) {
+            System.out.println("No MERIS L1b products found - nothing to do.");
+            setTargetProduct(new Product("a", "b", 0, 0));
+            return;
+        }
+        if (!outputDataDir.isDirectory() && !outputDataDir.mkdirs()) {
+            throw new OperatorException("Cannot create output directory " + outputDataDir);
+        }
+        final String extension = getOutputExtension();
+        regions = GlobVegOp.readRegions(region, sitesFile, siteNames);
+
+        // load the operator SPIs once, before the workers start
+        GPF.getDefaultInstance().getOperatorSpiRegistry().loadOperatorSpis();
+
+        final long startTime = System.nanoTime();
+        final ExecutorService executorService = Executors.newFixedThreadPool(Math.min(numWorkers, sourceFiles.length));
+        final List<Future<Long>> futures = new ArrayList<Future<Long>>();
+        final List<File> futureFiles = new ArrayList<File>();
+        int skippedCount = 0;
+        try {
+            for (final File sourceFile : sourceFiles) {
+                final File targetFile = new File(outputDataDir,
+                                                 FileUtils.getFilenameWithoutExtension(sourceFile) + "_globveg" +
+                                                         extension);
+                if (skipExisting && targetFile.exists()) {
+                    skippedCount++;
+                    continue;
+                }
+                futureFiles.add(sourceFile);
+                futures.add(executorService.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return processProduct(sourceFile, targetFile);
+                    }
+                }));
+            }
+            long pixelCount = 0;
+            int failedCount = 0;
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    pixelCount += futures.get(i).get();
+                } catch (ExecutionException e) {
+                    failedCount++;
+                    getLogger().warning("GlobVeg batch: " + futureFiles.get(i).getName() + " failed: " +
+                                                e.getCause().getMessage());
+                }
+            }
+            final double seconds = (System.nanoTime() - startTime) * 1.0e-9;
+            getLogger().info(String.format("GlobVeg batch: %d products processed, %d failed, %d skipped, " +
+                                                   "%d outside the region, %.1f s, %.2f Mpixel/s",
+                                           futures.size() - failedCount - outsideRegionCount.get(), failedCount,
+                                           skippedCount, outsideRegionCount.get(), seconds,
+                                           pixelCount * 1.0e-6 / seconds));
+            if (failedCount > 0 && failedCount == futures.size()) {
+                throw new OperatorException("GlobVeg batch: all " + failedCount + " products failed");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OperatorException("Interrupted while processing GlobVeg batch", e);
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        setTargetProduct(new Product("a", "b", 0, 0));
+    }
+
+    /**
+     * @return the number of pixels processed
+     */
+    private long processProduct(File sourceFile, File targetFile) throws Exception {
+        final long startTime = System.nanoTime();
+        final Product sourceProduct = ProductIO.readProduct(sourceFile);
+        if (sourceProduct == null) {
+            throw new OperatorException("No reader found for " + sourceFile);
+        }
+        // skip scenes outside the region before any band is read
+        if (regions != null && GlobVegOp.computePixelRegion(sourceProduct, regions).isEmpty()) {
+            sourceProduct.dispose();
+            outsideRegionCount.incrementAndGet();
+            getLogger().info("GlobVeg batch: " + sourceFile.getName() + " does not intersect the region - skipped");
+            return 0;
+        }
+        Product targetProduct = null;
+        final int width;
+        final int height;
+        boolean writing = false;
+        boolean written = false;
+        try {
+            targetProduct = GPF.createProduct(OperatorSpi.getOperatorAlias(GlobVegOp.class),
+                                              createGlobVegParameters(), sourceProduct);
+            width = targetProduct.getSceneRasterWidth();
+            height = targetProduct.getSceneRasterHeight();
+            writing = true;
+            GPF.writeProduct(targetProduct, targetFile, outputFormat, false, ProgressMonitor.NULL);
+            written = true;
+        } finally {
+            // releases the operator chain and its cached tiles before the worker takes the next product
+            if (targetProduct != null) {
+                targetProduct.dispose();
+            }
+            sourceProduct.dispose();
+            if (writing && !written) {
+                // otherwise a later run with skipExisting would take the partial product as done
+                if (!deletePartialOutput(targetFile)) {
+                    getLogger().warning("GlobVeg batch: cannot delete partial product " + targetFile);
+                }
+            }
+        }
+        final long pixelCount = (long) width * height;
+        final double seconds = (System.nanoTime() - startTime) * 1.0e-9;
+        getLogger().info(String.format("GlobVeg batch: %s -> %s, %d x %d pixels, %.1f s, %.2f Mpixel/s, %.2f MB/s",
+                                       sourceFile.getName(), targetFile.getName(),
+                                       width, height,
+                                       seconds, pixelCount * 1.0e-6 / seconds,
+                                       sourceFile.length() / (1024.0 * 1024.0) / seconds));
+        return pixelCount;
+    }
+
+    /**
+     * Deletes a partially written target product, including the '.data' directory of a BEAM-DIMAP product.
+     *
+     * @return false, if some of it could not be deleted
+     */
+    static boolean deletePartialOutput(File targetFile) {
+        boolean deleted = true;
+        final File dataDir = FileUtils.exchangeExtension(targetFile, ".data");
+        if (dataDir.exists()) {
+            deleted = FileUtils.deleteTree(dataDir);
+        }
+        if (targetFile.exists()) {
+            deleted &= FileUtils.deleteTree(targetFile);
+        }
+        return deleted;
+    }
+
+    private Map<String, Object> createGlobVegParameters() {
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("computeNdviKg", computeNdviKg);
+        parameters.put("outputReflectanceBands", outputReflectanceBands);
+        parameters.put("outputNdviSimple", outputNdviSimple);
+        parameters.put("copyFaparBands", copyFaparBands);
+        parameters.put("quantizedDataType", quantizedDataType);
+        parameters.put("packQualityFlags", packQualityFlags);
+        if (region != null) {
+            parameters.put("region", region);
+        }
+        if (sitesFile != null) {
+            parameters.put("sitesFile", sitesFile);
+        }
+        if (siteNames != null) {
+            parameters.put("siteNames", siteNames);
+        }
+        return parameters;
+    }
+
+    private String getOutputExtension() {
+        final Iterator<ProductWriterPlugIn> writerPlugIns =
+                ProductIOPlugInManager.getInstance().getWriterPlugIns(outputFormat);
+        if (!writerPlugIns.hasNext()) {
+            throw new OperatorException("Unknown output format " + outputFormat);
+        }
+        return writerPlugIns.next().getDefaultFileExtensions()[0];
+    }
+
+    private File[] getSourceFiles() {
+        final List<File> sourceFiles = new ArrayList<File>();
+        if (inputDataDir != null) {
+            final Pattern pattern = toPattern(filenamePattern);
+            final File[] dirFiles = inputDataDir.listFiles(new FileFilter() {
+                @Override
+                public boolean accept(File file) {
+                    return file.isFile() && pattern.matcher(file.getName()).matches();
+                }
+            });
+            if (dirFiles == null) {
+                throw new OperatorException("Cannot list input directory " + inputDataDir);
+            }
+            Arrays.sort(dirFiles);
+            sourceFiles.addAll(Arrays.asList(dirFiles));
+        }
+        if (inputFiles != null) {
+            for (File inputFile : inputFiles) {
+                if (!sourceFiles.contains(inputFile)) {
+                    sourceFiles.add(inputFile);
+                }
+            }
+        }
+        return sourceFiles.toArray(new File[sourceFiles.size()]);
+    }
+
+    static Pattern toPattern(String filenamePattern) {
+        final StringBuilder regex = new StringBuilder();
+        for (char c : filenamePattern.toCharArray()) {
+            if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    public static class Spi extends OperatorSpi {
+
+        public Spi() {
+            super(GlobVegBatchOp.class);
+        }
+    }
+}
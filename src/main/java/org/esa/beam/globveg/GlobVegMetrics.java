@@ -0,0 +1,274 @@
+package org.esa.beam.globveg;
+
+import javax.media.jai.CacheDiagnostics;
+import javax.media.jai.CachedTile;
+import javax.media.jai.JAI;
+import javax.media.jai.TileCache;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timing and tile-cache figures of a {@link GlobVegOp} run, collected only if instrumentation is switched on.
+ * <p/>
+ * Stage times are the wall and CPU times spent waiting for the tiles of a stage, measured on the calling
+ * thread. They include the upstream stages of the stage whose tiles were not cached yet.
+ * The time of {@code computeTileStack} itself is reported inclusive and exclusive of the source tiles it requested.
+ * Tiles of the same stage copied to the target product are counted separately, under the stage name with the
+ * suffix {@value #COPIED_SUFFIX}, as they are pulled by the writer and not by {@code computeTileStack}.
+ * Tile cache hits and misses are those of the JAI default tile cache during the run, evictions are
+ * the tiles removed by its memory control.
+ */
+class GlobVegMetrics {
+
+    static final String COMPUTE_TILE_STACK = "GlobVeg.computeTileStack";
+    static final String COPIED_SUFFIX = ".copied";
+
+    private final ThreadMXBean threadMXBean;
+    private final boolean cpuTimeSupported;
+    private final ConcurrentMap<String, Counter> stages = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentMap<String, Counter> bands = new ConcurrentHashMap<String, Counter>();
+
+    private final TileCache tileCache;
+    private final long cacheHitsAtStart;
+    private final long cacheMissesAtStart;
+    private final AtomicLong cacheEvictions = new AtomicLong();
+    private final Observer evictionObserver;
+
+    GlobVegMetrics() {
+        threadMXBean = ManagementFactory.getThreadMXBean();
+        cpuTimeSupported = threadMXBean.isCurrentThreadCpuTimeSupported();
+        if (cpuTimeSupported && !threadMXBean.isThreadCpuTimeEnabled()) {
+            threadMXBean.setThreadCpuTimeEnabled(true);
+        }
+
+        tileCache = JAI.getDefaultInstance().getTileCache();
+        if (tileCache instanceof CacheDiagnostics) {
+            final CacheDiagnostics diagnostics = (CacheDiagnostics) tileCache;
+            diagnostics.enableDiagnostics();
+            cacheHitsAtStart = diagnostics.getCacheHitCount();
+            cacheMissesAtStart = diagnostics.getCacheMissCount();
+        } else {
+            cacheHitsAtStart = -1;
+            cacheMissesAtStart = -1;
+        }
+        if (tileCache instanceof Observable) {
+            evictionObserver = new Observer() {
+                @Override
+                public void update(Observable o, Object arg) {
+                    // action 3: removed by the memory control of the cache
+                    if (arg instanceof CachedTile && ((CachedTile) arg).getAction() == 3) {
+                        cacheEvictions.incrementAndGet();
+                    }
+                }
+            };
+            ((Observable) tileCache).addObserver(evictionObserver);
+        } else {
+            evictionObserver = null;
+        }
+    }
+
+    /**
+     * @return the CPU time of the current thread in nanoseconds, 0 if not supported
+     */
+    long getThreadCpuTime() {
+        return cpuTimeSupported ? threadMXBean.getCurrentThreadCpuTime() : 0L;
+    }
+
+    /**
+     * Records a tile requested via {@code getSourceTile} from within {@code computeTileStack}.
+     */
+    void recordSourceTile(String stage, String band, Raster raster, long wallNanos, long cpuNanos) {
+        final Counter counter = getCounter(stages, stage);
+        counter.requestedBySourceTile = true;
+        counter.add(wallNanos, cpuNanos, 0L);
+        getCounter(bands, band).add(0L, 0L, getByteCount(raster));
+    }
+
+    /**
+     * Records a tile of a target band copied from an upstream product, pulled by the writer.
+     */
+    void recordCopiedTile(String stage, String band, Raster raster, long wallNanos, long cpuNanos) {
+        getCounter(stages, stage + COPIED_SUFFIX).add(wallNanos, cpuNanos, 0L);
+        getCounter(bands, band).add(0L, 0L, getByteCount(raster));
+    }
+
+    void recordComputeTileStack(long wallNanos, long cpuNanos) {
+        getCounter(stages, COMPUTE_TILE_STACK).add(wallNanos, cpuNanos, 0L);
+    }
+
+    private static Counter getCounter(ConcurrentMap<String, Counter> counters, String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            final Counter newCounter = new Counter();
+            counter = counters.putIfAbsent(name, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Stops observing the tile cache and writes the figures, as Prometheus text format if the file name
+     * ends with '.prom', else as JSON.
+     *
+     * @param skippedTiles the number of tiles skipped by {@code computeTileStack} without any clear land pixel
+     */
+    void writeReport(File file, long skippedTiles) throws IOException {
+        long cacheHits = -1;
+        long cacheMisses = -1;
+        if (tileCache instanceof CacheDiagnostics) {
+            cacheHits = ((CacheDiagnostics) tileCache).getCacheHitCount() - cacheHitsAtStart;
+            cacheMisses = ((CacheDiagnostics) tileCache).getCacheMissCount() - cacheMissesAtStart;
+        }
+        if (evictionObserver != null) {
+            ((Observable) tileCache).deleteObserver(evictionObserver);
+        }
+
+        final Map<String, Counter> sortedStages = new TreeMap<String, Counter>(stages);
+        final PrintWriter writer = new PrintWriter(new FileWriter(file));
+        try {
+            if (file.getName().endsWith(".prom")) {
+                writePrometheus(writer, sortedStages, skippedTiles, cacheHits, cacheMisses);
+            } else {
+                writeJson(writer, sortedStages, skippedTiles, cacheHits, cacheMisses);
+            }
+        } finally {
+            writer.close();
+        }
+        if (writer.checkError()) {
+            throw new IOException("Failed to write " + file);
+        }
+    }
+
+    private void writeJson(PrintWriter writer, Map<String, Counter> sortedStages, long skippedTiles,
+                           long cacheHits, long cacheMisses) {
+        writer.println("{");
+        writer.println("  \"stages\": {");
+        int i = 0;
+        for (Map.Entry<String, Counter> entry : sortedStages.entrySet()) {
+            final Counter counter = entry.getValue();
+            writer.printf(Locale.ENGLISH, "    \"%s\": {\"tiles\": %d, \"wallSeconds\": %.6f, \"cpuSeconds\": %.6f}%s%n",
+                          entry.getKey(), counter.count.get(), seconds(counter.wallNanos.get()),
+                          seconds(counter.cpuNanos.get()), ++i < sortedStages.size() ? "," : "");
+        }
+        writer.println("  },");
+        final Counter stack = getCounter(stages, COMPUTE_TILE_STACK);
+        writer.printf(Locale.ENGLISH, "  \"computeTileStack\": {\"tiles\": %d, \"skippedTiles\": %d, " +
+                              "\"exclusiveWallSeconds\": %.6f, \"exclusiveCpuSeconds\": %.6f},%n",
+                      stack.count.get(), skippedTiles,
+                      seconds(getExclusiveWallNanos()), seconds(getExclusiveCpuNanos()));
+        writer.println("  \"bands\": {");
+        final Map<String, Counter> sortedBands = new TreeMap<String, Counter>(bands);
+        i = 0;
+        for (Map.Entry<String, Counter> entry : sortedBands.entrySet()) {
+            writer.printf(Locale.ENGLISH, "    \"%s\": {\"tiles\": %d, \"bytes\": %d}%s%n",
+                          entry.getKey(), entry.getValue().count.get(), entry.getValue().bytes.get(),
+                          ++i < sortedBands.size() ? "," : "");
+        }
+        writer.println("  },");
+        writer.printf(Locale.ENGLISH, "  \"tileCache\": {\"hits\": %d, \"misses\": %d, \"evictions\": %d}%n",
+                      cacheHits, cacheMisses, evictionObserver != null ? cacheEvictions.get() : -1);
+        writer.println("}");
+    }
+
+    private void writePrometheus(PrintWriter writer, Map<String, Counter> sortedStages, long skippedTiles,
+                                 long cacheHits, long cacheMisses) {
+        writer.println("# TYPE globveg_stage_tiles_total counter");
+        for (Map.Entry<String, Counter> entry : sortedStages.entrySet()) {
+            writer.printf(Locale.ENGLISH, "globveg_stage_tiles_total{stage=\"%s\"} %d%n",
+                          entry.getKey(), entry.getValue().count.get());
+        }
+        writer.println("# TYPE globveg_stage_wall_seconds_total counter");
+        for (Map.Entry<String, Counter> entry : sortedStages.entrySet()) {
+            writer.printf(Locale.ENGLISH, "globveg_stage_wall_seconds_total{stage=\"%s\"} %.6f%n",
+                          entry.getKey(), seconds(entry.getValue().wallNanos.get()));
+        }
+        writer.println("# TYPE globveg_stage_cpu_seconds_total counter");
+        for (Map.Entry<String, Counter> entry : sortedStages.entrySet()) {
+            writer.printf(Locale.ENGLISH, "globveg_stage_cpu_seconds_total{stage=\"%s\"} %.6f%n",
+                          entry.getKey(), seconds(entry.getValue().cpuNanos.get()));
+        }
+        writer.println("# TYPE globveg_compute_tile_stack_exclusive_wall_seconds_total counter");
+        writer.printf(Locale.ENGLISH, "globveg_compute_tile_stack_exclusive_wall_seconds_total %.6f%n",
+                      seconds(getExclusiveWallNanos()));
+        writer.println("# TYPE globveg_compute_tile_stack_exclusive_cpu_seconds_total counter");
+        writer.printf(Locale.ENGLISH, "globveg_compute_tile_stack_exclusive_cpu_seconds_total %.6f%n",
+                      seconds(getExclusiveCpuNanos()));
+        writer.println("# TYPE globveg_skipped_tiles_total counter");
+        writer.printf("globveg_skipped_tiles_total %d%n", skippedTiles);
+        writer.println("# TYPE globveg_band_bytes_total counter");
+        for (Map.Entry<String, Counter> entry : new TreeMap<String, Counter>(bands).entrySet()) {
+            writer.printf("globveg_band_bytes_total{band=\"%s\"} %d%n", entry.getKey(), entry.getValue().bytes.get());
+        }
+        if (cacheHits >= 0) {
+            writer.println("# TYPE globveg_tile_cache_hits_total counter");
+            writer.printf("globveg_tile_cache_hits_total %d%n", cacheHits);
+            writer.println("# TYPE globveg_tile_cache_misses_total counter");
+            writer.printf("globveg_tile_cache_misses_total %d%n", cacheMisses);
+        }
+        if (evictionObserver != null) {
+            writer.println("# TYPE globveg_tile_cache_evictions_total counter");
+            writer.printf("globveg_tile_cache_evictions_total %d%n", cacheEvictions.get());
+        }
+    }
+
+    private long getExclusiveWallNanos() {
+        long nanos = getCounter(stages, COMPUTE_TILE_STACK).wallNanos.get();
+        for (Map.Entry<String, Counter> entry : stages.entrySet()) {
+            if (!entry.getKey().equals(COMPUTE_TILE_STACK) && entry.getValue().requestedBySourceTile) {
+                nanos -= entry.getValue().wallNanos.get();
+            }
+        }
+        return Math.max(0L, nanos);
+    }
+
+    private long getExclusiveCpuNanos() {
+        long nanos = getCounter(stages, COMPUTE_TILE_STACK).cpuNanos.get();
+        for (Map.Entry<String, Counter> entry : stages.entrySet()) {
+            if (!entry.getKey().equals(COMPUTE_TILE_STACK) && entry.getValue().requestedBySourceTile) {
+                nanos -= entry.getValue().cpuNanos.get();
+            }
+        }
+        return Math.max(0L, nanos);
+    }
+
+    private static long getByteCount(Raster raster) {
+        return (long) raster.getWidth() * raster.getHeight() * raster.getNumBands() *
+                DataBuffer.getDataTypeSize(raster.getSampleModel().getDataType()) / 8;
+    }
+
+    private static double seconds(long nanos) {
+        return nanos * 1.0e-9;
+    }
+
+    private static class Counter {
+
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong wallNanos = new AtomicLong();
+        final AtomicLong cpuNanos = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        volatile boolean requestedBySourceTile;
+
+        void add(long wall, long cpu, long numBytes) {
+            count.incrementAndGet();
+            wallNanos.addAndGet(wall);
+            cpuNanos.addAndGet(cpu);
+            bytes.addAndGet(numBytes);
+        }
+    }
+}
@@ -17,23 +17,39 @@
 package org.esa.beam.globveg;
 
 import com.bc.ceres.core.ProgressMonitor;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
 import org.esa.beam.dataio.envisat.EnvisatConstants;
 import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.FlagCoding;
 import org.esa.beam.framework.datamodel.Product;
 import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.VirtualBand;
 import org.esa.beam.framework.gpf.*;
 import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
 import org.esa.beam.framework.gpf.annotations.Parameter;
 import org.esa.beam.framework.gpf.annotations.SourceProduct;
-import org.esa.beam.gpf.operators.meris.NdviOp;
+import org.esa.beam.globveg.util.GlobvegUtils;
+import org.esa.beam.globveg.util.Quantizer;
 import org.esa.beam.gpf.operators.standard.BandMathsOp;
-import org.esa.beam.idepix.algorithms.globalbedo.GlobAlbedoOp;
+import org.esa.beam.gpf.operators.standard.SubsetOp;
 import org.esa.beam.meris.brr.Rad2ReflOp;
 import org.esa.beam.util.ProductUtils;
 
 import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The combining operator for the GlobVeg project.
@@ -60,172 +76,903 @@ public class GlobVegOp extends Operator {
     @Parameter(defaultValue = "false", label = " Write all FAPAR product bands to target product")
     private boolean copyFaparBands = false;
 
+    @Parameter(defaultValue = "false",
+               description = "Only log the upstream operators required by the requested bands, the target product " +
+                             "has no bands")
+    private boolean dryRun = false;
+
+    @Parameter(description = "If set, per-stage tile timing and tile cache figures are written to this file " +
+                             "at the end of the run, in Prometheus text format for a '.prom' file, else as JSON")
+    private File instrumentationFile;
+
+    @Parameter(defaultValue = "NONE", valueSet = {"NONE", "INT16", "UINT16"},
+               description = "If not NONE, fapar, obs_time, ndvi_kg and the reflectance and simple NDVI bands are " +
+                             "written as integers of this type with scale factor, offset and no-data value")
+    private String quantizedDataType = "NONE";
+
+    @Parameter(description = "If set, only the pixels covering this region (WKT in lon/lat coordinates) plus the " +
+                             "Idepix cloud buffer margin are processed")
+    private String region;
+
+    @Parameter(description = "If set, only the pixels covering the sites of this file plus the Idepix cloud buffer " +
+                             "margin are processed, see the Globveg.ExtractTimeSeries operator for the file format")
+    private File sitesFile;
+
+    @Parameter(description = "The names of the sites of the sites file to process, all sites if not set")
+    private String[] siteNames;
+
+    @Parameter(description = "If set, only this pixel window 'x,y,width,height' is processed, e.g. a row stripe of " +
+                             "the scene. Replaces the window of region and sitesFile, no margin is added")
+    private Rectangle pixelRegion;
+
+    @Parameter(defaultValue = "false",
+               description = "Pack validity and cloud screening bits into one flag band instead of copying the " +
+                             "Idepix flag bands, valid_fapar and valid_lai become virtual bands")
+    private boolean packQualityFlags = false;
+
+    // the source the upstream chain is computed from, a subset of sourceProduct if a region is given
+    private Product regionProduct;
+    // the first scan line of regionProduct in sourceProduct
+    private int regionOffsetY;
+
     private Band timeBand;
     private Band validFaparBand;
     private Band validLaiBand;
+    // the masks are compiled into bit mask tests over the flag bands if possible, else computed by band maths
+    private FlagMaskExpression validFaparFlags;
+    private FlagMaskExpression validLaiFlags;
+    private FlagMaskExpression cloudFreeFlags;
     private Band validFaparMask;
     private Band validLaiMask;
     private Band cloudFreeBand;
     private Band ndviKgBand;
+    // null if quality flags are not packed
+    private Band qualityBand;
+    private QualityFlags qualityFlags;
+    private Band l1FlagsBand;
+    private Band cloudFlagsBand;
 
     private Band[] merisReflBands;
 
+    // target bands copied from upstream bands in computeTileStack, and the quantizers of the quantized ones
+    private Map<Band, Band> stackCopiedBands;
+    private Map<Band, Quantizer> stackCopyQuantizers;
+
+    // null if obs_time is not quantized
+    private Quantizer timeQuantizer;
+    // raw ndvi_kg values, also used for the unscaled NDVI x 10000 if output is not quantized
+    private Quantizer ndviKgQuantizer;
+
+    private final AtomicLong tileCount = new AtomicLong();
+    private final AtomicLong skippedTileCount = new AtomicLong();
+
+    // null if instrumentation is off
+    private GlobVegMetrics metrics;
+    private Map<Band, String> sourceTileStages;
+    private Map<Band, String> sourceTileNames;
+
+    static final String CLOUD_FREE_EXPRESSION = "not l1_flags.INVALID " +
+            "and not cloud_classif_flags.F_WATER " +
+            "and not cloud_classif_flags.F_CLOUD " +
+            "and not cloud_classif_flags.F_CLOUD_BUFFER " +
+            "and not cloud_classif_flags.F_CLOUD_SHADOW " +
+            "and cloud_classif_flags.F_CLEAR_LAND";
+
+    // the gaCloudBufferWidth of Idepix, also the margin around the region
+    static final int CLOUD_BUFFER_WIDTH = 3;
+
     private static final float ALPLA_KG = 0.2744f;
     private static final float BETA_KG = 0.0839f;
 
+    // value ranges of the quantized bands. FAPAR is a fraction, negative values are error codes and become no-data
+    private static final double[] FAPAR_RANGE = {0.0, 1.0};
+    private static final double[] NDVI_RANGE = {-1.0, 1.0};
+    private static final double[] REFLECTANCE_RANGE = {0.0, 1.5};
+    // ndvi_kg if the output is not quantized: NDVI x 10000, truncated as before
+    static final Quantizer NDVI_X10000_QUANTIZER = new Quantizer(ProductData.TYPE_INT16, 1.0e-4, 0.0).withTruncation();
+
+    // zero-based indices of the MERIS bands 6,7 and 10,12,13,14,15 used by the Kurt Guenther NDVI
+    private static final int[] NDVI_KG_BAND_INDICES = {5, 6, 9, 11, 12, 13, 14};
+
     @Override
     public void initialize() throws OperatorException {
 
-        final Product correctedL1b = GPF.createProduct("Meris.CorrectRadiometry", GPF.NO_PARAMS, sourceProduct);
-        final Product rad2reflProduct = GPF.createProduct(OperatorSpi.getOperatorAlias(Rad2ReflOp.class), GPF.NO_PARAMS, sourceProduct);
-        final Product ndviSimpleProduct = GPF.createProduct(OperatorSpi.getOperatorAlias(NdviOp.class), GPF.NO_PARAMS, sourceProduct);
-        Map<String, Object> faparParms = new HashMap<String, Object>();
-//        faparParms.put("nirRedFilterFactor", 0.0);
-        faparParms.put("outputFaparAsInt", false); // set back to false on behalf of UG, 20140404
-        final Product faparProduct = GPF.createProduct("Fapar", faparParms, correctedL1b);
-        Map<String, Object> laiParms = new HashMap<String, Object>();
-        laiParms.put("outputLaiAsInt", true);
-        final Product laiProduct = GPF.createProduct("ToaVeg", laiParms, correctedL1b);
+        final Map<String, Set<GlobVegStage>> bandDependencies =
+                resolveBandDependencies(computeNdviKg, outputReflectanceBands, outputNdviSimple);
+        final Set<GlobVegStage> stages = EnumSet.noneOf(GlobVegStage.class);
+        for (Set<GlobVegStage> bandStages : bandDependencies.values()) {
+            stages.addAll(bandStages);
+        }
 
-        Product targetProduct = new Product(sourceProduct.getName(), sourceProduct.getProductType(),
-                                            sourceProduct.getSceneRasterWidth(), sourceProduct.getSceneRasterHeight());
+        if (dryRun) {
+            getLogger().info(formatDependencyGraph(bandDependencies, stages));
+            // no bands, so there is nothing to compute or write
+            final Product dryRunProduct = new Product(sourceProduct.getName(), sourceProduct.getProductType(),
+                                                      sourceProduct.getSceneRasterWidth(),
+                                                      sourceProduct.getSceneRasterHeight());
+            dryRunProduct.setDescription("GlobVeg dry run, no bands computed");
+            setTargetProduct(dryRunProduct);
+            return;
+        }
+
+        if (instrumentationFile != null) {
+            metrics = new GlobVegMetrics();
+            sourceTileStages = new HashMap<Band, String>();
+            sourceTileNames = new HashMap<Band, String>();
+        }
+
+        regionProduct = sourceProduct;
+        Rectangle window = null;
+        if (pixelRegion != null) {
+            window = pixelRegion.intersection(new Rectangle(sourceProduct.getSceneRasterWidth(),
+                                                            sourceProduct.getSceneRasterHeight()));
+        } else {
+            final List<Geometry> regions = readRegions(region, sitesFile, siteNames);
+            if (regions != null) {
+                window = computePixelRegion(sourceProduct, regions);
+            }
+        }
+        if (window != null) {
+            if (window.isEmpty()) {
+                throw new OperatorException("Product " + sourceProduct.getName() + " does not intersect the region");
+            }
+            if (window.width < sourceProduct.getSceneRasterWidth() ||
+                    window.height < sourceProduct.getSceneRasterHeight()) {
+                regionProduct = createSubset(sourceProduct, window);
+                regionOffsetY = window.y;
+            }
+        }
 
-        targetProduct.setStartTime(sourceProduct.getStartTime());
-        targetProduct.setEndTime(sourceProduct.getEndTime());
-        ProductUtils.copyTiePointGrids(sourceProduct, targetProduct);
-        ProductUtils.copyGeoCoding(sourceProduct, targetProduct);
+        final Map<GlobVegStage, Product> upstreamProducts = createUpstreamProducts(stages);
+        final Product faparProduct = upstreamProducts.get(GlobVegStage.FAPAR);
+        final Product laiProduct = upstreamProducts.get(GlobVegStage.LAI);
+        final Product rad2reflProduct = upstreamProducts.get(GlobVegStage.RAD2REFL);
+        final Product ndviSimpleProduct = upstreamProducts.get(GlobVegStage.NDVI_SIMPLE);
+        final Product idepixProduct = upstreamProducts.get(GlobVegStage.IDEPIX);
 
-        Band band = ProductUtils.copyBand("FAPAR", faparProduct, "fapar", targetProduct, true);
+        Product targetProduct = new Product(sourceProduct.getName(), sourceProduct.getProductType(),
+                                            regionProduct.getSceneRasterWidth(), regionProduct.getSceneRasterHeight());
+
+        targetProduct.setStartTime(getScanLineTime(0));
+        targetProduct.setEndTime(getScanLineTime(regionProduct.getSceneRasterHeight() - 1));
+        ProductUtils.copyTiePointGrids(regionProduct, targetProduct);
+        ProductUtils.copyGeoCoding(regionProduct, targetProduct);
+
+        // the FAPAR and LAI bands are copied in computeTileStack, so that skipped tiles do not pull their chains
+        stackCopiedBands = new LinkedHashMap<Band, Band>();
+        stackCopyQuantizers = new HashMap<Band, Quantizer>();
+        Quantizer faparQuantizer = createQuantizer(FAPAR_RANGE[0], FAPAR_RANGE[1]);
+        if (faparQuantizer != null) {
+            faparQuantizer = faparQuantizer.withValidMin(FAPAR_RANGE[0]);
+        }
+        Band band = copyBandInTileStack("FAPAR", faparProduct, "fapar", targetProduct, faparQuantizer,
+                                        GlobVegStage.FAPAR);
         band.setValidPixelExpression("fapar >= 0.0");
-        band.setNoDataValueUsed(false);
+        band.setNoDataValueUsed(faparQuantizer != null);
 
         if (copyFaparBands) {
             for (Band b:faparProduct.getBands()) {
                 if (!targetProduct.containsBand(b.getName())) {
-                    ProductUtils.copyBand(b.getName(), faparProduct, targetProduct, true);
+                    copyBandInTileStack(b.getName(), faparProduct, b.getName(), targetProduct, null,
+                                        GlobVegStage.FAPAR);
                 }
             }
         }
 
-        band = ProductUtils.copyBand("LAI", laiProduct, "lai", targetProduct, true);
+        band = copyBandInTileStack("LAI", laiProduct, "lai", targetProduct, null, GlobVegStage.LAI);
         band.setValidPixelExpression("valid_lai == 1");
         band.setNoDataValueUsed(false);
 
         String faparExpression = faparProduct.getBand("FAPAR").getValidMaskExpression();
-        BandMathsOp bandMathsOp1 = BandMathsOp.createBooleanExpressionBand(faparExpression, faparProduct);
-        validFaparMask = bandMathsOp1.getTargetProduct().getBandAt(0);
+        validFaparFlags = compileMask(faparExpression, faparProduct, GlobVegStage.FAPAR);
+        if (validFaparFlags == null) {
+            BandMathsOp bandMathsOp1 = BandMathsOp.createBooleanExpressionBand(faparExpression, faparProduct);
+            validFaparMask = bandMathsOp1.getTargetProduct().getBandAt(0);
+            instrumentSourceBand(validFaparMask, "BandMaths(valid_fapar)", "valid_fapar_mask");
+        }
 
         String laiExpression = laiProduct.getBand("LAI").getValidMaskExpression();
-        BandMathsOp bandMathsOp2 = BandMathsOp.createBooleanExpressionBand(laiExpression, laiProduct);
-        validLaiMask = bandMathsOp2.getTargetProduct().getBandAt(0);
+        validLaiFlags = compileMask(laiExpression, laiProduct, GlobVegStage.LAI);
+        if (validLaiFlags == null) {
+            BandMathsOp bandMathsOp2 = BandMathsOp.createBooleanExpressionBand(laiExpression, laiProduct);
+            validLaiMask = bandMathsOp2.getTargetProduct().getBandAt(0);
+            instrumentSourceBand(validLaiMask, "BandMaths(valid_lai)", "valid_lai_mask");
+        }
 
-        timeBand = targetProduct.addBand("obs_time", ProductData.TYPE_FLOAT32);
-        validFaparBand = targetProduct.addBand("valid_fapar", ProductData.TYPE_INT8);
-        validLaiBand = targetProduct.addBand("valid_lai", ProductData.TYPE_INT8);
+        timeQuantizer = createTimeQuantizer();
+        if (timeQuantizer != null) {
+            timeBand = targetProduct.addBand("obs_time", timeQuantizer.getDataType());
+            timeQuantizer.applyTo(timeBand);
+        } else {
+            timeBand = targetProduct.addBand("obs_time", ProductData.TYPE_FLOAT32);
+        }
+        if (packQualityFlags) {
+            qualityFlags = new QualityFlags(idepixProduct);
+            l1FlagsBand = idepixProduct.getBand(QualityFlags.L1_FLAGS_BAND_NAME);
+            cloudFlagsBand = idepixProduct.getBand(QualityFlags.CLOUD_FLAGS_BAND_NAME);
+            instrumentSourceBand(l1FlagsBand, GlobVegStage.IDEPIX.getOperatorAlias(), l1FlagsBand.getName());
+            instrumentSourceBand(cloudFlagsBand, GlobVegStage.IDEPIX.getOperatorAlias(), cloudFlagsBand.getName());
+            final FlagCoding flagCoding = QualityFlags.createFlagCoding();
+            targetProduct.getFlagCodingGroup().add(flagCoding);
+            qualityBand = targetProduct.addBand(QualityFlags.BAND_NAME, ProductData.TYPE_UINT16);
+            qualityBand.setSampleCoding(flagCoding);
+            validFaparBand = addVirtualBand(targetProduct, "valid_fapar", QualityFlags.VALID_FAPAR_EXPRESSION);
+            validLaiBand = addVirtualBand(targetProduct, "valid_lai", QualityFlags.VALID_LAI_EXPRESSION);
+        } else {
+            validFaparBand = targetProduct.addBand("valid_fapar", ProductData.TYPE_INT8);
+            validLaiBand = targetProduct.addBand("valid_lai", ProductData.TYPE_INT8);
+        }
 
         if (outputReflectanceBands) {
             for (int i = 0; i < EnvisatConstants.MERIS_L1B_NUM_SPECTRAL_BANDS; i++) {
                 final Band b = rad2reflProduct.getBand(Rad2ReflOp.RHO_TOA_BAND_PREFIX + "_" + (i + 1));
-                ProductUtils.copyBand(b.getName(), rad2reflProduct, targetProduct, true);
+                instrumentCopiedBand(copyBand(b.getName(), rad2reflProduct, b.getName(), targetProduct,
+                                              createQuantizer(REFLECTANCE_RANGE[0], REFLECTANCE_RANGE[1])),
+                                     GlobVegStage.RAD2REFL);
             }
         }
 
         if (computeNdviKg) {
-            merisReflBands = new Band[EnvisatConstants.MERIS_L1B_NUM_SPECTRAL_BANDS];
-            for (int i = 0; i < EnvisatConstants.MERIS_L1B_NUM_SPECTRAL_BANDS; i++) {
-                merisReflBands[i] = rad2reflProduct.getBand(Rad2ReflOp.RHO_TOA_BAND_PREFIX + "_" + (i + 1));
+            merisReflBands = new Band[NDVI_KG_BAND_INDICES.length];
+            for (int i = 0; i < NDVI_KG_BAND_INDICES.length; i++) {
+                merisReflBands[i] = rad2reflProduct.getBand(Rad2ReflOp.RHO_TOA_BAND_PREFIX + "_" + (NDVI_KG_BAND_INDICES[i] + 1));
+                instrumentSourceBand(merisReflBands[i], GlobVegStage.RAD2REFL.getOperatorAlias(),
+                                     merisReflBands[i].getName());
             }
 
-//            ndviKgBand = targetProduct.addBand("ndvi_kg", ProductData.TYPE_FLOAT32);
-            ndviKgBand = targetProduct.addBand("ndvi_kg", ProductData.TYPE_INT16);
+            ndviKgQuantizer = createQuantizer(NDVI_RANGE[0], NDVI_RANGE[1]);
+            if (ndviKgQuantizer != null) {
+                ndviKgBand = targetProduct.addBand("ndvi_kg", ndviKgQuantizer.getDataType());
+                ndviKgQuantizer.applyTo(ndviKgBand);
+            } else {
+                // cloudy pixels are set to a declared no-data value instead of 0
+                ndviKgQuantizer = NDVI_X10000_QUANTIZER;
+                ndviKgBand = targetProduct.addBand("ndvi_kg", ProductData.TYPE_INT16);
+                ndviKgBand.setNoDataValue(ndviKgQuantizer.getNoDataRaw());
+                ndviKgBand.setNoDataValueUsed(true);
+            }
 
             if (outputNdviSimple) {
                 // for comparison purpose:
                 // ndvi_simple = (rad10 - rad6)/(rad10 + rad6)
-                ProductUtils.copyBand("ndvi", ndviSimpleProduct, "ndvi_from_radiance_6_and_10", targetProduct, true);
+                instrumentCopiedBand(copyBand("ndvi", ndviSimpleProduct, "ndvi_from_radiance_6_and_10", targetProduct,
+                                              createQuantizer(NDVI_RANGE[0], NDVI_RANGE[1])),
+                                     GlobVegStage.NDVI_SIMPLE);
             }
         }
 
-        // use now renovated Idepix:
-        Map<String, Object> pixelClassParam = new HashMap<String, Object>(4);
-        pixelClassParam.put("gaCopyRadiances", false);
-        pixelClassParam.put("gaCopyAnnotations", false);
-        pixelClassParam.put("gaComputeFlagsOnly", true);
-        pixelClassParam.put("gaCloudBufferWidth", 3);
-        pixelClassParam.put("gaUseL1bLandWaterFlag", false);
-        pixelClassParam.put("gaLcCloudBuffer", true);
-        pixelClassParam.put("gaApplyBlueDenseCloudAlgorithm", true);
+        if (!packQualityFlags) {
+            ProductUtils.copyFlagBands(idepixProduct, targetProduct, true);
+            for (Band b : idepixProduct.getBands()) {
+                if (b.isFlagBand() && targetProduct.containsBand(b.getName())) {
+                    instrumentCopiedBand(targetProduct.getBand(b.getName()), GlobVegStage.IDEPIX);
+                }
+            }
+        }
 
-        Product idepixProduct = GPF.createProduct(OperatorSpi.getOperatorAlias(GlobAlbedoOp.class), pixelClassParam, sourceProduct);
-        ProductUtils.copyFlagBands(idepixProduct, targetProduct, true);
+        cloudFreeFlags = compileMask(CLOUD_FREE_EXPRESSION, idepixProduct, GlobVegStage.IDEPIX);
+        if (cloudFreeFlags == null) {
+            BandMathsOp bandMathsOp3 = BandMathsOp.createBooleanExpressionBand(CLOUD_FREE_EXPRESSION, idepixProduct);
+            cloudFreeBand = bandMathsOp3.getTargetProduct().getBandAt(0);
+            instrumentSourceBand(cloudFreeBand, "BandMaths(cloud_free)", "cloud_free_mask");
+        }
 
-        String cloudFreeExpression = "not l1_flags.INVALID " +
-                "and not cloud_classif_flags.F_WATER " +
-                "and not cloud_classif_flags.F_CLOUD " +
-                "and not cloud_classif_flags.F_CLOUD_BUFFER " +
-                "and not cloud_classif_flags.F_CLOUD_SHADOW " +
-                "and cloud_classif_flags.F_CLEAR_LAND";
+        setTargetProduct(targetProduct);
+    }
 
-        BandMathsOp bandMathsOp3 = BandMathsOp.createBooleanExpressionBand(cloudFreeExpression, idepixProduct);
-        cloudFreeBand = bandMathsOp3.getTargetProduct().getBandAt(0);
+    @Override
+    public void dispose() {
+        if (tileCount.get() > 0) {
+            getLogger().info(String.format("GlobVeg: %d of %d tiles skipped (no clear land pixel)",
+                                           skippedTileCount.get(), tileCount.get()));
+        }
+        if (metrics != null) {
+            try {
+                metrics.writeReport(instrumentationFile, skippedTileCount.get());
+                getLogger().info("GlobVeg: instrumentation written to " + instrumentationFile);
+            } catch (IOException e) {
+                getLogger().warning("GlobVeg: failed to write instrumentation: " + e.getMessage());
+            }
+            metrics = null;
+        }
+        super.dispose();
+    }
 
-        setTargetProduct(targetProduct);
+    /**
+     * @return a quantizer of the configured type for the value range, null if the output is not quantized
+     */
+    private Quantizer createQuantizer(double minValue, double maxValue) {
+        if (!isQuantized()) {
+            return null;
+        }
+        return Quantizer.create(ProductData.getType(quantizedDataType.toLowerCase()), minValue, maxValue);
+    }
+
+    // the range of obs_time is the time range of the full source product, which is much finer than a float MJD.
+    // It does not depend on the region, so the stripes of a scene are quantized alike.
+    private Quantizer createTimeQuantizer() {
+        if (!isQuantized()) {
+            return null;
+        }
+        final double firstMjd = ProductUtils.getScanLineTime(sourceProduct, 0).getMJD();
+        final double lastMjd = ProductUtils.getScanLineTime(sourceProduct,
+                                                            sourceProduct.getSceneRasterHeight() - 1).getMJD();
+        final double minMjd = Math.min(firstMjd, lastMjd);
+        // at least one second
+        final double maxMjd = Math.max(Math.max(firstMjd, lastMjd), minMjd + 1.0 / 86400.0);
+        return createQuantizer(minMjd, maxMjd);
+    }
+
+    private static Band addVirtualBand(Product targetProduct, String name, String expression) {
+        final Band band = new VirtualBand(name, ProductData.TYPE_INT8,
+                                          targetProduct.getSceneRasterWidth(), targetProduct.getSceneRasterHeight(),
+                                          expression);
+        targetProduct.addBand(band);
+        return band;
+    }
+
+    private boolean isQuantized() {
+        return !"NONE".equals(quantizedDataType);
+    }
+
+    private static Band copyBand(String sourceBandName, Product sourceProduct, String targetBandName,
+                                 Product targetProduct, Quantizer quantizer) {
+        if (quantizer == null) {
+            return ProductUtils.copyBand(sourceBandName, sourceProduct, targetBandName, targetProduct, true);
+        }
+        final Band sourceBand = sourceProduct.getBand(sourceBandName);
+        final Band targetBand = targetProduct.addBand(targetBandName, quantizer.getDataType());
+        targetBand.setDescription(sourceBand.getDescription());
+        targetBand.setUnit(sourceBand.getUnit());
+        ProductUtils.copySpectralBandProperties(sourceBand, targetBand);
+        targetBand.setValidPixelExpression(sourceBand.getValidPixelExpression());
+        quantizer.applyTo(targetBand);
+        targetBand.setSourceImage(GlobvegUtils.quantize(sourceBand.getGeophysicalImage(), quantizer));
+        return targetBand;
+    }
+
+    /**
+     * Adds a target band without source image, whose tiles are copied from the source band in computeTileStack.
+     */
+    private Band copyBandInTileStack(String sourceBandName, Product sourceProduct, String targetBandName,
+                                     Product targetProduct, Quantizer quantizer, GlobVegStage stage) {
+        final Band sourceBand = sourceProduct.getBand(sourceBandName);
+        final Band targetBand;
+        if (quantizer == null) {
+            targetBand = ProductUtils.copyBand(sourceBandName, sourceProduct, targetBandName, targetProduct, false);
+        } else {
+            targetBand = targetProduct.addBand(targetBandName, quantizer.getDataType());
+            targetBand.setDescription(sourceBand.getDescription());
+            targetBand.setUnit(sourceBand.getUnit());
+            targetBand.setValidPixelExpression(sourceBand.getValidPixelExpression());
+            quantizer.applyTo(targetBand);
+            stackCopyQuantizers.put(targetBand, quantizer);
+        }
+        stackCopiedBands.put(targetBand, sourceBand);
+        instrumentSourceBand(sourceBand, stage.getOperatorAlias(), sourceBandName);
+        return targetBand;
+    }
+
+    private void instrumentCopiedBand(Band targetBand, GlobVegStage stage) {
+        if (metrics != null) {
+            targetBand.setSourceImage(new InstrumentedOpImage(targetBand.getSourceImage(), metrics,
+                                                              stage.getOperatorAlias(), targetBand.getName()));
+        }
+    }
+
+    private void instrumentSourceBand(Band sourceBand, String stage, String name) {
+        if (metrics != null) {
+            sourceTileStages.put(sourceBand, stage);
+            sourceTileNames.put(sourceBand, name);
+        }
+    }
+
+    private FlagMaskExpression compileMask(String expression, Product product, GlobVegStage stage) {
+        final FlagMaskExpression flagMask = FlagMaskExpression.compile(expression, product);
+        if (flagMask != null) {
+            for (Band flagBand : flagMask.getBands()) {
+                instrumentSourceBand(flagBand, stage.getOperatorAlias(), flagBand.getName());
+            }
+        }
+        return flagMask;
+    }
+
+    long getTileCount() {
+        return tileCount.get();
+    }
+
+    long getSkippedTileCount() {
+        return skippedTileCount.get();
+    }
+
+    /**
+     * Determines for each group of target bands the upstream stages it is computed from.
+     *
+     * @return the required stages (including transitive dependencies) per target band group
+     */
+    static Map<String, Set<GlobVegStage>> resolveBandDependencies(boolean computeNdviKg,
+                                                                  boolean outputReflectanceBands,
+                                                                  boolean outputNdviSimple) {
+        final Map<String, Set<GlobVegStage>> bandDependencies = new LinkedHashMap<String, Set<GlobVegStage>>();
+        bandDependencies.put("fapar", GlobVegStage.closure(GlobVegStage.FAPAR));
+        bandDependencies.put("lai", GlobVegStage.closure(GlobVegStage.LAI));
+        bandDependencies.put("valid_fapar", GlobVegStage.closure(GlobVegStage.FAPAR, GlobVegStage.IDEPIX));
+        bandDependencies.put("valid_lai", GlobVegStage.closure(GlobVegStage.LAI, GlobVegStage.IDEPIX));
+        bandDependencies.put("cloud flags", GlobVegStage.closure(GlobVegStage.IDEPIX));
+        if (outputReflectanceBands) {
+            bandDependencies.put(Rad2ReflOp.RHO_TOA_BAND_PREFIX + "_*", GlobVegStage.closure(GlobVegStage.RAD2REFL));
+        }
+        if (computeNdviKg) {
+            bandDependencies.put("ndvi_kg", GlobVegStage.closure(GlobVegStage.RAD2REFL, GlobVegStage.IDEPIX));
+            if (outputNdviSimple) {
+                bandDependencies.put("ndvi_from_radiance_6_and_10", GlobVegStage.closure(GlobVegStage.NDVI_SIMPLE));
+            }
+        }
+        return bandDependencies;
+    }
+
+    private static String formatDependencyGraph(Map<String, Set<GlobVegStage>> bandDependencies,
+                                                Set<GlobVegStage> stages) {
+        final StringBuilder sb = new StringBuilder("GlobVeg dependency graph:\n");
+        for (GlobVegStage stage : stages) {
+            final GlobVegStage sourceStage = stage.getSourceStage();
+            sb.append("  ").append(stage.getOperatorAlias()).append(" <- ")
+                    .append(sourceStage != null ? sourceStage.getOperatorAlias() : "source product").append("\n");
+        }
+        sb.append("GlobVeg target bands:\n");
+        for (Map.Entry<String, Set<GlobVegStage>> entry : bandDependencies.entrySet()) {
+            sb.append("  ").append(entry.getKey()).append(" <- ");
+            boolean first = true;
+            for (GlobVegStage stage : entry.getValue()) {
+                sb.append(first ? "" : ", ").append(stage.getOperatorAlias());
+                first = false;
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    private Map<GlobVegStage, Product> createUpstreamProducts(Set<GlobVegStage> stages) {
+        final Map<GlobVegStage, Product> upstreamProducts = new EnumMap<GlobVegStage, Product>(GlobVegStage.class);
+        // iteration order of the set is the declaration order, so sources are always created first
+        for (GlobVegStage stage : stages) {
+            final GlobVegStage sourceStage = stage.getSourceStage();
+            final Product stageSourceProduct = sourceStage != null ? upstreamProducts.get(sourceStage) : regionProduct;
+            upstreamProducts.put(stage, GPF.createProduct(stage.getOperatorAlias(),
+                                                          createStageParameters(stage),
+                                                          stageSourceProduct));
+        }
+        return upstreamProducts;
+    }
+
+    /**
+     * @return the time of a scan line of the target product, taken from the scan line of the full source product
+     */
+    private ProductData.UTC getScanLineTime(int y) {
+        return ProductUtils.getScanLineTime(sourceProduct, regionOffsetY + y);
+    }
+
+    /**
+     * Reads the regions to process.
+     *
+     * @return the region and the (selected) sites of the sites file, null if neither is given
+     */
+    static List<Geometry> readRegions(String region, File sitesFile, String[] siteNames) {
+        if ((region == null || region.trim().isEmpty()) && sitesFile == null) {
+            return null;
+        }
+        final List<Geometry> regions = new ArrayList<Geometry>();
+        if (region != null && !region.trim().isEmpty()) {
+            try {
+                regions.add(new WKTReader().read(region));
+            } catch (ParseException e) {
+                throw new OperatorException("Invalid region '" + region + "': " + e.getMessage(), e);
+            }
+        }
+        if (sitesFile != null) {
+            final List<String> selectedNames = siteNames != null ? Arrays.asList(siteNames) : null;
+            try {
+                for (StackTimeSeriesExtractor.Site site : ExtractTimeSeriesOp.readSites(sitesFile)) {
+                    if (selectedNames == null || selectedNames.contains(site.name)) {
+                        regions.add(site.geometry);
+                    }
+                }
+            } catch (IOException e) {
+                throw new OperatorException("Failed to read sites file " + sitesFile + ": " + e.getMessage(), e);
+            }
+        }
+        return regions;
+    }
+
+    /**
+     * Computes the pixel window covering the regions, extended by the Idepix cloud buffer margin, so that the
+     * cloud buffer of the region pixels is complete.
+     *
+     * @return the window, empty if the product does not intersect any region
+     */
+    static Rectangle computePixelRegion(Product product, List<Geometry> regions) {
+        final Rectangle sceneRectangle = new Rectangle(product.getSceneRasterWidth(), product.getSceneRasterHeight());
+        Rectangle pixelRegion = null;
+        for (Geometry geometry : regions) {
+            final Rectangle regionRectangle =
+                    SubsetOp.computePixelRegion(product, geometry, CLOUD_BUFFER_WIDTH).intersection(sceneRectangle);
+            if (!regionRectangle.isEmpty()) {
+                pixelRegion = pixelRegion == null ? regionRectangle : pixelRegion.union(regionRectangle);
+            }
+        }
+        return pixelRegion != null ? pixelRegion : new Rectangle();
+    }
+
+    private static Product createSubset(Product product, Rectangle pixelRegion) {
+        final Map<String, Object> subsetParameters = new HashMap<String, Object>();
+        subsetParameters.put("region", pixelRegion);
+        subsetParameters.put("copyMetadata", true);
+        return GPF.createProduct(OperatorSpi.getOperatorAlias(SubsetOp.class), subsetParameters, product);
+    }
+
+    private static Map<String, Object> createStageParameters(GlobVegStage stage) {
+        switch (stage) {
+            case FAPAR:
+                Map<String, Object> faparParms = new HashMap<String, Object>();
+//                faparParms.put("nirRedFilterFactor", 0.0);
+                faparParms.put("outputFaparAsInt", false); // set back to false on behalf of UG, 20140404
+                return faparParms;
+            case LAI:
+                Map<String, Object> laiParms = new HashMap<String, Object>();
+                laiParms.put("outputLaiAsInt", true);
+                return laiParms;
+            case IDEPIX:
+                // use now renovated Idepix:
+                Map<String, Object> pixelClassParam = new HashMap<String, Object>(4);
+                pixelClassParam.put("gaCopyRadiances", false);
+                pixelClassParam.put("gaCopyAnnotations", false);
+                pixelClassParam.put("gaComputeFlagsOnly", true);
+                pixelClassParam.put("gaCloudBufferWidth", CLOUD_BUFFER_WIDTH);
+                pixelClassParam.put("gaUseL1bLandWaterFlag", false);
+                pixelClassParam.put("gaLcCloudBuffer", true);
+                pixelClassParam.put("gaApplyBlueDenseCloudAlgorithm", true);
+                return pixelClassParam;
+            default:
+                return GPF.NO_PARAMS;
+        }
     }
 
     @Override
     public void computeTileStack(Map<Band, Tile> targetTiles, Rectangle targetRectangle, ProgressMonitor pm) throws OperatorException {
+        if (metrics == null) {
+            computeTargetTiles(targetTiles, targetRectangle);
+            return;
+        }
+        final long wallStart = System.nanoTime();
+        final long cpuStart = metrics.getThreadCpuTime();
+        try {
+            computeTargetTiles(targetTiles, targetRectangle);
+        } finally {
+            metrics.recordComputeTileStack(System.nanoTime() - wallStart, metrics.getThreadCpuTime() - cpuStart);
+        }
+    }
+
+    private Tile getInstrumentedSourceTile(Band band, Rectangle rectangle) {
+        if (metrics == null) {
+            return getSourceTile(band, rectangle);
+        }
+        final long wallStart = System.nanoTime();
+        final long cpuStart = metrics.getThreadCpuTime();
+        final Tile tile = getSourceTile(band, rectangle);
+        metrics.recordSourceTile(sourceTileStages.get(band), sourceTileNames.get(band), tile.getRaster(),
+                                 System.nanoTime() - wallStart, metrics.getThreadCpuTime() - cpuStart);
+        return tile;
+    }
+
+    /**
+     * @return the mask samples of the rectangle, 1 where the mask is set, 0 elsewhere
+     */
+    private int[] getMaskSamples(FlagMaskExpression flagMask, Band maskBand, Rectangle rectangle) {
+        if (flagMask == null) {
+            return getInstrumentedSourceTile(maskBand, rectangle).getSamplesInt();
+        }
+        final Band[] flagBands = flagMask.getBands();
+        final int[][] flagSamples = new int[flagBands.length][];
+        for (int i = 0; i < flagBands.length; i++) {
+            flagSamples[i] = getInstrumentedSourceTile(flagBands[i], rectangle).getSamplesInt();
+        }
+        final int[] maskSamples = new int[rectangle.width * rectangle.height];
+        flagMask.evaluate(flagSamples, maskSamples);
+        return maskSamples;
+    }
+
+    private void computeTargetTiles(Map<Band, Tile> targetTiles, Rectangle targetRectangle) {
         Tile time = targetTiles.get(timeBand);
         Tile targetValidFapar = targetTiles.get(validFaparBand);
         Tile targetValidLai = targetTiles.get(validLaiBand);
         Tile targetNdviKg = targetTiles.get(ndviKgBand);
+        // the valid bands are virtual and have no tiles if quality flags are packed
+        Tile targetQuality = qualityBand != null ? targetTiles.get(qualityBand) : null;
+
+        // cheap pre-pass: the FAPAR, LAI and reflectance tiles are only requested if there is any clear land
+        final int[] cloudFreeSamples = getMaskSamples(cloudFreeFlags, cloudFreeBand, targetRectangle);
+        final double[] rowMjds = new double[targetRectangle.height];
+        for (int j = 0; j < rowMjds.length; j++) {
+            rowMjds[j] = getScanLineTime(targetRectangle.y + j).getMJD();
+        }
+        tileCount.incrementAndGet();
+        if (!containsNonZero(cloudFreeSamples)) {
+            skippedTileCount.incrementAndGet();
+            computeInvalidTile(targetRectangle, rowMjds, time, timeQuantizer,
+                               targetValidFapar, targetValidLai, targetNdviKg, ndviKgQuantizer);
+            for (Band targetBand : stackCopiedBands.keySet()) {
+                fillNoData(targetTiles.get(targetBand), targetBand);
+            }
+            if (targetQuality != null) {
+                computeQuality(targetRectangle, targetQuality, cloudFreeSamples, null, null);
+            }
+            return;
+        }
+
+        for (Map.Entry<Band, Band> entry : stackCopiedBands.entrySet()) {
+            copyTile(targetTiles.get(entry.getKey()), getInstrumentedSourceTile(entry.getValue(), targetRectangle),
+                     stackCopyQuantizers.get(entry.getKey()));
+        }
 
-        Tile srcValidFapar = getSourceTile(validFaparMask, targetRectangle);
-        Tile srcValidLai = getSourceTile(validLaiMask, targetRectangle);
-        Tile cloudFree = getSourceTile(cloudFreeBand, targetRectangle);
+        final int[] validFaparSamples = getMaskSamples(validFaparFlags, validFaparMask, targetRectangle);
+        final int[] validLaiSamples = getMaskSamples(validLaiFlags, validLaiMask, targetRectangle);
 
         Tile[] merisReflectanceTiles = null;
         if (computeNdviKg) {
-            merisReflectanceTiles = new Tile[EnvisatConstants.MERIS_L1B_NUM_SPECTRAL_BANDS];
-            for (int i = 0; i < EnvisatConstants.MERIS_L1B_NUM_SPECTRAL_BANDS; i++) {
-                merisReflectanceTiles[i] = getSourceTile(merisReflBands[i], targetRectangle);
+            merisReflectanceTiles = new Tile[merisReflBands.length];
+            for (int i = 0; i < merisReflBands.length; i++) {
+                merisReflectanceTiles[i] = getInstrumentedSourceTile(merisReflBands[i], targetRectangle);
             }
         }
 
+        final float[] timeFloatData = time.getDataBufferFloat();
+        final short[] timeShortData = timeFloatData == null ? getShortDataBuffer(time) : null;
+        if ((timeFloatData != null || timeShortData != null) &&
+                (targetValidFapar == null || targetValidFapar.getDataBufferByte() != null) &&
+                (targetValidLai == null || targetValidLai.getDataBufferByte() != null) &&
+                (targetNdviKg == null || getShortDataBuffer(targetNdviKg) != null)) {
+            computeTileStackFromArrays(targetRectangle, rowMjds, time, timeFloatData, timeShortData, timeQuantizer,
+                                       targetValidFapar, targetValidLai, targetNdviKg, ndviKgQuantizer,
+                                       validFaparSamples, validLaiSamples, cloudFreeSamples, merisReflectanceTiles);
+        } else {
+            computeTileStackPerPixel(targetRectangle, rowMjds, time, timeQuantizer,
+                                     targetValidFapar, targetValidLai, targetNdviKg, ndviKgQuantizer,
+                                     validFaparSamples, validLaiSamples, cloudFreeSamples, merisReflectanceTiles);
+        }
+        if (targetQuality != null) {
+            computeQuality(targetRectangle, targetQuality, cloudFreeSamples, validFaparSamples, validLaiSamples);
+        }
+    }
+
+    private void computeQuality(Rectangle targetRectangle, Tile targetQuality, int[] cloudFreeSamples,
+                                int[] validFaparSamples, int[] validLaiSamples) {
+        final int[] l1Flags = getInstrumentedSourceTile(l1FlagsBand, targetRectangle).getSamplesInt();
+        final int[] cloudFlags = getInstrumentedSourceTile(cloudFlagsBand, targetRectangle).getSamplesInt();
+        final int[] quality = new int[targetRectangle.width * targetRectangle.height];
+        qualityFlags.pack(l1Flags, cloudFlags, cloudFreeSamples, validFaparSamples, validLaiSamples, quality);
+        targetQuality.setSamples(quality);
+    }
+
+    /**
+     * @return the INT16 or UINT16 data buffer of the tile, null for other types
+     */
+    static short[] getShortDataBuffer(Tile tile) {
+        final Object elems = tile.getDataBuffer().getElems();
+        return elems instanceof short[] ? (short[]) elems : null;
+    }
+
+    /**
+     * The array path of computeTileStack, which writes the target samples directly into the data buffers.
+     * It must give the same raw samples as {@link #computeTileStackPerPixel}.
+     *
+     * @param rowMjds the obs_time of each row of the target rectangle
+     */
+    static void computeTileStackFromArrays(Rectangle targetRectangle, double[] rowMjds,
+                                           Tile time, float[] timeFloatData, short[] timeShortData,
+                                           Quantizer timeQuantizer,
+                                           Tile targetValidFapar, Tile targetValidLai, Tile targetNdviKg,
+                                           Quantizer ndviKgQuantizer,
+                                           int[] validFaparSamples, int[] validLaiSamples, int[] cloudFreeSamples,
+                                           Tile[] merisReflectanceTiles) {
+        final int width = targetRectangle.width;
+        final int height = targetRectangle.height;
+
+        // source samples come as contiguous arrays covering exactly the target rectangle
+
+        float[] ndviKgSamples = null;
+        if (targetNdviKg != null) {
+            ndviKgSamples = new float[width * height];
+            computeNdviKgValues(ALPLA_KG, BETA_KG,
+                                merisReflectanceTiles[0].getSamplesFloat(),
+                                merisReflectanceTiles[1].getSamplesFloat(),
+                                merisReflectanceTiles[2].getSamplesFloat(),
+                                merisReflectanceTiles[3].getSamplesFloat(),
+                                merisReflectanceTiles[4].getSamplesFloat(),
+                                merisReflectanceTiles[5].getSamplesFloat(),
+                                merisReflectanceTiles[6].getSamplesFloat(),
+                                ndviKgSamples);
+        }
+
+        // target samples are written directly into the raster data buffers
+        final byte[] validFaparData = targetValidFapar != null ? targetValidFapar.getDataBufferByte() : null;
+        final byte[] validLaiData = targetValidLai != null ? targetValidLai.getDataBufferByte() : null;
+        final short[] ndviKgData = targetNdviKg != null ? getShortDataBuffer(targetNdviKg) : null;
+
+        for (int j = 0; j < height; j++) {
+            final double mjd = rowMjds[j];
+            final int timeIndex = time.getScanlineOffset() + j * time.getScanlineStride();
+            if (timeFloatData != null) {
+                Arrays.fill(timeFloatData, timeIndex, timeIndex + width, (float) mjd);
+            } else {
+                Arrays.fill(timeShortData, timeIndex, timeIndex + width, (short) timeQuantizer.quantize(mjd));
+            }
+
+            computeRow(width, j * width, cloudFreeSamples, validFaparSamples, validLaiSamples, ndviKgSamples,
+                       validFaparData, validFaparData != null ? targetValidFapar.getScanlineOffset() + j * targetValidFapar.getScanlineStride() : 0,
+                       validLaiData, validLaiData != null ? targetValidLai.getScanlineOffset() + j * targetValidLai.getScanlineStride() : 0,
+                       ndviKgData, ndviKgData != null ? targetNdviKg.getScanlineOffset() + j * targetNdviKg.getScanlineStride() : 0,
+                       ndviKgQuantizer);
+        }
+    }
+
+    /**
+     * Computes one row of the target samples from the source sample arrays.
+     * The valid_fapar and valid_lai arrays may be null if they are virtual bands,
+     * the ndvi_kg arrays and quantizer may be null if no NDVI is computed.
+     * Cloudy pixels get the no-data value of ndvi_kg.
+     */
+    static void computeRow(int width, int srcIndex,
+                           int[] cloudFreeSamples, int[] validFaparSamples, int[] validLaiSamples, float[] ndviKgSamples,
+                           byte[] validFaparData, int validFaparIndex,
+                           byte[] validLaiData, int validLaiIndex,
+                           short[] ndviKgData, int ndviKgIndex, Quantizer ndviKgQuantizer) {
+        for (int i = 0; i < width; i++) {
+            final boolean isCloudFree = cloudFreeSamples[srcIndex] != 0;
+            if (validFaparData != null) {
+                validFaparData[validFaparIndex++] = (byte) (isCloudFree && validFaparSamples[srcIndex] != 0 ? 1 : 0);
+            }
+            if (validLaiData != null) {
+                validLaiData[validLaiIndex++] = (byte) (isCloudFree && validLaiSamples[srcIndex] != 0 ? 1 : 0);
+            }
+            if (ndviKgData != null) {
+                ndviKgData[ndviKgIndex++] = (short) ndviKgQuantizer.quantize(isCloudFree ? ndviKgSamples[srcIndex] : Float.NaN);
+            }
+            srcIndex++;
+        }
+    }
+
+    /**
+     * The per-pixel path of computeTileStack, for target tiles whose data buffers cannot be written directly.
+     *
+     * @param rowMjds the obs_time of each row of the target rectangle
+     */
+    static void computeTileStackPerPixel(Rectangle targetRectangle, double[] rowMjds,
+                                         Tile time, Quantizer timeQuantizer,
+                                         Tile targetValidFapar, Tile targetValidLai, Tile targetNdviKg,
+                                         Quantizer ndviKgQuantizer,
+                                         int[] validFaparSamples, int[] validLaiSamples, int[] cloudFreeSamples,
+                                         Tile[] merisReflectanceTiles) {
+        // ndvi_kg and a quantized obs_time are written raw, as Tile.setSample would truncate to the raw value
+        // below, not round like the quantizer
+        final ProductData ndviKgData = targetNdviKg != null ? targetNdviKg.getDataBuffer() : null;
+        final ProductData timeData = timeQuantizer != null ? time.getDataBuffer() : null;
         for (int y = targetRectangle.y; y < targetRectangle.y + targetRectangle.height; y++) {
-            final ProductData.UTC utcCurrentLine = ProductUtils.getScanLineTime(sourceProduct, y);
-            double mjd = utcCurrentLine.getMJD();
+            final double mjd = rowMjds[y - targetRectangle.y];
+            final int timeRaw = timeData != null ? timeQuantizer.quantize(mjd) : 0;
             for (int x = targetRectangle.x; x < targetRectangle.x + targetRectangle.width; x++) {
-                time.setSample(x, y, mjd);
-                boolean isCloudFree = cloudFree.getSampleBoolean(x, y);
-                targetValidFapar.setSample(x, y, srcValidFapar.getSampleBoolean(x, y) && isCloudFree);
-                targetValidLai.setSample(x, y, srcValidLai.getSampleBoolean(x, y) && isCloudFree);
-
-                if (computeNdviKg) {
-                    if (isCloudFree) {
-//                        targetNdviKg.setSample(x, y, computeNdviKg(x, y, merisReflectanceTiles));
-                        final float ndviKg = computeNdviKg(x, y, merisReflectanceTiles);
-                        targetNdviKg.setSample(x, y, (int) (ndviKg*10000.0f));
-                    } else {
-                        targetNdviKg.setSample(x, y, Float.NaN);
-                    }
+                if (timeData != null) {
+                    timeData.setElemIntAt(time.getDataBufferIndex(x, y), timeRaw);
+                } else {
+                    time.setSample(x, y, mjd);
+                }
+                final int srcIndex = (y - targetRectangle.y) * targetRectangle.width + x - targetRectangle.x;
+                boolean isCloudFree = cloudFreeSamples[srcIndex] != 0;
+                if (targetValidFapar != null) {
+                    targetValidFapar.setSample(x, y, validFaparSamples[srcIndex] != 0 && isCloudFree);
+                }
+                if (targetValidLai != null) {
+                    targetValidLai.setSample(x, y, validLaiSamples[srcIndex] != 0 && isCloudFree);
+                }
+
+                if (ndviKgData != null) {
+                    final float ndviKg = isCloudFree ? computeNdviKg(x, y, merisReflectanceTiles) : Float.NaN;
+                    ndviKgData.setElemIntAt(targetNdviKg.getDataBufferIndex(x, y), ndviKgQuantizer.quantize(ndviKg));
                 }
             }
         }
     }
 
-    private float computeNdviKg(int x, int y, Tile[] merisReflectanceTiles) {
+    /**
+     * Fills the target tiles of a tile without any clear land pixel, with the same raw samples as the other
+     * paths give for all pixels cloudy.
+     *
+     * @param rowMjds the obs_time of each row of the target rectangle
+     */
+    static void computeInvalidTile(Rectangle targetRectangle, double[] rowMjds, Tile time, Quantizer timeQuantizer,
+                                   Tile targetValidFapar, Tile targetValidLai, Tile targetNdviKg,
+                                   Quantizer ndviKgQuantizer) {
+        final ProductData ndviKgData = targetNdviKg != null ? targetNdviKg.getDataBuffer() : null;
+        final ProductData timeData = timeQuantizer != null ? time.getDataBuffer() : null;
+        for (int y = targetRectangle.y; y < targetRectangle.y + targetRectangle.height; y++) {
+            final double mjd = rowMjds[y - targetRectangle.y];
+            final int timeRaw = timeData != null ? timeQuantizer.quantize(mjd) : 0;
+            for (int x = targetRectangle.x; x < targetRectangle.x + targetRectangle.width; x++) {
+                if (timeData != null) {
+                    timeData.setElemIntAt(time.getDataBufferIndex(x, y), timeRaw);
+                } else {
+                    time.setSample(x, y, mjd);
+                }
+                if (targetValidFapar != null) {
+                    targetValidFapar.setSample(x, y, false);
+                }
+                if (targetValidLai != null) {
+                    targetValidLai.setSample(x, y, false);
+                }
+                if (ndviKgData != null) {
+                    ndviKgData.setElemIntAt(targetNdviKg.getDataBufferIndex(x, y), ndviKgQuantizer.getNoDataRaw());
+                }
+            }
+        }
+    }
+
+    private static void copyTile(Tile targetTile, Tile sourceTile, Quantizer quantizer) {
+        if (quantizer == null) {
+            targetTile.setRawSamples(sourceTile.getRawSamples());
+            return;
+        }
+        final float[] values = sourceTile.getSamplesFloat();
+        final ProductData raw = targetTile.getRawSamples();
+        for (int i = 0; i < values.length; i++) {
+            raw.setElemIntAt(i, quantizer.quantize(values[i]));
+        }
+        targetTile.setRawSamples(raw);
+    }
+
+    // the no-data value of the band, NaN or 0 if it has none
+    private static void fillNoData(Tile targetTile, Band targetBand) {
+        final double fillValue;
+        if (targetBand.isNoDataValueUsed()) {
+            fillValue = targetBand.getNoDataValue();
+        } else {
+            fillValue = targetBand.isFloatingPointType() ? Double.NaN : 0.0;
+        }
+        final ProductData raw = targetTile.getRawSamples();
+        for (int i = 0; i < raw.getNumElems(); i++) {
+            raw.setElemDoubleAt(i, fillValue);
+        }
+        targetTile.setRawSamples(raw);
+    }
+
+    private static boolean containsNonZero(int[] samples) {
+        for (int sample : samples) {
+            if (sample != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static float computeNdviKg(int x, int y, Tile[] merisReflectanceTiles) {
         // for Kurt Guenther NDVI approach, we need reflectance from MERIS bands 6,7 and 10,12,13,14,15
-        final float refl_6 = merisReflectanceTiles[5].getSampleFloat(x, y);
-        final float refl_7 = merisReflectanceTiles[6].getSampleFloat(x, y);
-        final float refl_10 = merisReflectanceTiles[9].getSampleFloat(x, y);
-        final float refl_12 = merisReflectanceTiles[11].getSampleFloat(x, y);
-        final float refl_13 = merisReflectanceTiles[12].getSampleFloat(x, y);
-        final float refl_14 = merisReflectanceTiles[13].getSampleFloat(x, y);
-        final float refl_15 = merisReflectanceTiles[14].getSampleFloat(x, y);
+        final float refl_6 = merisReflectanceTiles[0].getSampleFloat(x, y);
+        final float refl_7 = merisReflectanceTiles[1].getSampleFloat(x, y);
+        final float refl_10 = merisReflectanceTiles[2].getSampleFloat(x, y);
+        final float refl_12 = merisReflectanceTiles[3].getSampleFloat(x, y);
+        final float refl_13 = merisReflectanceTiles[4].getSampleFloat(x, y);
+        final float refl_14 = merisReflectanceTiles[5].getSampleFloat(x, y);
+        final float refl_15 = merisReflectanceTiles[6].getSampleFloat(x, y);
 
         return computeNdviKgValue(ALPLA_KG, BETA_KG, refl_6, refl_7, refl_10, refl_12, refl_13, refl_14, refl_15);
     }
 
+    static void computeNdviKgValues(float alpha, float beta, float[] refl_6, float[] refl_7, float[] refl_10, float[] refl_12,
+                                    float[] refl_13, float[] refl_14, float[] refl_15, float[] ndviKg) {
+        for (int i = 0; i < ndviKg.length; i++) {
+            ndviKg[i] = computeNdviKgValue(alpha, beta, refl_6[i], refl_7[i], refl_10[i], refl_12[i],
+                                           refl_13[i], refl_14[i], refl_15[i]);
+        }
+    }
+
     static float computeNdviKgValue(float alpha, float beta, float refl_6, float refl_7, float refl_10, float refl_12, float refl_13, float refl_14, float refl_15) {
         return (beta * (refl_10 + refl_12 + refl_13 + refl_14 + refl_15) - alpha * (refl_6 + refl_7)) /
                 (beta * (refl_10 + refl_12 + refl_13 + refl_14 + refl_15) + alpha * (refl_6 + refl_7));
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.globveg;
+
+import org.esa.beam.framework.gpf.OperatorSpi;
+import org.esa.beam.gpf.operators.meris.NdviOp;
+import org.esa.beam.idepix.algorithms.globalbedo.GlobAlbedoOp;
+import org.esa.beam.meris.brr.Rad2ReflOp;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The upstream operators the GlobVeg operator may depend on.
+ * Stages are declared in dependency order, i.e. a stage only depends on stages declared before it.
+ * A stage without dependencies is computed from the L1b source product.
+ */
+enum GlobVegStage {
+
+    RADIOMETRY("Meris.CorrectRadiometry"),
+    RAD2REFL(OperatorSpi.getOperatorAlias(Rad2ReflOp.class)),
+    NDVI_SIMPLE(OperatorSpi.getOperatorAlias(NdviOp.class)),
+    FAPAR("Fapar", RADIOMETRY),
+    LAI("ToaVeg", RADIOMETRY),
+    IDEPIX(OperatorSpi.getOperatorAlias(GlobAlbedoOp.class));
+
+    private final String operatorAlias;
+    private final GlobVegStage[] dependencies;
+
+    GlobVegStage(String operatorAlias, GlobVegStage... dependencies) {
+        this.operatorAlias = operatorAlias;
+        this.dependencies = dependencies;
+    }
+
+    String getOperatorAlias() {
+        return operatorAlias;
+    }
+
+    /**
+     * @return the stage whose product is the source of this stage, or {@code null} for the L1b source product
+     */
+    GlobVegStage getSourceStage() {
+        return dependencies.length > 0 ? dependencies[0] : null;
+    }
+
+    /**
+     * Adds this stage and, transitively, all stages it depends on to the given set.
+     *
+     * @param stages the set to add to
+     */
+    void addWithDependencies(Set<GlobVegStage> stages) {
+        if (stages.add(this)) {
+            for (GlobVegStage dependency : dependencies) {
+                dependency.addWithDependencies(stages);
+            }
+        }
+    }
+
+    static Set<GlobVegStage> closure(GlobVegStage... stages) {
+        final Set<GlobVegStage> result = EnumSet.noneOf(GlobVegStage.class);
+        for (GlobVegStage stage : stages) {
+            stage.addWithDependencies(result);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.globveg;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.FlagCoding;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.TiePointGrid;
+import org.esa.beam.framework.datamodel.VirtualBand;
+import org.esa.beam.framework.gpf.Operator;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.framework.gpf.OperatorSpi;
+import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
+import org.esa.beam.framework.gpf.annotations.Parameter;
+import org.esa.beam.util.ProductUtils;
+import org.esa.beam.util.io.FileUtils;
+
+import javax.media.jai.ImageLayout;
+import javax.media.jai.JAI;
+import javax.media.jai.operator.CropDescriptor;
+import javax.media.jai.operator.MosaicDescriptor;
+import javax.media.jai.operator.TranslateDescriptor;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Processes one scene with {@link GlobVegOp} in row stripes, each stripe by its own gpt process, and merges
+ * the stripes into one product.
+ * <p/>
+ * Each stripe is processed with an overlap of rows above and below it, so that the Idepix cloud buffer and the
+ * cloud shadows of its edge rows are complete, and only the rows of the stripe itself go into the merged product.
+ * Unless given, the overlap is derived from the reach of Idepix: the cloud buffer width plus the longest shadow a
+ * cloud at {@link #MAX_CLOUD_TOP_HEIGHT_KM} casts at the largest sun zenith angle of the scene. If it cannot be
+ * derived, processing fails. As obs_time is taken from the scan lines and quantized over the time range of the
+ * full scene, the merged pixels are the same as those of a single GlobVegOp run.
+ */
+@OperatorMetadata(alias = "GlobVeg.Stripes",
+                  authors = "Brockmann Consult",
+                  copyright = "Brockmann Consult GmbH",
+                  version = "1.0",
+                  description = "Processes a MERIS L1b product with the GlobVeg operator in row stripes, " +
+                                "each in its own process, and merges them")
+public class GlobVegStripeOp extends Operator {
+
+    private static final String STRIPE_FORMAT = "BEAM-DIMAP";
+
+    // the highest cloud top Idepix projects a cloud shadow from
+    static final double MAX_CLOUD_TOP_HEIGHT_KM = 12.0;
+    private static final String SUN_ZENITH_GRID_NAME = "sun_zenith";
+
+    @Parameter(description = "The MERIS L1b product", notNull = true)
+    private File sourceFile;
+
+    @Parameter(description = "The merged GlobVeg product", notNull = true)
+    private File targetFile;
+
+    @Parameter(defaultValue = "BEAM-DIMAP", description = "The format of the merged GlobVeg product")
+    private String outputFormat;
+
+    @Parameter(defaultValue = "4", interval = "[1,1000]", description = "The number of row stripes")
+    private int numStripes;
+
+    @Parameter(defaultValue = "4", interval = "[1,256]",
+               description = "The number of stripe processes running at the same time")
+    private int numProcesses;
+
+    @Parameter(defaultValue = "-1",
+               description = "The number of overlap rows above and below each stripe, " +
+                             "-1 to derive it from the reach of the Idepix cloud buffer and cloud shadows")
+    private int overlap;
+
+    @Parameter(defaultValue = "gpt.sh", description = "The gpt command the stripe processes are started with")
+    private String gptCommand;
+
+    @Parameter(defaultValue = "false", description = "Keep the stripe products and logs after merging")
+    private boolean keepStripes;
+
+    // parameters passed on to GlobVegOp
+
+    @Parameter(defaultValue = "true", label = " Compute an NDVI band from Kurt Guenther algorithm")
+    private boolean computeNdviKg;
+
+    @Parameter(defaultValue = "false", label = " Copy reflectance bands to target product")
+    private boolean outputReflectanceBands;
+
+    @Parameter(defaultValue = "false", label = " Write also simple NDVI = (rad10 - rad6)/(rad10 + rad6) to target product")
+    private boolean outputNdviSimple;
+
+    @Parameter(defaultValue = "false", label = " Write all FAPAR product bands to target product")
+    private boolean copyFaparBands;
+
+    @Parameter(defaultValue = "NONE", valueSet = {"NONE", "INT16", "UINT16"},
+               description = "See GlobVeg operator")
+    private String quantizedDataType;
+
+    @Parameter(defaultValue = "false", description = "See GlobVeg operator")
+    private boolean packQualityFlags;
+
+    @Override
+    public void initialize() throws OperatorException {
+        final Product sourceProduct;
+        try {
+            sourceProduct = ProductIO.readProduct(sourceFile);
+        } catch (IOException e) {
+            throw new OperatorException("Failed to read " + sourceFile + ": " + e.getMessage(), e);
+        }
+        if (sourceProduct == null) {
+            throw new OperatorException("No reader found for " + sourceFile);
+        }
+
+        final File stripeDir = new File(targetFile.getAbsoluteFile().getParentFile(),
+                                        FileUtils.getFilenameWithoutExtension(targetFile) + ".stripes");
+        if (!stripeDir.isDirectory() && !stripeDir.mkdirs()) {
+            throw new OperatorException("Cannot create stripe directory " + stripeDir);
+        }
+        final int stripeOverlap;
+        try {
+            stripeOverlap = overlap >= 0 ? overlap : computeOverlap(sourceProduct);
+        } catch (OperatorException e) {
+            sourceProduct.dispose();
+            throw e;
+        }
+        getLogger().info("GlobVeg stripes: overlap of " + stripeOverlap + " rows");
+        final Rectangle[][] stripes = computeStripes(sourceProduct.getSceneRasterWidth(),
+                                                     sourceProduct.getSceneRasterHeight(), numStripes,
+                                                     stripeOverlap);
+        final File[] stripeFiles = new File[stripes.length];
+        for (int i = 0; i < stripes.length; i++) {
+            stripeFiles[i] = new File(stripeDir, String.format("stripe_%03d.dim", i));
+        }
+
+        final long startTime = System.nanoTime();
+        runStripes(stripes, stripeFiles);
+        final long stripesTime = System.nanoTime();
+
+        final Product[] stripeProducts = new Product[stripes.length];
+        try {
+            for (int i = 0; i < stripes.length; i++) {
+                stripeProducts[i] = ProductIO.readProduct(stripeFiles[i]);
+                if (stripeProducts[i] == null) {
+                    throw new OperatorException("Cannot read stripe product " + stripeFiles[i]);
+                }
+            }
+            final Product mergedProduct = mergeStripes(sourceProduct, stripeProducts, stripes);
+            ProductIO.writeProduct(mergedProduct, targetFile, outputFormat, false, ProgressMonitor.NULL);
+            mergedProduct.dispose();
+        } catch (IOException e) {
+            throw new OperatorException("Failed to merge stripes into " + targetFile + ": " + e.getMessage(), e);
+        } finally {
+            for (Product stripeProduct : stripeProducts) {
+                if (stripeProduct != null) {
+                    stripeProduct.dispose();
+                }
+            }
+            sourceProduct.dispose();
+        }
+        getLogger().info(String.format("GlobVeg stripes: %s in %d stripes, processing %.1f s, merging %.1f s",
+                                       sourceFile.getName(), stripes.length, (stripesTime - startTime) * 1.0e-9,
+                                       (System.nanoTime() - stripesTime) * 1.0e-9));
+        if (!keepStripes) {
+            FileUtils.deleteTree(stripeDir);
+        }
+
+        setTargetProduct(new Product("a", "b", 0, 0));
+    }
+
+    /**
+     * Computes the rows Idepix looks beyond a pixel: the cloud buffer width plus the length of the longest cloud
+     * shadow, cast by a cloud at {@link #MAX_CLOUD_TOP_HEIGHT_KM} at the largest sun zenith angle of the scene.
+     *
+     * @throws OperatorException if the pixel size or the sun zenith angles of the product are not known
+     */
+    static int computeOverlap(Product sourceProduct) {
+        final String productType = sourceProduct.getProductType();
+        final double pixelSizeKm;
+        if (productType.startsWith("MER_RR")) {
+            pixelSizeKm = 1.2;
+        } else if (productType.startsWith("MER_FR")) {
+            pixelSizeKm = 0.3;
+        } else {
+            throw new OperatorException("Cannot derive the stripe overlap for product type " + productType +
+                                                ", set the 'overlap' parameter");
+        }
+        final TiePointGrid sunZenithGrid = sourceProduct.getTiePointGrid(SUN_ZENITH_GRID_NAME);
+        if (sunZenithGrid == null) {
+            throw new OperatorException("Cannot derive the stripe overlap without a " + SUN_ZENITH_GRID_NAME +
+                                                " tie-point grid, set the 'overlap' parameter");
+        }
+        float maxSunZenith = 0.0f;
+        for (float sunZenith : sunZenithGrid.getTiePoints()) {
+            maxSunZenith = Math.max(maxSunZenith, sunZenith);
+        }
+        if (!(maxSunZenith < 90.0f)) {
+            throw new OperatorException("Cannot derive the stripe overlap for a sun zenith angle of " + maxSunZenith +
+                                                ", set the 'overlap' parameter");
+        }
+        final double shadowLengthKm = MAX_CLOUD_TOP_HEIGHT_KM * Math.tan(Math.toRadians(maxSunZenith));
+        return GlobVegOp.CLOUD_BUFFER_WIDTH + (int) Math.ceil(shadowLengthKm / pixelSizeKm);
+    }
+
+    /**
+     * Splits a scene into row stripes of about equal height.
+     *
+     * @return for each stripe, the rows of the stripe and the rows processed for it, i.e. the stripe extended
+     *         by the overlap within the scene
+     */
+    static Rectangle[][] computeStripes(int width, int height, int numStripes, int overlap) {
+        final int stripeCount = Math.max(1, Math.min(numStripes, height));
+        final Rectangle[][] stripes = new Rectangle[stripeCount][];
+        for (int i = 0; i < stripeCount; i++) {
+            final int y0 = (int) ((long) height * i / stripeCount);
+            final int y1 = (int) ((long) height * (i + 1) / stripeCount);
+            final int processedY0 = Math.max(0, y0 - overlap);
+            final int processedY1 = Math.min(height, y1 + overlap);
+            stripes[i] = new Rectangle[]{
+                    new Rectangle(0, y0, width, y1 - y0),
+                    new Rectangle(0, processedY0, width, processedY1 - processedY0)
+            };
+        }
+        return stripes;
+    }
+
+    private void runStripes(Rectangle[][] stripes, File[] stripeFiles) {
+        final ExecutorService executorService = Executors.newFixedThreadPool(Math.min(numProcesses, stripes.length));
+        try {
+            final List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < stripes.length; i++) {
+                final Rectangle processed = stripes[i][1];
+                final File stripeFile = stripeFiles[i];
+                futures.add(executorService.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        runStripe(processed, stripeFile);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OperatorException("Interrupted while processing GlobVeg stripes", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof OperatorException) {
+                throw (OperatorException) cause;
+            }
+            throw new OperatorException("Failed to process GlobVeg stripe: " + cause.getMessage(), cause);
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    private void runStripe(Rectangle processed, File stripeFile) throws IOException, InterruptedException {
+        final List<String> command = new ArrayList<String>();
+        command.add(gptCommand);
+        command.add(OperatorSpi.getOperatorAlias(GlobVegOp.class));
+        command.add("-Ssource=" + sourceFile.getAbsolutePath());
+        command.add("-PpixelRegion=" + processed.x + "," + processed.y + "," + processed.width + "," +
+                            processed.height);
+        command.add("-PcomputeNdviKg=" + computeNdviKg);
+        command.add("-PoutputReflectanceBands=" + outputReflectanceBands);
+        command.add("-PoutputNdviSimple=" + outputNdviSimple);
+        command.add("-PcopyFaparBands=" + copyFaparBands);
+        command.add("-PquantizedDataType=" + quantizedDataType);
+        command.add("-PpackQualityFlags=" + packQualityFlags);
+        command.add("-t");
+        command.add(stripeFile.getAbsolutePath());
+        command.add("-f");
+        command.add(STRIPE_FORMAT);
+
+        final File logFile = new File(stripeFile.getParentFile(),
+                                      FileUtils.getFilenameWithoutExtension(stripeFile) + ".log");
+        final ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.redirectErrorStream(true);
+        final Process process = processBuilder.start();
+        final OutputStream log = new FileOutputStream(logFile);
+        try {
+            final InputStream output = process.getInputStream();
+            final byte[] buffer = new byte[8192];
+            int n;
+            while ((n = output.read(buffer)) != -1) {
+                log.write(buffer, 0, n);
+            }
+        } finally {
+            log.close();
+        }
+        final int exitCode = process.waitFor();
+        if (exitCode != 0) {
+            throw new OperatorException("GlobVeg stripe " + stripeFile.getName() + " failed with exit code " +
+                                                exitCode + ", see " + logFile);
+        }
+    }
+
+    /**
+     * Merges the stripe products into one product of the size of the source product.
+     * Of each stripe product, only the rows of the stripe are taken, the overlap rows are dropped.
+     * Start and end time are those of the first and last scan line, like for a single GlobVegOp run.
+     *
+     * @param stripes the stripes as computed by {@link #computeStripes}
+     */
+    static Product mergeStripes(Product sourceProduct, Product[] stripeProducts, Rectangle[][] stripes) {
+        final int width = sourceProduct.getSceneRasterWidth();
+        final int height = sourceProduct.getSceneRasterHeight();
+        final Product template = stripeProducts[0];
+        final Product mergedProduct = new Product(template.getName(), template.getProductType(), width, height);
+        mergedProduct.setStartTime(ProductUtils.getScanLineTime(sourceProduct, 0));
+        mergedProduct.setEndTime(ProductUtils.getScanLineTime(sourceProduct, height - 1));
+        ProductUtils.copyTiePointGrids(sourceProduct, mergedProduct);
+        ProductUtils.copyGeoCoding(sourceProduct, mergedProduct);
+        ProductUtils.copyFlagCodings(template, mergedProduct);
+        ProductUtils.copyMasks(template, mergedProduct);
+
+        for (Band band : template.getBands()) {
+            if (band instanceof VirtualBand) {
+                final VirtualBand virtualBand = new VirtualBand(band.getName(), band.getDataType(), width, height,
+                                                                ((VirtualBand) band).getExpression());
+                ProductUtils.copyRasterDataNodeProperties(band, virtualBand);
+                mergedProduct.addBand(virtualBand);
+                continue;
+            }
+            final Band mergedBand = ProductUtils.copyBand(band.getName(), template, mergedProduct, false);
+            final FlagCoding flagCoding = band.getFlagCoding();
+            if (flagCoding != null) {
+                mergedBand.setSampleCoding(mergedProduct.getFlagCodingGroup().get(flagCoding.getName()));
+            }
+            final RenderedImage[] stripeImages = new RenderedImage[stripeProducts.length];
+            for (int i = 0; i < stripeProducts.length; i++) {
+                stripeImages[i] = cropStripe(stripeProducts[i].getBand(band.getName()).getSourceImage(),
+                                             stripes[i][0], stripes[i][1]);
+            }
+            mergedBand.setSourceImage(mosaic(stripeImages, template.getBand(band.getName()).getSourceImage(),
+                                             width, height, getBackgroundValue(band)));
+        }
+        return mergedProduct;
+    }
+
+    // the rows of the stripe, at their position in the scene
+    private static RenderedImage cropStripe(RenderedImage image, Rectangle stripe, Rectangle processed) {
+        final RenderedImage cropped = CropDescriptor.create(image, 0.0f, (float) (stripe.y - processed.y),
+                                                            (float) stripe.width, (float) stripe.height, null);
+        return TranslateDescriptor.create(cropped, 0.0f, (float) processed.y, null, null);
+    }
+
+    // the raw value of pixels not covered by any stripe, and the value NaN samples keep
+    private static double getBackgroundValue(Band band) {
+        if (band.isFloatingPointType()) {
+            return Double.NaN;
+        }
+        return band.isNoDataValueUsed() ? band.getNoDataValue() : 0.0;
+    }
+
+    private static RenderedImage mosaic(RenderedImage[] stripeImages, RenderedImage template, int width, int height,
+                                        double backgroundValue) {
+        final ImageLayout layout = new ImageLayout(0, 0, width, height);
+        layout.setTileWidth(template.getTileWidth());
+        layout.setTileHeight(template.getTileHeight());
+        layout.setSampleModel(template.getSampleModel().createCompatibleSampleModel(template.getTileWidth(),
+                                                                                    template.getTileHeight()));
+        layout.setColorModel(template.getColorModel());
+        final RenderingHints hints = new RenderingHints(JAI.KEY_IMAGE_LAYOUT, layout);
+        // Without a threshold, JAI takes only samples >= 1.0 from a source and the background value elsewhere.
+        // All samples are valid here, except NaN, which fails any threshold and gets the NaN background.
+        final double[][] sourceThreshold = new double[stripeImages.length][];
+        for (int i = 0; i < stripeImages.length; i++) {
+            sourceThreshold[i] = new double[]{-Double.MAX_VALUE};
+        }
+        return MosaicDescriptor.create(stripeImages, MosaicDescriptor.MOSAIC_TYPE_OVERLAY,
+                                       null, null, sourceThreshold, new double[]{backgroundValue}, hints);
+    }
+
+    public static class Spi extends OperatorSpi {
+
+        public Spi() {
+            super(GlobVegStripeOp.class);
+        }
+    }
+}
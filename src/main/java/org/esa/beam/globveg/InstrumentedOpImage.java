@@ -0,0 +1,58 @@
+package org.esa.beam.globveg;
+
+import javax.media.jai.ImageLayout;
+import javax.media.jai.OpImage;
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.util.Vector;
+
+/**
+ * Passes the tiles of a source image through unchanged and records the time spent computing them
+ * in {@link GlobVegMetrics}. The tiles are not cached a second time.
+ */
+class InstrumentedOpImage extends OpImage {
+
+    private final GlobVegMetrics metrics;
+    private final String stage;
+    private final String band;
+
+    InstrumentedOpImage(RenderedImage source, GlobVegMetrics metrics, String stage, String band) {
+        super(vectorize(source), new ImageLayout(source), null, false);
+        setTileCache(null);
+        this.metrics = metrics;
+        this.stage = stage;
+        this.band = band;
+    }
+
+    private static Vector<RenderedImage> vectorize(RenderedImage source) {
+        final Vector<RenderedImage> sources = new Vector<RenderedImage>(1);
+        sources.add(source);
+        return sources;
+    }
+
+    @Override
+    public Raster computeTile(int tileX, int tileY) {
+        final long wallStart = System.nanoTime();
+        final long cpuStart = metrics.getThreadCpuTime();
+        final Raster tile = getSourceImage(0).getTile(tileX, tileY);
+        metrics.recordCopiedTile(stage, band, tile,
+                                 System.nanoTime() - wallStart, metrics.getThreadCpuTime() - cpuStart);
+        return tile;
+    }
+
+    @Override
+    public boolean computesUniqueTiles() {
+        return false;
+    }
+
+    @Override
+    public Rectangle mapSourceRect(Rectangle sourceRect, int sourceIndex) {
+        return new Rectangle(sourceRect);
+    }
+
+    @Override
+    public Rectangle mapDestRect(Rectangle destRect, int sourceIndex) {
+        return new Rectangle(destRect);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.globveg;
+
+import org.esa.beam.binning.Vector;
+
+/**
+ * Observations of several variables of a bin sharing one list of observation times.
+ * A value is NaN if the observation is not valid for that variable.
+ * Only the first {@link #size()} elements of the backing arrays are valid.
+ */
+class MultiObservationBuffer implements ObservationBufferPool.Buffer {
+
+    private float[] times;
+    private final float[][] values;
+    private int size;
+
+    // scratch arrays for the valid observations of one variable
+    private float[] validValues;
+    private float[] validTimes;
+    private float[] scratch;
+
+    MultiObservationBuffer(int numVariables, int initialCapacity) {
+        times = new float[initialCapacity];
+        values = new float[numVariables][initialCapacity];
+    }
+
+    /**
+     * Adds an observation, the values of the given vector starting at {@code offset} are taken for the variables.
+     */
+    void add(Vector vector, int offset, float time) {
+        if (size == times.length) {
+            grow();
+        }
+        times[size] = time;
+        for (int i = 0; i < values.length; i++) {
+            values[i][size] = vector.get(offset + i);
+        }
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return times.length;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Collects the valid observations of the given variable into the scratch arrays
+     * returned by {@link #getValidValues()} and {@link #getValidTimes()}.
+     *
+     * @return the number of valid observations
+     */
+    int collectValid(int variableIndex) {
+        if (validValues == null || validValues.length < size) {
+            validValues = new float[times.length];
+            validTimes = new float[times.length];
+            scratch = new float[times.length];
+        }
+        final float[] variableValues = values[variableIndex];
+        int numValid = 0;
+        for (int i = 0; i < size; i++) {
+            if (!Float.isNaN(variableValues[i])) {
+                validValues[numValid] = variableValues[i];
+                validTimes[numValid] = times[i];
+                numValid++;
+            }
+        }
+        return numValid;
+    }
+
+    float[] getValidValues() {
+        return validValues;
+    }
+
+    float[] getValidTimes() {
+        return validTimes;
+    }
+
+    /**
+     * @return a scratch array as long as the arrays of valid observations
+     */
+    float[] getScratch() {
+        return scratch;
+    }
+
+    private void grow() {
+        final int newCapacity = Math.max(4, times.length * 2);
+        final float[] newTimes = new float[newCapacity];
+        System.arraycopy(times, 0, newTimes, 0, size);
+        times = newTimes;
+        for (int i = 0; i < values.length; i++) {
+            final float[] newValues = new float[newCapacity];
+            System.arraycopy(values[i], 0, newValues, 0, size);
+            values[i] = newValues;
+        }
+    }
+}
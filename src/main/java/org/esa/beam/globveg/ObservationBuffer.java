@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.globveg;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A growable list of (value, time) observations of a bin, backed by two primitive arrays.
+ * The arrays returned by {@link #getValues()} and {@link #getTimes()} are the backing arrays,
+ * only the first {@link #size()} elements are valid.
+ * <p/>
+ * Buffers holding partial observations of the same bin can be merged, in memory or through
+ * {@link #writeTo(DataOutput)} and {@link #readFrom(DataInput)}. After {@link #sort()} the order of the
+ * observations no longer depends on the order they were added or merged in.
+ */
+public class ObservationBuffer implements ObservationBufferPool.Buffer {
+
+    private float[] values;
+    private float[] times;
+    private float[] scratch;
+    private int size;
+    private boolean grown;
+
+    public ObservationBuffer(int initialCapacity) {
+        values = new float[initialCapacity];
+        times = new float[initialCapacity];
+    }
+
+    public void add(float value, float time) {
+        if (size == values.length) {
+            grow(size + 1);
+        }
+        values[size] = value;
+        times[size] = time;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return values.length;
+    }
+
+    /**
+     * @return true if the buffer had to grow since it was created or cleared
+     */
+    public boolean isGrown() {
+        return grown;
+    }
+
+    public float[] getValues() {
+        return values;
+    }
+
+    public float[] getTimes() {
+        return times;
+    }
+
+    /**
+     * @param minLength the minimum length needed
+     * @return a scratch array of at least the given length, kept with the buffer for reuse
+     */
+    public float[] getScratch(int minLength) {
+        if (scratch == null || scratch.length < minLength) {
+            scratch = new float[Math.max(minLength, values.length)];
+        }
+        return scratch;
+    }
+
+    /**
+     * Appends the observations of another buffer.
+     */
+    public void merge(ObservationBuffer other) {
+        if (size + other.size > values.length) {
+            grow(size + other.size);
+        }
+        System.arraycopy(other.values, 0, values, size, other.size);
+        System.arraycopy(other.times, 0, times, size, other.size);
+        size += other.size;
+    }
+
+    /**
+     * Writes the observations, to be appended to another buffer by {@link #readFrom(DataInput)}.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeFloat(values[i]);
+            out.writeFloat(times[i]);
+        }
+    }
+
+    /**
+     * Appends the observations written by {@link #writeTo(DataOutput)}.
+     */
+    public void readFrom(DataInput in) throws IOException {
+        final int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("negative observation count " + count);
+        }
+        if (size + count > values.length) {
+            grow(size + count);
+        }
+        for (int i = 0; i < count; i++) {
+            values[size] = in.readFloat();
+            times[size] = in.readFloat();
+            size++;
+        }
+    }
+
+    /**
+     * Sorts the observations by time, observations of the same time by value.
+     */
+    public void sort() {
+        sort(values, times, size);
+    }
+
+    /**
+     * Sorts the first {@code size} observations of the arrays by time, observations of the same time by value.
+     */
+    static void sort(float[] values, float[] times, int size) {
+        if (isSorted(values, times, size)) {
+            // the common case of observations arriving in time order needs no key array
+            return;
+        }
+        // both floats map to order-preserving int bits, so one sort of the combined keys sorts the pairs
+        final long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = ((long) toSortableBits(times[i]) << 32) |
+                    ((toSortableBits(values[i]) ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+        }
+        Arrays.sort(keys);
+        for (int i = 0; i < size; i++) {
+            times[i] = fromSortableBits((int) (keys[i] >> 32));
+            values[i] = fromSortableBits((int) keys[i] ^ Integer.MIN_VALUE);
+        }
+    }
+
+    // Float.compare orders -0.0 before 0.0 and NaN last, like the sortable bits
+    private static boolean isSorted(float[] values, float[] times, int size) {
+        for (int i = 1; i < size; i++) {
+            final int c = Float.compare(times[i - 1], times[i]);
+            if (c > 0 || c == 0 && Float.compare(values[i - 1], values[i]) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toSortableBits(float f) {
+        final int bits = Float.floatToIntBits(f);
+        return bits ^ ((bits >> 31) & Integer.MAX_VALUE);
+    }
+
+    private static float fromSortableBits(int sortable) {
+        return Float.intBitsToFloat(sortable ^ ((sortable >> 31) & Integer.MAX_VALUE));
+    }
+
+    public void clear() {
+        size = 0;
+        grown = false;
+    }
+
+    private void grow(int minCapacity) {
+        final int newCapacity = Math.max(minCapacity, Math.max(4, values.length * 2));
+        final float[] newValues = new float[newCapacity];
+        final float[] newTimes = new float[newCapacity];
+        System.arraycopy(values, 0, newValues, 0, size);
+        System.arraycopy(times, 0, newTimes, 0, size);
+        values = newValues;
+        times = newTimes;
+        grown = true;
+    }
+}
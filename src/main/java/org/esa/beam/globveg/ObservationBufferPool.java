@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.globveg;
+
+/**
+ * A pool of observation buffers which are reused across bins, used for the {@link ObservationBuffer}s of the
+ * PINTY and compositing aggregators and the {@link MultiObservationBuffer}s of PINTY_MULTI.
+ * Released buffers keep their capacity, so after a few bins the pooled buffers are sized
+ * by the observation counts actually seen instead of a fixed initial guess.
+ * Buffers grown beyond {@link #MAX_RETAINED_CAPACITY} are not pooled again.
+ */
+abstract class ObservationBufferPool<T extends ObservationBufferPool.Buffer> {
+
+    /**
+     * The capacity of new buffers.
+     */
+    static final int INITIAL_CAPACITY = 8;
+    /**
+     * The largest capacity of a buffer that is pooled again.
+     */
+    static final int MAX_RETAINED_CAPACITY = 4096;
+    /**
+     * The largest number of pooled buffers.
+     */
+    static final int MAX_POOL_SIZE = 64;
+
+    /**
+     * A buffer which can be pooled.
+     */
+    interface Buffer {
+
+        int capacity();
+
+        void clear();
+    }
+
+    private final Object[] pooled = new Object[MAX_POOL_SIZE];
+    private int pooledCount;
+
+    /**
+     * @return a pool of {@link ObservationBuffer}s
+     */
+    static ObservationBufferPool<ObservationBuffer> create() {
+        return new ObservationBufferPool<ObservationBuffer>() {
+            @Override
+            protected ObservationBuffer createBuffer() {
+                return new ObservationBuffer(INITIAL_CAPACITY);
+            }
+        };
+    }
+
+    /**
+     * @return a new buffer of capacity {@link #INITIAL_CAPACITY}
+     */
+    protected abstract T createBuffer();
+
+    @SuppressWarnings("unchecked")
+    synchronized T acquire() {
+        if (pooledCount > 0) {
+            final T buffer = (T) pooled[--pooledCount];
+            pooled[pooledCount] = null;
+            return buffer;
+        }
+        return createBuffer();
+    }
+
+    synchronized void release(T buffer) {
+        buffer.clear();
+        if (pooledCount < pooled.length && buffer.capacity() <= MAX_RETAINED_CAPACITY) {
+            pooled[pooledCount++] = buffer;
+        }
+    }
+}
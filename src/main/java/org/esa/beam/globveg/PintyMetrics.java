@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.globveg;
+
+import org.esa.beam.util.logging.BeamLogManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms of the temporal aggregation of {@link AggregatorPinty}, collected if
+ * the aggregator is configured with {@code collectMetrics}.
+ * <p/>
+ * The counters are striped by thread, so recording never locks and threads rarely write to the same
+ * cache line. Reading sums up the stripes and is only exact when no thread is recording.
+ * <p/>
+ * There is one instance per variable and JVM. The snapshots of all instances are logged when the JVM
+ * exits, i.e. once per task of a Hadoop binning job.
+ */
+public class PintyMetrics {
+
+    /**
+     * Histogram buckets of the observation count per bin: bucket 0 is an empty bin, bucket {@code k > 0}
+     * counts bins with {@code 2^(k-1)} to {@code 2^k - 1} observations, the last bucket all larger counts.
+     */
+    public static final int COUNT_BUCKETS = 16;
+    /**
+     * Histogram buckets of the completeTemporal time per bin: bucket 0 counts times below 2 microseconds,
+     * bucket {@code k > 0} times from {@code 2^k} to {@code 2^(k+1) - 1} microseconds, the last bucket all
+     * longer times.
+     */
+    public static final int TIME_BUCKETS = 24;
+
+    private static final int BINS = 0;
+    private static final int EMPTY_BINS = 1;
+    private static final int OBSERVATIONS = 2;
+    private static final int REJECTED_OBSERVATIONS = 3;
+    private static final int GROWN_BUFFERS = 4;
+    private static final int COMPLETE_NANOS = 5;
+    private static final int COUNT_HISTOGRAM = 6;
+    private static final int TIME_HISTOGRAM = COUNT_HISTOGRAM + COUNT_BUCKETS;
+    private static final int NUM_CELLS = TIME_HISTOGRAM + TIME_BUCKETS;
+
+    private static final int STRIPES = 16;
+    // stripes start on different 64-byte cache lines
+    private static final int STRIPE_LENGTH = (NUM_CELLS + 7) / 8 * 8 + 8;
+
+    private static final Map<String, PintyMetrics> INSTANCES = new TreeMap<String, PintyMetrics>();
+    private static boolean shutdownHookAdded;
+
+    private final String name;
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * STRIPE_LENGTH);
+
+    PintyMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the shared instance for the variable, registered to be logged at JVM exit
+     */
+    static synchronized PintyMetrics forVariable(String varName) {
+        PintyMetrics metrics = INSTANCES.get(varName);
+        if (metrics == null) {
+            metrics = new PintyMetrics(AggregatorPinty.Descriptor.NAME + "." + varName);
+            INSTANCES.put(varName, metrics);
+            if (!shutdownHookAdded) {
+                Runtime.getRuntime().addShutdownHook(new Thread("PintyMetrics") {
+                    @Override
+                    public void run() {
+                        for (Snapshot snapshot : getSnapshots()) {
+                            BeamLogManager.getSystemLogger().info(snapshot.toString());
+                        }
+                    }
+                });
+                shutdownHookAdded = true;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the snapshots of all instances in this JVM, e.g. for a task to report them itself
+     */
+    public static synchronized List<Snapshot> getSnapshots() {
+        final List<Snapshot> snapshots = new ArrayList<Snapshot>(INSTANCES.size());
+        for (PintyMetrics metrics : INSTANCES.values()) {
+            snapshots.add(metrics.snapshot());
+        }
+        return snapshots;
+    }
+
+    /**
+     * Records one completed bin.
+     *
+     * @param numObservations the observations of the bin before outlier filtering
+     * @param numRemaining    the observations after outlier filtering, 0 for an empty result
+     * @param bufferGrown     if the observation buffer of the bin had to grow
+     * @param nanos           the time spent in completeTemporal
+     */
+    void recordBin(int numObservations, int numRemaining, boolean bufferGrown, long nanos) {
+        final int offset = (int) (Thread.currentThread().getId() & (STRIPES - 1)) * STRIPE_LENGTH;
+        cells.incrementAndGet(offset + BINS);
+        if (numRemaining == 0) {
+            cells.incrementAndGet(offset + EMPTY_BINS);
+        }
+        cells.addAndGet(offset + OBSERVATIONS, numObservations);
+        if (numRemaining < numObservations) {
+            cells.addAndGet(offset + REJECTED_OBSERVATIONS, numObservations - numRemaining);
+        }
+        if (bufferGrown) {
+            cells.incrementAndGet(offset + GROWN_BUFFERS);
+        }
+        cells.addAndGet(offset + COMPLETE_NANOS, nanos);
+        cells.incrementAndGet(offset + COUNT_HISTOGRAM + getCountBucket(numObservations));
+        cells.incrementAndGet(offset + TIME_HISTOGRAM + getTimeBucket(nanos));
+    }
+
+    static int getCountBucket(int numObservations) {
+        // 32 - numberOfLeadingZeros is the bit length: 0 -> 0, 1 -> 1, 2..3 -> 2, 4..7 -> 3, ...
+        return Math.min(COUNT_BUCKETS - 1, 32 - Integer.numberOfLeadingZeros(Math.max(0, numObservations)));
+    }
+
+    static int getTimeBucket(long nanos) {
+        final long micros = nanos / 1000L;
+        return micros <= 0 ? 0 : Math.min(TIME_BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+    }
+
+    Snapshot snapshot() {
+        final long[] sums = new long[NUM_CELLS];
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            for (int i = 0; i < NUM_CELLS; i++) {
+                sums[i] += cells.get(stripe * STRIPE_LENGTH + i);
+            }
+        }
+        return new Snapshot(name, sums);
+    }
+
+    /**
+     * The summed counters of a {@link PintyMetrics} at one point in time.
+     */
+    public static class Snapshot {
+
+        private final String name;
+        private final long[] sums;
+
+        private Snapshot(String name, long[] sums) {
+            this.name = name;
+            this.sums = sums;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getBinCount() {
+            return sums[BINS];
+        }
+
+        /**
+         * @return the number of bins with a count of 0, i.e. no observation left after outlier filtering
+         */
+        public long getEmptyBinCount() {
+            return sums[EMPTY_BINS];
+        }
+
+        public long getObservationCount() {
+            return sums[OBSERVATIONS];
+        }
+
+        public long getRejectedObservationCount() {
+            return sums[REJECTED_OBSERVATIONS];
+        }
+
+        /**
+         * @return the number of bins whose observations did not fit into the initial capacity of their buffer
+         */
+        public long getGrownBufferCount() {
+            return sums[GROWN_BUFFERS];
+        }
+
+        public long getCompleteTemporalNanos() {
+            return sums[COMPLETE_NANOS];
+        }
+
+        /**
+         * @return the bins per observation count bucket, see {@link PintyMetrics#COUNT_BUCKETS}
+         */
+        public long[] getCountHistogram() {
+            final long[] histogram = new long[COUNT_BUCKETS];
+            System.arraycopy(sums, COUNT_HISTOGRAM, histogram, 0, COUNT_BUCKETS);
+            return histogram;
+        }
+
+        /**
+         * @return the bins per completeTemporal time bucket, see {@link PintyMetrics#TIME_BUCKETS}
+         */
+        public long[] getTimeHistogram() {
+            final long[] histogram = new long[TIME_BUCKETS];
+            System.arraycopy(sums, TIME_HISTOGRAM, histogram, 0, TIME_BUCKETS);
+            return histogram;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder(name);
+            sb.append(": bins=").append(getBinCount());
+            sb.append(", emptyBins=").append(getEmptyBinCount());
+            sb.append(", observations=").append(getObservationCount());
+            sb.append(", rejectedObservations=").append(getRejectedObservationCount());
+            sb.append(", grownBuffers=").append(getGrownBufferCount());
+            sb.append(", completeTemporalMillis=").append(getCompleteTemporalNanos() / 1000000L);
+            sb.append(", observationsPerBin={");
+            appendHistogram(sb, getCountHistogram(), false);
+            sb.append("}, completeTemporalMicros={");
+            appendHistogram(sb, getTimeHistogram(), true);
+            sb.append("}");
+            return sb.toString();
+        }
+
+        // lists the non-empty buckets as 'lowerBound+: count'
+        private static void appendHistogram(StringBuilder sb, long[] histogram, boolean fromOne) {
+            boolean first = true;
+            for (int k = 0; k < histogram.length; k++) {
+                if (histogram[k] > 0) {
+                    final long lowerBound = k == 0 ? 0L : fromOne ? 1L << k : 1L << (k - 1);
+                    sb.append(first ? "" : ", ").append(lowerBound).append("+: ").append(histogram[k]);
+                    first = false;
+                }
+            }
+        }
+    }
+}
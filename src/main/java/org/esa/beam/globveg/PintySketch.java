@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.globveg;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Fixed-size summary of the observations of a bin, used by the approximate mode of {@link AggregatorPinty}.
+ * <p/>
+ * Mean and standard deviation are maintained exactly (Welford's streaming algorithm). For the selection
+ * of the value closest to the mean, the value range {@code [minValue, maxValue]} is split into
+ * {@code binCount} equal bins, and only the smallest and largest observation of each bin is kept
+ * (with their times).
+ * <p/>
+ * Error bound: let {@code w = (maxValue - minValue) / binCount} be the bin width. The selected value is at most
+ * {@code max(d, w)} away from the mean, where {@code d} is the distance of the exact closest-to-mean
+ * value, i.e. it is never more than one bin width worse than the exact answer. The bound holds for values
+ * inside the configured range; values outside are clamped into the first or last bin, which then may be wider.
+ * <p/>
+ * Sketches of the same configuration summarising partial observations of a bin can be merged, in memory or
+ * through {@link #writeTo(DataOutput)} and {@link #readFrom(DataInput)}. Count and kept observations of the merged
+ * sketch are the same as if all observations had been added to one sketch, mean and sigma may differ in
+ * the last bits.
+ */
+class PintySketch {
+
+    private final float minValue;
+    private final float binWidth;
+    private final float[] binMin;
+    private final float[] binMinTime;
+    private final float[] binMax;
+    private final float[] binMaxTime;
+
+    private int count;
+    private double mean;
+    private double m2;
+
+    PintySketch(int binCount, float minValue, float maxValue) {
+        if (binCount < 1) {
+            throw new IllegalArgumentException("binCount < 1");
+        }
+        if (!(maxValue > minValue)) {
+            throw new IllegalArgumentException("maxValue <= minValue");
+        }
+        this.minValue = minValue;
+        this.binWidth = (maxValue - minValue) / binCount;
+        binMin = new float[binCount];
+        binMinTime = new float[binCount];
+        binMax = new float[binCount];
+        binMaxTime = new float[binCount];
+        reset();
+    }
+
+    void reset() {
+        count = 0;
+        mean = 0.0;
+        m2 = 0.0;
+        for (int i = 0; i < binMin.length; i++) {
+            binMin[i] = Float.NaN;
+            binMax[i] = Float.NaN;
+        }
+    }
+
+    void add(float value, float time) {
+        count++;
+        final double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+
+        mergeBin(getBinIndex(value), value, time, value, time);
+    }
+
+    /**
+     * Adds the observations summarised by another sketch of the same configuration
+     * (Chan et al.'s pairwise update of mean and variance).
+     */
+    void merge(PintySketch other) {
+        checkSameConfiguration(other.binMin.length, other.minValue, other.binWidth);
+        for (int i = 0; i < binMin.length; i++) {
+            if (!Float.isNaN(other.binMin[i])) {
+                mergeBin(i, other.binMin[i], other.binMinTime[i], other.binMax[i], other.binMaxTime[i]);
+            }
+        }
+        mergeMoments(other.count, other.mean, other.m2);
+    }
+
+    /**
+     * Writes the summary, only the non-empty bins are written.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(binMin.length);
+        out.writeFloat(minValue);
+        out.writeFloat(binWidth);
+        out.writeInt(count);
+        out.writeDouble(mean);
+        out.writeDouble(m2);
+        int usedBinCount = 0;
+        for (float value : binMin) {
+            usedBinCount += Float.isNaN(value) ? 0 : 1;
+        }
+        out.writeInt(usedBinCount);
+        for (int i = 0; i < binMin.length; i++) {
+            if (!Float.isNaN(binMin[i])) {
+                out.writeInt(i);
+                out.writeFloat(binMin[i]);
+                out.writeFloat(binMinTime[i]);
+                out.writeFloat(binMax[i]);
+                out.writeFloat(binMaxTime[i]);
+            }
+        }
+    }
+
+    /**
+     * Merges a summary written by {@link #writeTo(DataOutput)} of a sketch of the same configuration.
+     */
+    void readFrom(DataInput in) throws IOException {
+        final int otherBinCount = in.readInt();
+        final float otherMinValue = in.readFloat();
+        final float otherBinWidth = in.readFloat();
+        try {
+            checkSameConfiguration(otherBinCount, otherMinValue, otherBinWidth);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+        final int otherCount = in.readInt();
+        final double otherMean = in.readDouble();
+        final double otherM2 = in.readDouble();
+        final int usedBinCount = in.readInt();
+        for (int k = 0; k < usedBinCount; k++) {
+            final int bin = in.readInt();
+            if (bin < 0 || bin >= binMin.length) {
+                throw new IOException("bin index " + bin + " out of range");
+            }
+            mergeBin(bin, in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat());
+        }
+        mergeMoments(otherCount, otherMean, otherM2);
+    }
+
+    private void checkSameConfiguration(int otherBinCount, float otherMinValue, float otherBinWidth) {
+        if (otherBinCount != binMin.length || otherMinValue != minValue || otherBinWidth != binWidth) {
+            throw new IllegalArgumentException("sketches of different configuration cannot be merged");
+        }
+    }
+
+    private void mergeBin(int bin, float min, float minTime, float max, float maxTime) {
+        if (Float.isNaN(binMin[bin]) || min < binMin[bin] || (min == binMin[bin] && minTime < binMinTime[bin])) {
+            binMin[bin] = min;
+            binMinTime[bin] = minTime;
+        }
+        if (Float.isNaN(binMax[bin]) || max > binMax[bin] || (max == binMax[bin] && maxTime < binMaxTime[bin])) {
+            binMax[bin] = max;
+            binMaxTime[bin] = maxTime;
+        }
+    }
+
+    private void mergeMoments(int otherCount, double otherMean, double otherM2) {
+        if (otherCount == 0) {
+            return;
+        }
+        final int mergedCount = count + otherCount;
+        final double delta = otherMean - mean;
+        mean += delta * otherCount / mergedCount;
+        m2 += otherM2 + delta * delta * ((double) count * otherCount / mergedCount);
+        count = mergedCount;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    double getMean() {
+        return mean;
+    }
+
+    /**
+     * @return the population standard deviation of the observations
+     */
+    double getSigma() {
+        return count > 0 && m2 > 0.0 ? Math.sqrt(m2 / count) : 0.0;
+    }
+
+    float getBinWidth() {
+        return binWidth;
+    }
+
+    /**
+     * Selects the kept observation closest to the mean. On equal distance the larger value wins,
+     * on equal value the earlier one.
+     *
+     * @param result array of length 2 receiving value and time, both NaN if there are no observations
+     */
+    void selectClosestToMean(float[] result) {
+        result[0] = Float.NaN;
+        result[1] = Float.NaN;
+        final float m = (float) mean;
+        for (int i = 0; i < binMin.length; i++) {
+            if (!Float.isNaN(binMin[i])) {
+                select(binMin[i], binMinTime[i], m, result);
+                select(binMax[i], binMaxTime[i], m, result);
+            }
+        }
+    }
+
+    private static void select(float value, float time, float mean, float[] result) {
+        final float bestValue = result[0];
+        if (Float.isNaN(bestValue)) {
+            result[0] = value;
+            result[1] = time;
+            return;
+        }
+        final float distance = Math.abs(value - mean);
+        final float bestDistance = Math.abs(bestValue - mean);
+        if (distance < bestDistance ||
+                (distance == bestDistance && value > bestValue) ||
+                (value == bestValue && time < result[1])) {
+            result[0] = value;
+            result[1] = time;
+        }
+    }
+
+    private int getBinIndex(float value) {
+        final int bin = (int) ((value - minValue) / binWidth);
+        if (bin < 0) {
+            return 0;
+        }
+        if (bin >= binMin.length) {
+            return binMin.length - 1;
+        }
+        return bin;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.globveg;
+
+import org.esa.beam.framework.datamodel.FlagCoding;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.OperatorException;
+
+/**
+ * The bits of the packed GlobVeg quality band: the validity of fapar and lai and the cloud screening
+ * flags of l1_flags and Idepix the GlobVeg cloud-free test is based on.
+ */
+class QualityFlags {
+
+    static final String BAND_NAME = "globveg_quality";
+
+    static final int VALID_FAPAR = 0x0001;
+    static final int VALID_LAI = 0x0002;
+    static final int CLOUD_FREE = 0x0004;
+    static final int L1_INVALID = 0x0008;
+    static final int WATER = 0x0010;
+    static final int CLOUD = 0x0020;
+    static final int CLOUD_BUFFER = 0x0040;
+    static final int CLOUD_SHADOW = 0x0080;
+    static final int CLEAR_LAND = 0x0100;
+
+    // expressions of the virtual valid_fapar and valid_lai bands
+    static final String VALID_FAPAR_EXPRESSION = BAND_NAME + ".VALID_FAPAR";
+    static final String VALID_LAI_EXPRESSION = BAND_NAME + ".VALID_LAI";
+
+    static final String L1_FLAGS_BAND_NAME = "l1_flags";
+    static final String CLOUD_FLAGS_BAND_NAME = "cloud_classif_flags";
+
+    private final int l1InvalidMask;
+    private final int waterMask;
+    private final int cloudMask;
+    private final int cloudBufferMask;
+    private final int cloudShadowMask;
+    private final int clearLandMask;
+
+    /**
+     * @param idepixProduct the product with the l1_flags and cloud_classif_flags bands
+     */
+    QualityFlags(Product idepixProduct) {
+        l1InvalidMask = getFlagMask(idepixProduct, L1_FLAGS_BAND_NAME, "INVALID");
+        waterMask = getFlagMask(idepixProduct, CLOUD_FLAGS_BAND_NAME, "F_WATER");
+        cloudMask = getFlagMask(idepixProduct, CLOUD_FLAGS_BAND_NAME, "F_CLOUD");
+        cloudBufferMask = getFlagMask(idepixProduct, CLOUD_FLAGS_BAND_NAME, "F_CLOUD_BUFFER");
+        cloudShadowMask = getFlagMask(idepixProduct, CLOUD_FLAGS_BAND_NAME, "F_CLOUD_SHADOW");
+        clearLandMask = getFlagMask(idepixProduct, CLOUD_FLAGS_BAND_NAME, "F_CLEAR_LAND");
+    }
+
+    QualityFlags(int l1InvalidMask, int waterMask, int cloudMask, int cloudBufferMask, int cloudShadowMask,
+                 int clearLandMask) {
+        this.l1InvalidMask = l1InvalidMask;
+        this.waterMask = waterMask;
+        this.cloudMask = cloudMask;
+        this.cloudBufferMask = cloudBufferMask;
+        this.cloudShadowMask = cloudShadowMask;
+        this.clearLandMask = clearLandMask;
+    }
+
+    private static int getFlagMask(Product product, String bandName, String flagName) {
+        if (product.getBand(bandName) == null || product.getBand(bandName).getFlagCoding() == null ||
+                product.getBand(bandName).getFlagCoding().getFlag(flagName) == null) {
+            throw new OperatorException("Missing flag " + bandName + "." + flagName);
+        }
+        return product.getBand(bandName).getFlagCoding().getFlagMask(flagName);
+    }
+
+    static FlagCoding createFlagCoding() {
+        final FlagCoding flagCoding = new FlagCoding(BAND_NAME);
+        flagCoding.addFlag("VALID_FAPAR", VALID_FAPAR, "Cloud free and valid FAPAR");
+        flagCoding.addFlag("VALID_LAI", VALID_LAI, "Cloud free and valid LAI");
+        flagCoding.addFlag("CLOUD_FREE", CLOUD_FREE, "Valid, clear land without cloud, cloud buffer or shadow");
+        flagCoding.addFlag("L1_INVALID", L1_INVALID, "l1_flags.INVALID");
+        flagCoding.addFlag("WATER", WATER, "cloud_classif_flags.F_WATER");
+        flagCoding.addFlag("CLOUD", CLOUD, "cloud_classif_flags.F_CLOUD");
+        flagCoding.addFlag("CLOUD_BUFFER", CLOUD_BUFFER, "cloud_classif_flags.F_CLOUD_BUFFER");
+        flagCoding.addFlag("CLOUD_SHADOW", CLOUD_SHADOW, "cloud_classif_flags.F_CLOUD_SHADOW");
+        flagCoding.addFlag("CLEAR_LAND", CLEAR_LAND, "cloud_classif_flags.F_CLEAR_LAND");
+        return flagCoding;
+    }
+
+    /**
+     * Packs the quality of the pixels of a tile.
+     *
+     * @param validFapar the valid FAPAR mask, null for pixels known to be invalid
+     * @param validLai   the valid LAI mask, null for pixels known to be invalid
+     */
+    void pack(int[] l1Flags, int[] cloudFlags, int[] cloudFree, int[] validFapar, int[] validLai, int[] quality) {
+        for (int i = 0; i < quality.length; i++) {
+            int q = 0;
+            final int cloudFlag = cloudFlags[i];
+            q |= (l1Flags[i] & l1InvalidMask) != 0 ? L1_INVALID : 0;
+            q |= (cloudFlag & waterMask) != 0 ? WATER : 0;
+            q |= (cloudFlag & cloudMask) != 0 ? CLOUD : 0;
+            q |= (cloudFlag & cloudBufferMask) != 0 ? CLOUD_BUFFER : 0;
+            q |= (cloudFlag & cloudShadowMask) != 0 ? CLOUD_SHADOW : 0;
+            q |= (cloudFlag & clearLandMask) != 0 ? CLEAR_LAND : 0;
+            if (cloudFree[i] != 0) {
+                q |= CLOUD_FREE;
+                q |= validFapar != null && validFapar[i] != 0 ? VALID_FAPAR : 0;
+                q |= validLai != null && validLai[i] != 0 ? VALID_LAI : 0;
+            }
+            quality[i] = q;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.globveg;
+
+import org.esa.beam.binning.BinContext;
+
+/**
+ * An {@link ObservationBuffer} shared by all aggregators of a bin reading the same variable and mask,
+ * so that the observations are buffered once however many composites are computed from them.
+ * <p/>
+ * The binning calls {@code initTemporal}, {@code aggregateTemporal} and {@code completeTemporal} of all
+ * aggregators in turn. Each sharing aggregator joins the buffer in {@code initTemporal}, offers every
+ * spatial observation in {@code aggregateTemporal}, of which only the first offer of each round is stored,
+ * and leaves in {@code completeTemporal}. The buffer goes back to the pool when the last aggregator has left.
+ */
+class SharedObservationBuffer {
+
+    private static final ObservationBufferPool<ObservationBuffer> POOL = ObservationBufferPool.create();
+
+    private final ObservationBuffer buffer;
+    private int refCount;
+    private int offerCount;
+
+    private SharedObservationBuffer(ObservationBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Joins the shared buffer of the given name, creating it if this is the first aggregator.
+     */
+    static SharedObservationBuffer join(BinContext ctx, String name) {
+        SharedObservationBuffer shared = ctx.get(name);
+        if (shared == null) {
+            shared = new SharedObservationBuffer(POOL.acquire());
+            ctx.put(name, shared);
+        }
+        shared.refCount++;
+        return shared;
+    }
+
+    /**
+     * Offers an observation, NaN values are counted as offered but not stored.
+     */
+    void offer(float value, float time) {
+        if (offerCount++ % refCount == 0 && !Float.isNaN(value)) {
+            buffer.add(value, time);
+        }
+    }
+
+    ObservationBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Leaves the shared buffer, the last aggregator to leave removes it from the context.
+     */
+    void leave(BinContext ctx, String name) {
+        if (--refCount == 0) {
+            ctx.put(name, null);
+            POOL.release(buffer);
+        }
+    }
+}
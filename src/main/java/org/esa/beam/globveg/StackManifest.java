@@ -0,0 +1,155 @@
+package org.esa.beam.globveg;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The record of which source files went into the yearly stacks of a year and site.
+ * For each source file, its size, its modification time and the stack bands it produced are kept,
+ * so that an incremental run of {@link YearlyStackOp} only needs to process new or changed files.
+ * The configuration the stacks were written with is kept as well: the bands of unchanged files can only be
+ * copied from the existing stacks if it has not changed.
+ */
+class StackManifest {
+
+    private static final String SIZE_SUFFIX = ".size";
+    private static final String LAST_MODIFIED_SUFFIX = ".lastModified";
+    private static final String BANDS_SUFFIX = ".bands";
+    private static final String CONFIGURATION_PREFIX = "stack.";
+
+    private final Properties properties;
+
+    StackManifest() {
+        properties = new Properties();
+    }
+
+    /**
+     * Reads a manifest. If the file does not exist, an empty manifest is returned.
+     *
+     * @param file the manifest file
+     * @return the manifest
+     * @throws IOException if the file exists but cannot be read
+     */
+    static StackManifest read(File file) throws IOException {
+        final StackManifest manifest = new StackManifest();
+        if (file.isFile()) {
+            final InputStream inputStream = new FileInputStream(file);
+            try {
+                manifest.properties.load(inputStream);
+            } finally {
+                inputStream.close();
+            }
+        }
+        return manifest;
+    }
+
+    void write(File file) throws IOException {
+        final OutputStream outputStream = new FileOutputStream(file);
+        try {
+            properties.store(outputStream, "Source files of the Globveg yearly stacks");
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * @return true, if the source file has been recorded with its current size and modification time
+     */
+    boolean isUpToDate(File sourceFile) {
+        final String name = sourceFile.getName();
+        return String.valueOf(sourceFile.length()).equals(properties.getProperty(name + SIZE_SUFFIX)) &&
+                String.valueOf(sourceFile.lastModified()).equals(properties.getProperty(name + LAST_MODIFIED_SUFFIX));
+    }
+
+    /**
+     * @return the stack bands recorded for the source file, empty if the file has not been recorded
+     */
+    List<String> getBands(File sourceFile) {
+        final List<String> bands = new ArrayList<String>();
+        final String value = properties.getProperty(sourceFile.getName() + BANDS_SUFFIX);
+        if (value != null) {
+            for (String band : value.split(",")) {
+                if (!band.isEmpty()) {
+                    bands.add(band);
+                }
+            }
+        }
+        return bands;
+    }
+
+    /**
+     * Records the source file with its current size and modification time.
+     *
+     * @param sourceFile the source file
+     * @param bands      the stack bands produced from the source file
+     */
+    void put(File sourceFile, List<String> bands) {
+        final String name = sourceFile.getName();
+        final StringBuilder sb = new StringBuilder();
+        for (String band : bands) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(band);
+        }
+        properties.setProperty(name + SIZE_SUFFIX, String.valueOf(sourceFile.length()));
+        properties.setProperty(name + LAST_MODIFIED_SUFFIX, String.valueOf(sourceFile.lastModified()));
+        properties.setProperty(name + BANDS_SUFFIX, sb.toString());
+    }
+
+    /**
+     * @return the names of all recorded source files
+     */
+    List<String> getSourceFileNames() {
+        final List<String> names = new ArrayList<String>();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.endsWith(SIZE_SUFFIX)) {
+                names.add(key.substring(0, key.length() - SIZE_SUFFIX.length()));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Records the configuration the stacks are written with, e.g. scale factor and aggregation.
+     */
+    void setConfiguration(Map<String, String> configuration) {
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(CONFIGURATION_PREFIX)) {
+                properties.remove(key);
+            }
+        }
+        for (Map.Entry<String, String> entry : configuration.entrySet()) {
+            properties.setProperty(CONFIGURATION_PREFIX + entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @return true, if the stacks were written with exactly the given configuration
+     */
+    boolean hasConfiguration(Map<String, String> configuration) {
+        int count = 0;
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(CONFIGURATION_PREFIX)) {
+                count++;
+            }
+        }
+        if (count != configuration.size()) {
+            return false;
+        }
+        for (Map.Entry<String, String> entry : configuration.entrySet()) {
+            if (!entry.getValue().equals(properties.getProperty(CONFIGURATION_PREFIX + entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
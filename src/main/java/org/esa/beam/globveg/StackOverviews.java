@@ -0,0 +1,107 @@
+package org.esa.beam.globveg;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Access to the overview levels written by {@link YearlyStackOp} next to a stack file.
+ * The overview downsampled by the factor {@code f} (2, 4, 8, ...) of 'L3_2010_site_FAPAR.tif'
+ * is 'L3_2010_site_FAPAR_ovr&lt;f&gt;.tif'.
+ */
+public class StackOverviews {
+
+    private static final int MAX_LEVELS = 16;
+
+    private StackOverviews() {
+    }
+
+    /**
+     * @param stackFile the full resolution stack file
+     * @param factor    the downsampling factor, a power of 2
+     * @return the overview file, which may not exist
+     */
+    public static File getOverviewFile(File stackFile, int factor) {
+        final String name = stackFile.getName();
+        final int extensionIndex = name.lastIndexOf('.');
+        final String baseName = extensionIndex > 0 ? name.substring(0, extensionIndex) : name;
+        final String extension = extensionIndex > 0 ? name.substring(extensionIndex) : "";
+        return new File(stackFile.getParentFile(), baseName + "_ovr" + factor + extension);
+    }
+
+    /**
+     * @param stackFile the full resolution stack file
+     * @return the factors of the existing levels in increasing order, starting with 1 for the stack itself
+     */
+    public static int[] getAvailableFactors(File stackFile) {
+        final List<Integer> factors = new ArrayList<Integer>();
+        factors.add(1);
+        for (int level = 1; level <= MAX_LEVELS; level++) {
+            final int factor = 1 << level;
+            if (!getOverviewFile(stackFile, factor).isFile()) {
+                break;
+            }
+            factors.add(factor);
+        }
+        final int[] result = new int[factors.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = factors.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * @param width     the width of the stack
+     * @param height    the height of the stack
+     * @param maxLevels the number of overview levels requested
+     * @return the number of overview levels that can be written for a stack of the given size, at most
+     *         {@code maxLevels}: levels which would be less than one pixel wide or high are left out
+     */
+    public static int getLevelCount(int width, int height, int maxLevels) {
+        int levelCount = 0;
+        while (levelCount < Math.min(maxLevels, MAX_LEVELS) &&
+                (width >> (levelCount + 1)) > 0 && (height >> (levelCount + 1)) > 0) {
+            levelCount++;
+        }
+        return levelCount;
+    }
+
+    /**
+     * Deletes the overview files beyond the given number of levels, e.g. after the number of levels has been
+     * reduced.
+     *
+     * @param stackFile  the full resolution stack file
+     * @param levelCount the number of overview levels to keep
+     * @throws IOException if an overview file cannot be deleted
+     */
+    public static void deleteSurplusLevels(File stackFile, int levelCount) throws IOException {
+        for (int level = levelCount + 1; level <= MAX_LEVELS; level++) {
+            final File overviewFile = getOverviewFile(stackFile, 1 << level);
+            if (overviewFile.isFile() && !overviewFile.delete()) {
+                throw new IOException("Cannot delete overview " + overviewFile);
+            }
+        }
+    }
+
+    /**
+     * Selects the coarsest level that still has at least the requested resolution.
+     *
+     * @param stackFile the full resolution stack file
+     * @param scale     the requested scale relative to the full resolution, e.g. 0.3 for a display showing
+     *                  about 3 stack pixels per screen pixel
+     * @return the file of the selected level, the stack file itself for scales of 0.5 and above
+     */
+    public static File selectLevel(File stackFile, double scale) {
+        if (!(scale > 0.0)) {
+            throw new IllegalArgumentException("scale <= 0");
+        }
+        int selectedFactor = 1;
+        for (int factor : getAvailableFactors(stackFile)) {
+            if (1.0 / factor >= scale) {
+                selectedFactor = factor;
+            }
+        }
+        return selectedFactor == 1 ? stackFile : getOverviewFile(stackFile, selectedFactor);
+    }
+}
@@ -0,0 +1,483 @@
+package org.esa.beam.globveg;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.GeoCoding;
+import org.esa.beam.framework.datamodel.GeoPos;
+import org.esa.beam.framework.datamodel.PixelPos;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.globveg.util.Constants;
+import ucar.ma2.Array;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.Variable;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts the time series of sites (points or polygons) from a yearly stack written by {@link YearlyStackOp},
+ * in the BANDS layout (e.g. 'L3_2010_site_FAPAR.tif') or in the TIME_SERIES layout ('L3_2010_site_FAPAR.nc').
+ * <p/>
+ * Only the pixels around the sites are read. Sites are grouped by the blocks of {@code blockSize}
+ * pixels they fall into and each group is read as one rectangle for all periods, so nearby sites share one
+ * read. For the TIME_SERIES layout, a rectangle read only touches the chunks it covers.
+ * <p/>
+ * Site geometries are given in geographic coordinates, x is the longitude and y the latitude.
+ * For a polygon, the pixels whose centre is inside the polygon are averaged.
+ */
+public class StackTimeSeriesExtractor {
+
+    private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+    private final StackSource source;
+    private final int blockSize;
+
+    /**
+     * @param stackFile    the stack file
+     * @param variableName the stacked variable, e.g. 'fapar'
+     * @param blockSize    the size of the blocks sites are grouped into
+     * @throws IOException if the stack cannot be opened
+     */
+    public StackTimeSeriesExtractor(File stackFile, String variableName, int blockSize) throws IOException {
+        this(stackFile.getName().endsWith(".nc") ?
+                     new NetcdfStackSource(stackFile, variableName) :
+                     new ProductStackSource(readProduct(stackFile), variableName, true), blockSize);
+    }
+
+    StackTimeSeriesExtractor(Product stackProduct, String variableName, int blockSize) throws IOException {
+        this(new ProductStackSource(stackProduct, variableName, false), blockSize);
+    }
+
+    private StackTimeSeriesExtractor(StackSource source, int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize < 1");
+        }
+        this.source = source;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @return the periods of the stack in time order, e.g. 'jan01', 'jan16', ...
+     */
+    public String[] getPeriods() {
+        return source.periods;
+    }
+
+    /**
+     * Extracts the time series of the given sites.
+     *
+     * @param sites the sites
+     * @return the time series, in the order of the sites. A site outside the stack has a series without valid values.
+     * @throws IOException if reading the stack fails
+     */
+    public List<TimeSeries> extract(List<Site> sites) throws IOException {
+        final TimeSeries[] result = new TimeSeries[sites.size()];
+
+        // group the sites by block, the blocks in row order
+        final Map<Long, List<Integer>> blocks = new TreeMap<Long, List<Integer>>();
+        final Rectangle[] siteRegions = new Rectangle[sites.size()];
+        for (int i = 0; i < sites.size(); i++) {
+            siteRegions[i] = getPixelRegion(sites.get(i).geometry);
+            if (siteRegions[i] == null) {
+                result[i] = new TimeSeries(sites.get(i).name, source.periods);
+                continue;
+            }
+            final long blockKey = (long) (siteRegions[i].y / blockSize) * Integer.MAX_VALUE +
+                    siteRegions[i].x / blockSize;
+            List<Integer> block = blocks.get(blockKey);
+            if (block == null) {
+                block = new ArrayList<Integer>();
+                blocks.put(blockKey, block);
+            }
+            block.add(i);
+        }
+
+        for (List<Integer> block : blocks.values()) {
+            Rectangle region = null;
+            for (int i : block) {
+                region = region == null ? new Rectangle(siteRegions[i]) : region.union(siteRegions[i]);
+            }
+            final BlockData data = source.read(region);
+            for (int i : block) {
+                result[i] = aggregate(sites.get(i), siteRegions[i], data);
+            }
+        }
+
+        final List<TimeSeries> timeSeriesList = new ArrayList<TimeSeries>(result.length);
+        for (TimeSeries timeSeries : result) {
+            timeSeriesList.add(timeSeries);
+        }
+        return timeSeriesList;
+    }
+
+    public void close() {
+        source.close();
+    }
+
+    private Rectangle getPixelRegion(Geometry geometry) {
+        final Envelope envelope = geometry.getEnvelopeInternal();
+        final PixelPos p1 = source.getPixelPos(envelope.getMinY(), envelope.getMinX());
+        final PixelPos p2 = source.getPixelPos(envelope.getMaxY(), envelope.getMaxX());
+        if (p1 == null || p2 == null) {
+            return null;
+        }
+        final int x1 = Math.max(0, (int) Math.floor(Math.min(p1.x, p2.x)));
+        final int y1 = Math.max(0, (int) Math.floor(Math.min(p1.y, p2.y)));
+        final int x2 = Math.min(source.width - 1, (int) Math.floor(Math.max(p1.x, p2.x)));
+        final int y2 = Math.min(source.height - 1, (int) Math.floor(Math.max(p1.y, p2.y)));
+        if (x1 > x2 || y1 > y2) {
+            return null;
+        }
+        return new Rectangle(x1, y1, x2 - x1 + 1, y2 - y1 + 1);
+    }
+
+    private TimeSeries aggregate(Site site, Rectangle siteRegion, BlockData data) {
+        final TimeSeries timeSeries = new TimeSeries(site.name, source.periods);
+        final boolean isPoint = site.geometry instanceof Point;
+        final int numPeriods = source.periods.length;
+        final double[] valueSums = new double[numPeriods];
+        final double[] mjdSums = new double[numPeriods];
+        final int[] mjdCounts = new int[numPeriods];
+        for (int y = siteRegion.y; y < siteRegion.y + siteRegion.height; y++) {
+            for (int x = siteRegion.x; x < siteRegion.x + siteRegion.width; x++) {
+                if (!isPoint && !site.geometry.contains(GEOMETRY_FACTORY.createPoint(source.getCoordinate(x, y)))) {
+                    continue;
+                }
+                final int index = (y - data.region.y) * data.region.width + (x - data.region.x);
+                for (int t = 0; t < numPeriods; t++) {
+                    final float value = data.values[t][index];
+                    if (Float.isNaN(value)) {
+                        continue;
+                    }
+                    valueSums[t] += value;
+                    timeSeries.pixelCounts[t]++;
+                    if (data.mjds != null && !Float.isNaN(data.mjds[t][index])) {
+                        mjdSums[t] += data.mjds[t][index];
+                        mjdCounts[t]++;
+                    }
+                    if (data.counts != null && !Float.isNaN(data.counts[t][index])) {
+                        timeSeries.counts[t] = Math.max(0, timeSeries.counts[t]) + (int) data.counts[t][index];
+                    }
+                }
+            }
+        }
+        for (int t = 0; t < numPeriods; t++) {
+            if (timeSeries.pixelCounts[t] > 0) {
+                timeSeries.values[t] = (float) (valueSums[t] / timeSeries.pixelCounts[t]);
+            }
+            if (mjdCounts[t] > 0) {
+                timeSeries.mjds[t] = (float) (mjdSums[t] / mjdCounts[t]);
+            }
+        }
+        return timeSeries;
+    }
+
+    private static Product readProduct(File stackFile) throws IOException {
+        final Product product = ProductIO.readProduct(stackFile);
+        if (product == null) {
+            throw new IOException("No reader found for " + stackFile);
+        }
+        return product;
+    }
+
+    /**
+     * A site to extract, a point or a polygon in geographic coordinates.
+     */
+    public static class Site {
+
+        public final String name;
+        public final Geometry geometry;
+
+        public Site(String name, Geometry geometry) {
+            this.name = name;
+            this.geometry = geometry;
+        }
+
+        public static Site createPoint(String name, double lat, double lon) {
+            return new Site(name, GEOMETRY_FACTORY.createPoint(new Coordinate(lon, lat)));
+        }
+    }
+
+    /**
+     * The time series of a site. For a polygon, the values and observation times are averaged over the
+     * valid pixels and the observation counts are summed up.
+     */
+    public static class TimeSeries {
+
+        public final String siteName;
+        public final String[] periods;
+        /**
+         * The values, NaN if no pixel is valid.
+         */
+        public final float[] values;
+        /**
+         * The observation times (MJD2000), NaN if not valid or not stacked.
+         */
+        public final float[] mjds;
+        /**
+         * The observation counts, -1 if not valid or not stacked.
+         */
+        public final int[] counts;
+        /**
+         * The number of valid pixels the values are taken from.
+         */
+        public final int[] pixelCounts;
+
+        TimeSeries(String siteName, String[] periods) {
+            this.siteName = siteName;
+            this.periods = periods;
+            values = new float[periods.length];
+            mjds = new float[periods.length];
+            counts = new int[periods.length];
+            pixelCounts = new int[periods.length];
+            Arrays.fill(values, Float.NaN);
+            Arrays.fill(mjds, Float.NaN);
+            Arrays.fill(counts, -1);
+        }
+    }
+
+    private static class BlockData {
+
+        final Rectangle region;
+        final float[][] values;
+        final float[][] mjds;
+        final float[][] counts;
+
+        BlockData(Rectangle region, float[][] values, float[][] mjds, float[][] counts) {
+            this.region = region;
+            this.values = values;
+            this.mjds = mjds;
+            this.counts = counts;
+        }
+    }
+
+    private static abstract class StackSource {
+
+        int width;
+        int height;
+        String[] periods;
+
+        abstract PixelPos getPixelPos(double lat, double lon);
+
+        abstract Coordinate getCoordinate(int x, int y);
+
+        /**
+         * Reads all periods of a region, no-data is NaN.
+         */
+        abstract BlockData read(Rectangle region) throws IOException;
+
+        abstract void close();
+    }
+
+    /**
+     * A stack in the BANDS layout, bands named like 'fapar_jun16', 'fapar_mjd_jun16' and 'fapar_count_jun16'.
+     */
+    private static class ProductStackSource extends StackSource {
+
+        private final Product product;
+        private final boolean disposeProduct;
+        private final GeoCoding geoCoding;
+        private final Band[] valueBands;
+        private final Band[] mjdBands;
+        private final Band[] countBands;
+
+        ProductStackSource(Product product, String variableName, boolean disposeProduct) throws IOException {
+            this.product = product;
+            this.disposeProduct = disposeProduct;
+            geoCoding = product.getGeoCoding();
+            if (geoCoding == null) {
+                throw new IOException("Stack " + product.getName() + " is not geo-coded");
+            }
+            width = product.getSceneRasterWidth();
+            height = product.getSceneRasterHeight();
+
+            final Pattern pattern = Pattern.compile(Pattern.quote(variableName) + "_([a-z]{3}\\d{2})");
+            final List<String> periodList = new ArrayList<String>();
+            for (Band band : product.getBands()) {
+                final Matcher matcher = pattern.matcher(band.getName());
+                if (matcher.matches()) {
+                    periodList.add(matcher.group(1));
+                }
+            }
+            if (periodList.isEmpty()) {
+                throw new IOException("No bands of variable '" + variableName + "' in stack " + product.getName());
+            }
+            periods = periodList.toArray(new String[periodList.size()]);
+            valueBands = getBands(variableName, periods);
+            mjdBands = getBands(variableName + StackType.MJD_SUFFIX, periods);
+            countBands = getBands(variableName + StackType.COUNT_SUFFIX, periods);
+        }
+
+        private Band[] getBands(String prefix, String[] periods) {
+            final Band[] bands = new Band[periods.length];
+            for (int t = 0; t < periods.length; t++) {
+                bands[t] = product.getBand(prefix + "_" + periods[t]);
+                if (bands[t] == null) {
+                    return null;
+                }
+            }
+            return bands;
+        }
+
+        @Override
+        PixelPos getPixelPos(double lat, double lon) {
+            final PixelPos pixelPos = geoCoding.getPixelPos(new GeoPos((float) lat, (float) lon), null);
+            return pixelPos.isValid() ? pixelPos : null;
+        }
+
+        @Override
+        Coordinate getCoordinate(int x, int y) {
+            final GeoPos geoPos = geoCoding.getGeoPos(new PixelPos(x + 0.5f, y + 0.5f), null);
+            return new Coordinate(geoPos.lon, geoPos.lat);
+        }
+
+        @Override
+        BlockData read(Rectangle region) {
+            return new BlockData(region, readBands(valueBands, region), readBands(mjdBands, region),
+                                 readBands(countBands, region));
+        }
+
+        private static float[][] readBands(Band[] bands, Rectangle region) {
+            if (bands == null) {
+                return null;
+            }
+            final float[][] data = new float[bands.length][];
+            for (int t = 0; t < bands.length; t++) {
+                // the image only computes (reads) the tiles intersecting the region
+                data[t] = bands[t].getGeophysicalImage().getData(region).getSamples(
+                        region.x, region.y, region.width, region.height, 0, (float[]) null);
+                if (bands[t].isNoDataValueUsed()) {
+                    final float noDataValue = (float) bands[t].getGeophysicalNoDataValue();
+                    for (int i = 0; i < data[t].length; i++) {
+                        if (data[t][i] == noDataValue) {
+                            data[t][i] = Float.NaN;
+                        }
+                    }
+                }
+            }
+            return data;
+        }
+
+        @Override
+        void close() {
+            if (disposeProduct) {
+                product.dispose();
+            }
+        }
+    }
+
+    /**
+     * A stack in the TIME_SERIES layout, variables {@code (time, lat, lon)}.
+     */
+    private static class NetcdfStackSource extends StackSource {
+
+        private final NetcdfFile netcdfFile;
+        private final Variable valueVariable;
+        private final Variable mjdVariable;
+        private final Variable countVariable;
+        private final float[] lats;
+        private final float[] lons;
+
+        NetcdfStackSource(File stackFile, String variableName) throws IOException {
+            netcdfFile = NetcdfFile.open(stackFile.getPath());
+            try {
+                valueVariable = netcdfFile.findVariable(variableName);
+                if (valueVariable == null || valueVariable.getRank() != 3) {
+                    throw new IOException("No variable (time, lat, lon) '" + variableName + "' in " + stackFile);
+                }
+                mjdVariable = netcdfFile.findVariable(variableName + StackType.MJD_SUFFIX);
+                countVariable = netcdfFile.findVariable(variableName + StackType.COUNT_SUFFIX);
+                lats = (float[]) netcdfFile.findVariable("lat").read().get1DJavaArray(float.class);
+                lons = (float[]) netcdfFile.findVariable("lon").read().get1DJavaArray(float.class);
+                width = lons.length;
+                height = lats.length;
+
+                final double[] times = (double[]) netcdfFile.findVariable("time").read().get1DJavaArray(double.class);
+                periods = new String[times.length];
+                for (int t = 0; t < times.length; t++) {
+                    final Calendar calendar = new ProductData.UTC(times[t]).getAsCalendar();
+                    periods[t] = String.format("%s%02d", Constants.MONTHS[calendar.get(Calendar.MONTH)],
+                                               calendar.get(Calendar.DAY_OF_MONTH));
+                }
+            } catch (IOException e) {
+                netcdfFile.close();
+                throw e;
+            }
+        }
+
+        @Override
+        PixelPos getPixelPos(double lat, double lon) {
+            // may be outside the raster, the caller clips
+            return new PixelPos(toPixel(lons, (float) lon), toPixel(lats, (float) lat));
+        }
+
+        // the pixel coordinate of a value in a regular, monotonic coordinate array of pixel centres
+        private static float toPixel(float[] coordinates, float value) {
+            final int n = coordinates.length;
+            final float step = n > 1 ? (coordinates[n - 1] - coordinates[0]) / (n - 1) : 1.0f;
+            return (value - coordinates[0]) / step + 0.5f;
+        }
+
+        @Override
+        Coordinate getCoordinate(int x, int y) {
+            return new Coordinate(lons[x], lats[y]);
+        }
+
+        @Override
+        BlockData read(Rectangle region) throws IOException {
+            return new BlockData(region, readVariable(valueVariable, region), readVariable(mjdVariable, region),
+                                 readVariable(countVariable, region));
+        }
+
+        private float[][] readVariable(Variable variable, Rectangle region) throws IOException {
+            if (variable == null) {
+                return null;
+            }
+            final Array array;
+            try {
+                array = variable.read(new int[]{0, region.y, region.x},
+                                      new int[]{periods.length, region.height, region.width});
+            } catch (InvalidRangeException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+            final Attribute fillValueAttribute = variable.findAttribute("_FillValue");
+            final float fillValue = fillValueAttribute != null ?
+                    fillValueAttribute.getNumericValue().floatValue() : Float.NaN;
+            final int blockLength = region.width * region.height;
+            final float[][] data = new float[periods.length][blockLength];
+            for (int t = 0; t < periods.length; t++) {
+                for (int i = 0; i < blockLength; i++) {
+                    final float value = array.getFloat(t * blockLength + i);
+                    data[t][i] = value == fillValue ? Float.NaN : value;
+                }
+            }
+            return data;
+        }
+
+        @Override
+        void close() {
+            try {
+                netcdfFile.close();
+            } catch (IOException ignore) {
+                // nothing to do
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.esa.beam.globveg;
+
+/**
+ * The yearly stacks built from the biweekly Globveg L3 products.
+ *
+ * @see YearlyStackOp
+ */
+enum StackType {
+
+    FAPAR("fapar", "FAPAR"),
+    LAI("lai", "LAI"),
+    NDVI("ndvi_kg_max", "NDVI"),
+    META("num_obs", "meta");
+
+    static final String MJD_SUFFIX = "_mjd";
+    static final String COUNT_SUFFIX = "_count";
+
+    private final String sourceBandName;
+    private final String fileSuffix;
+
+    StackType(String sourceBandName, String fileSuffix) {
+        this.sourceBandName = sourceBandName;
+        this.fileSuffix = fileSuffix;
+    }
+
+    /**
+     * @return the name of the L3 band stacked into this stack
+     */
+    String getSourceBandName() {
+        return sourceBandName;
+    }
+
+    /**
+     * @return the suffix of the stack file name, e.g. 'FAPAR' for 'L3_2010_site_FAPAR.tif'
+     */
+    String getFileSuffix() {
+        return fileSuffix;
+    }
+
+    /**
+     * @param bandName an L3 band name
+     * @return the stack the band belongs to, or {@code null} if the band is not stacked
+     */
+    static StackType forSourceBand(String bandName) {
+        return forSourceBand(bandName, false);
+    }
+
+    /**
+     * @param bandName         an L3 band name
+     * @param includeMetadata if the '_mjd' and '_count' bands of the stacked band are stacked as well
+     * @return the stack the band belongs to, or {@code null} if the band is not stacked
+     */
+    static StackType forSourceBand(String bandName, boolean includeMetadata) {
+        for (StackType stackType : values()) {
+            if (stackType.sourceBandName.equalsIgnoreCase(bandName)) {
+                return stackType;
+            }
+            if (includeMetadata && stackType != META &&
+                    ((stackType.sourceBandName + MJD_SUFFIX).equalsIgnoreCase(bandName) ||
+                            (stackType.sourceBandName + COUNT_SUFFIX).equalsIgnoreCase(bandName))) {
+                return stackType;
+            }
+        }
+        return null;
+    }
+}
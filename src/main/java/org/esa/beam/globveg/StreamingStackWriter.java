@@ -0,0 +1,391 @@
+package org.esa.beam.globveg;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.dataio.ProductWriter;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.globveg.util.BlockReducer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes yearly stacks in row stripes with bounded memory.
+ * <p/>
+ * For each stripe, the rows needed are read directly from the source products' readers (not through
+ * the JAI tile cache), resampled if necessary, and written to the stack writers. The stripe height is
+ * derived from a memory budget. Source products are opened on demand and at most {@code maxOpenProducts}
+ * are kept open at the same time, the least recently used one is closed first. If there are more source
+ * products than that, all stripes of a source product are written before the next one is opened, so every
+ * source product is opened once.
+ * <p/>
+ * Overviews of a stack (see {@link Stack#addOverview}) are reduced from the stripes of the stack
+ * in the same pass.
+ */
+class StreamingStackWriter {
+
+    private final int maxOpenProducts;
+    private final long memoryBudget;
+
+    /**
+     * @param maxOpenProducts the maximum number of source products open at the same time
+     * @param memoryBudget    the memory in bytes available for the stripe buffers
+     */
+    StreamingStackWriter(int maxOpenProducts, long memoryBudget) {
+        if (maxOpenProducts < 1) {
+            throw new IllegalArgumentException("maxOpenProducts < 1");
+        }
+        this.maxOpenProducts = maxOpenProducts;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Writes the given stacks. All stack products must have the same raster size.
+     *
+     * @param stacks the stacks to write
+     * @throws IOException if reading a source or writing a stack fails
+     */
+    void write(List<Stack> stacks) throws IOException {
+        if (stacks.isEmpty()) {
+            return;
+        }
+        final int width = stacks.get(0).product.getSceneRasterWidth();
+        final int height = stacks.get(0).product.getSceneRasterHeight();
+
+        // all band sources of all stacks in file order, so each source product is visited once per stripe
+        final List<BandTarget> bandTargets = new ArrayList<BandTarget>();
+        for (Stack stack : stacks) {
+            for (Map.Entry<String, BandSource> entry : stack.bandSources.entrySet()) {
+                bandTargets.add(new BandTarget(stack, stack.product.getBand(entry.getKey()), entry.getValue()));
+            }
+        }
+        Collections.sort(bandTargets, new Comparator<BandTarget>() {
+            @Override
+            public int compare(BandTarget o1, BandTarget o2) {
+                return o1.source.file.compareTo(o2.source.file);
+            }
+        });
+
+        // the stripes must be aligned with the blocks of the coarsest overview
+        final List<Stack> allStacks = new ArrayList<Stack>();
+        int maxOverviewFactor = 1;
+        for (Stack stack : stacks) {
+            allStacks.add(stack);
+            allStacks.addAll(stack.overviews);
+            maxOverviewFactor = Math.max(maxOverviewFactor, 1 << stack.overviews.size());
+        }
+        int stripeHeight = computeStripeHeight(width, height, bandTargets);
+        stripeHeight = Math.max(maxOverviewFactor, stripeHeight - stripeHeight % maxOverviewFactor);
+
+        final ProductCache productCache = new ProductCache(maxOpenProducts);
+        try {
+            for (Stack stack : allStacks) {
+                stack.writer = ProductIO.getProductWriter(stack.formatName);
+                if (stack.writer == null) {
+                    throw new IOException("No writer found for format '" + stack.formatName + "'");
+                }
+                stack.writer.writeProductNodes(stack.product, stack.file);
+            }
+            // group the band sources by file, the targets are sorted by file
+            final List<List<BandTarget>> fileGroups = new ArrayList<List<BandTarget>>();
+            for (BandTarget bandTarget : bandTargets) {
+                final List<BandTarget> lastGroup = fileGroups.isEmpty() ? null : fileGroups.get(fileGroups.size() - 1);
+                if (lastGroup != null && lastGroup.get(0).source.file.equals(bandTarget.source.file)) {
+                    lastGroup.add(bandTarget);
+                } else {
+                    final List<BandTarget> group = new ArrayList<BandTarget>();
+                    group.add(bandTarget);
+                    fileGroups.add(group);
+                }
+            }
+            if (fileGroups.size() <= maxOpenProducts) {
+                // stripe by stripe, all source products stay open
+                for (int y = 0; y < height; y += stripeHeight) {
+                    final int stripeRows = Math.min(stripeHeight, height - y);
+                    for (List<BandTarget> group : fileGroups) {
+                        final Product sourceProduct = productCache.get(group.get(0).source.file);
+                        for (BandTarget bandTarget : group) {
+                            writeStripe(bandTarget, sourceProduct, width, y, stripeRows);
+                        }
+                    }
+                }
+            } else {
+                // more sources than may be open: stripe by stripe, every product would be re-opened for each
+                // stripe, so the stripes of one source product are written before the next one is opened
+                for (List<BandTarget> group : fileGroups) {
+                    final Product sourceProduct = productCache.get(group.get(0).source.file);
+                    for (int y = 0; y < height; y += stripeHeight) {
+                        final int stripeRows = Math.min(stripeHeight, height - y);
+                        for (BandTarget bandTarget : group) {
+                            writeStripe(bandTarget, sourceProduct, width, y, stripeRows);
+                        }
+                    }
+                }
+            }
+        } finally {
+            productCache.dispose();
+            for (Stack stack : allStacks) {
+                if (stack.writer != null) {
+                    stack.writer.close();
+                    stack.writer = null;
+                }
+            }
+        }
+    }
+
+    private static void writeStripe(BandTarget bandTarget, Product sourceProduct, int width, int y, int stripeRows)
+            throws IOException {
+        final Band sourceBand = sourceProduct.getBand(bandTarget.source.bandName);
+        if (sourceBand == null) {
+            throw new IOException("Band '" + bandTarget.source.bandName + "' not found in " + bandTarget.source.file);
+        }
+        final ProductData stripe = readStripe(sourceBand, bandTarget.source.scaleFactor,
+                                              bandTarget.source.aggregation,
+                                              bandTarget.band.getDataType(), width, y, stripeRows);
+        bandTarget.stack.writer.writeBandRasterData(bandTarget.band, 0, y, width, stripeRows,
+                                                    stripe, ProgressMonitor.NULL);
+        if (!bandTarget.stack.overviews.isEmpty()) {
+            writeOverviews(bandTarget, stripe, width, y, stripeRows);
+        }
+    }
+
+    private static void writeOverviews(BandTarget bandTarget, ProductData stripe, int width, int y, int rows)
+            throws IOException {
+        final float[] values = toFloats(stripe);
+        final List<Stack> overviews = bandTarget.stack.overviews;
+        for (int level = 1; level <= overviews.size(); level++) {
+            final Stack overview = overviews.get(level - 1);
+            final Band overviewBand = overview.product.getBand(bandTarget.band.getName());
+            final int factor = 1 << level;
+            final int overviewWidth = overview.product.getSceneRasterWidth();
+            final int overviewY0 = y / factor;
+            final int overviewY1 = Math.min(overview.product.getSceneRasterHeight(), (y + rows) / factor);
+            if (overviewY1 <= overviewY0) {
+                continue;
+            }
+            final BlockReducer reducer = new BlockReducer(bandTarget.stack.overviewAggregation, 1.0f / factor,
+                                                          bandTarget.band.isNoDataValueUsed(),
+                                                          bandTarget.band.getNoDataValue());
+            final int overviewRows = overviewY1 - overviewY0;
+            final float[] overviewValues = new float[overviewWidth * overviewRows];
+            reducer.reduce(values, 0, y, width, rows, overviewValues, 0, overviewY0, overviewWidth, overviewRows);
+            overview.writer.writeBandRasterData(overviewBand, 0, overviewY0, overviewWidth, overviewRows,
+                                                toProductData(overviewValues, overviewBand.getDataType()),
+                                                ProgressMonitor.NULL);
+        }
+    }
+
+    private int computeStripeHeight(int width, int height, List<BandTarget> bandTargets) {
+        // per target row: the target row and the source rows it is resampled from
+        long bytesPerRow = 0;
+        for (BandTarget bandTarget : bandTargets) {
+            final float scaleFactor = bandTarget.source.scaleFactor;
+            final long elemSize = ProductData.getElemSize(bandTarget.band.getDataType());
+            final long rowBytes = width * elemSize + (long) Math.ceil(width * elemSize / (scaleFactor * scaleFactor));
+            bytesPerRow = Math.max(bytesPerRow, rowBytes);
+        }
+        if (bytesPerRow == 0) {
+            return height;
+        }
+        return (int) Math.max(1, Math.min(height, memoryBudget / bytesPerRow));
+    }
+
+    /**
+     * Reads the source rows of a target stripe and resamples them to the target width and data type.
+     *
+     * @param aggregation the block reduction for downsampling, null for nearest neighbour
+     */
+    static ProductData readStripe(Band sourceBand, float scaleFactor, BlockReducer.Method aggregation,
+                                  int targetDataType, int targetWidth, int targetY, int targetRows)
+            throws IOException {
+        final int sourceWidth = sourceBand.getSceneRasterWidth();
+        final int sourceHeight = sourceBand.getSceneRasterHeight();
+        if (scaleFactor == 1.0f && sourceBand.getDataType() == targetDataType) {
+            final ProductData data = ProductData.createInstance(targetDataType, targetWidth * targetRows);
+            sourceBand.readRasterData(0, targetY, targetWidth, targetRows, data, ProgressMonitor.NULL);
+            return data;
+        }
+        if (aggregation != null && scaleFactor < 1.0f) {
+            return readReducedStripe(sourceBand, new BlockReducer(aggregation, scaleFactor,
+                                                                  sourceBand.isNoDataValueUsed(),
+                                                                  sourceBand.getNoDataValue()),
+                                     targetDataType, targetWidth, targetY, targetRows);
+        }
+        final int sourceY0 = Math.min(sourceHeight - 1, (int) (targetY / scaleFactor));
+        final int sourceY1 = Math.min(sourceHeight, (int) Math.ceil((targetY + targetRows) / scaleFactor));
+        final int sourceRows = Math.max(1, sourceY1 - sourceY0);
+        final ProductData sourceData = ProductData.createInstance(sourceBand.getDataType(), sourceWidth * sourceRows);
+        sourceBand.readRasterData(0, sourceY0, sourceWidth, sourceRows, sourceData, ProgressMonitor.NULL);
+
+        // nearest neighbour, as the JAI scaling in the non-streaming mode
+        final ProductData targetData = ProductData.createInstance(targetDataType, targetWidth * targetRows);
+        for (int j = 0; j < targetRows; j++) {
+            final int sy = Math.min(sourceRows - 1, (int) ((targetY + j) / scaleFactor) - sourceY0);
+            for (int i = 0; i < targetWidth; i++) {
+                final int sx = Math.min(sourceWidth - 1, (int) (i / scaleFactor));
+                targetData.setElemDoubleAt(j * targetWidth + i, sourceData.getElemDoubleAt(sy * sourceWidth + sx));
+            }
+        }
+        return targetData;
+    }
+
+    private static ProductData readReducedStripe(Band sourceBand, BlockReducer reducer, int targetDataType,
+                                                 int targetWidth, int targetY, int targetRows) throws IOException {
+        final int sourceWidth = sourceBand.getSceneRasterWidth();
+        final int sourceY0 = Math.min(sourceBand.getSceneRasterHeight() - 1, reducer.getSourceMin(targetY));
+        final int sourceY1 = Math.min(sourceBand.getSceneRasterHeight(),
+                                      reducer.getSourceMax(targetY + targetRows - 1));
+        final int sourceRows = Math.max(1, sourceY1 - sourceY0);
+        final ProductData sourceData = ProductData.createInstance(sourceBand.getDataType(), sourceWidth * sourceRows);
+        sourceBand.readRasterData(0, sourceY0, sourceWidth, sourceRows, sourceData, ProgressMonitor.NULL);
+
+        final float[] target = new float[targetWidth * targetRows];
+        reducer.reduce(toFloats(sourceData), 0, sourceY0, sourceWidth, sourceRows,
+                       target, 0, targetY, targetWidth, targetRows);
+        return toProductData(target, targetDataType);
+    }
+
+    private static float[] toFloats(ProductData data) {
+        final float[] values = new float[data.getNumElems()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = data.getElemFloatAt(i);
+        }
+        return values;
+    }
+
+    private static ProductData toProductData(float[] values, int dataType) {
+        final ProductData data = ProductData.createInstance(dataType, values.length);
+        final boolean isIntType = ProductData.isIntType(dataType);
+        for (int i = 0; i < values.length; i++) {
+            if (isIntType) {
+                data.setElemIntAt(i, Math.round(values[i]));
+            } else {
+                data.setElemFloatAt(i, values[i]);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Where the data of a stack band comes from.
+     */
+    static class BandSource {
+
+        final File file;
+        final String bandName;
+        final float scaleFactor;
+        final BlockReducer.Method aggregation;
+
+        /**
+         * @param file        the source product file
+         * @param bandName    the band name in the source product
+         * @param scaleFactor the factor from the source raster size to the stack raster size
+         */
+        BandSource(File file, String bandName, float scaleFactor) {
+            this(file, bandName, scaleFactor, null);
+        }
+
+        /**
+         * @param aggregation the block reduction for downsampling, null for nearest neighbour
+         */
+        BandSource(File file, String bandName, float scaleFactor, BlockReducer.Method aggregation) {
+            this.file = file;
+            this.bandName = bandName;
+            this.scaleFactor = scaleFactor;
+            this.aggregation = aggregation;
+        }
+    }
+
+    /**
+     * A stack product to write, with the sources of its bands.
+     */
+    static class Stack {
+
+        final Product product;
+        final File file;
+        final String formatName;
+        final Map<String, BandSource> bandSources = new LinkedHashMap<String, BandSource>();
+        final List<Stack> overviews = new ArrayList<Stack>();
+        BlockReducer.Method overviewAggregation = BlockReducer.Method.MEAN;
+        private ProductWriter writer;
+
+        Stack(Product product, File file, String formatName) {
+            this.product = product;
+            this.file = file;
+            this.formatName = formatName;
+        }
+
+        void addBandSource(String targetBandName, BandSource bandSource) {
+            bandSources.put(targetBandName, bandSource);
+        }
+
+        /**
+         * Adds the next overview level, the n-th overview is downsampled by 2^n. The overview product
+         * must have the bands of the stack, and a size of the stack size divided by 2^n, rounded down.
+         */
+        void addOverview(Stack overview) {
+            overviews.add(overview);
+        }
+    }
+
+    private static class BandTarget {
+
+        final Stack stack;
+        final Band band;
+        final BandSource source;
+
+        BandTarget(Stack stack, Band band, BandSource source) {
+            this.stack = stack;
+            this.band = band;
+            this.source = source;
+        }
+    }
+
+    /**
+     * Keeps at most a given number of products open, closing the least recently used one.
+     */
+    static class ProductCache {
+
+        private final LinkedHashMap<File, Product> products;
+
+        ProductCache(final int maxOpenProducts) {
+            products = new LinkedHashMap<File, Product>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<File, Product> eldest) {
+                    if (size() > maxOpenProducts) {
+                        eldest.getValue().dispose();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        Product get(File file) throws IOException {
+            Product product = products.get(file);
+            if (product == null) {
+                product = ProductIO.readProduct(file);
+                if (product == null) {
+                    throw new IOException("No reader found for " + file);
+                }
+                products.put(file, product);
+            }
+            return product;
+        }
+
+        void dispose() {
+            for (Product product : products.values()) {
+                product.dispose();
+            }
+            products.clear();
+        }
+    }
+}
@@ -0,0 +1,516 @@
+package org.esa.beam.globveg;
+
+import edu.ucar.ral.nujan.netcdf.NhDimension;
+import edu.ucar.ral.nujan.netcdf.NhException;
+import edu.ucar.ral.nujan.netcdf.NhFileWriter;
+import edu.ucar.ral.nujan.netcdf.NhGroup;
+import edu.ucar.ral.nujan.netcdf.NhVariable;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.GeoCoding;
+import org.esa.beam.framework.datamodel.GeoPos;
+import org.esa.beam.framework.datamodel.PixelPos;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Writes a yearly stack as NetCDF4 file with a time dimension, one variable {@code (time, lat, lon)}
+ * holding all periods. The variable is chunked as {@code (all periods, chunkSize, chunkSize)} and
+ * deflate-compressed, so the time series of a pixel is read from a single chunk.
+ * <p/>
+ * The stack is written in stripes of {@code chunkSize} rows, reading the periods from the band sources
+ * of the stack as {@link StreamingStackWriter} does. A chunk holds all periods, so each stripe needs a row
+ * stripe of every source product. If there are more source products than may be open at the same time,
+ * they would be re-opened for every stripe; instead each source product is opened once and its periods are
+ * copied into a temporary file next to the stack, from which the stripes are then read.
+ * The lat/lon coordinates are taken along the centre column and row, which is exact for the plate carree
+ * grids of the Globveg L3 products.
+ */
+class TimeSeriesStackWriter {
+
+    private final int maxOpenProducts;
+    private final int chunkSize;
+    private final int compressionLevel;
+
+    /**
+     * @param maxOpenProducts  the maximum number of source products open at the same time
+     * @param chunkSize        the spatial size of a chunk
+     * @param compressionLevel the deflate level, 0 for no compression
+     */
+    TimeSeriesStackWriter(int maxOpenProducts, int chunkSize, int compressionLevel) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize < 1");
+        }
+        if (compressionLevel < 0 || compressionLevel > 9) {
+            throw new IllegalArgumentException("compressionLevel not in [0,9]");
+        }
+        this.maxOpenProducts = maxOpenProducts;
+        this.chunkSize = chunkSize;
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Writes the stack into a NetCDF4 file. Stacked '_mjd' and '_count' bands are written as
+     * variables {@code <variableName>_mjd} and {@code <variableName>_count} of the same shape.
+     *
+     * @param stack        the stack, its bands are the periods in time order
+     * @param variableName the name of the stack variable, e.g. 'fapar'
+     * @throws IOException if reading a source or writing the file fails
+     */
+    void write(StreamingStackWriter.Stack stack, String variableName) throws IOException {
+        final Product product = stack.product;
+        final int width = product.getSceneRasterWidth();
+        final int height = product.getSceneRasterHeight();
+        final Map<String, List<Map.Entry<String, StreamingStackWriter.BandSource>>> variables =
+                groupByVariable(stack.bandSources, variableName);
+        final List<Map.Entry<String, StreamingStackWriter.BandSource>> periods = variables.get(variableName);
+        if (periods == null) {
+            return;
+        }
+        final int numPeriods = periods.size();
+
+        final StreamingStackWriter.ProductCache productCache =
+                new StreamingStackWriter.ProductCache(maxOpenProducts);
+        try {
+            final NhFileWriter nhFileWriter = new NhFileWriter(stack.file.getPath(), NhFileWriter.OPT_OVERWRITE);
+            final NhGroup rootGroup = nhFileWriter.getRootGroup();
+            rootGroup.addAttribute("Conventions", NhVariable.TP_STRING_VAR, "CF-1.4");
+            rootGroup.addAttribute("title", NhVariable.TP_STRING_VAR, product.getName());
+
+            final NhDimension timeDim = rootGroup.addDimension("time", numPeriods);
+            final NhDimension latDim = rootGroup.addDimension("lat", height);
+            final NhDimension lonDim = rootGroup.addDimension("lon", width);
+
+            final NhVariable timeVar = rootGroup.addVariable("time", NhVariable.TP_DOUBLE,
+                                                             new NhDimension[]{timeDim}, new int[]{numPeriods},
+                                                             null, 0);
+            timeVar.addAttribute("units", NhVariable.TP_STRING_VAR, "days since 2000-01-01 00:00:00");
+            timeVar.addAttribute("standard_name", NhVariable.TP_STRING_VAR, "time");
+            final NhVariable latVar = rootGroup.addVariable("lat", NhVariable.TP_FLOAT,
+                                                            new NhDimension[]{latDim}, new int[]{height},
+                                                            null, 0);
+            latVar.addAttribute("units", NhVariable.TP_STRING_VAR, "degrees_north");
+            final NhVariable lonVar = rootGroup.addVariable("lon", NhVariable.TP_FLOAT,
+                                                            new NhDimension[]{lonDim}, new int[]{width},
+                                                            null, 0);
+            lonVar.addAttribute("units", NhVariable.TP_STRING_VAR, "degrees_east");
+
+            final int chunkHeight = Math.min(chunkSize, height);
+            final int chunkWidth = Math.min(chunkSize, width);
+            final List<NhVariable> stackVars = new ArrayList<NhVariable>();
+            final List<List<Map.Entry<String, StreamingStackWriter.BandSource>>> stackVarPeriods =
+                    new ArrayList<List<Map.Entry<String, StreamingStackWriter.BandSource>>>();
+            for (Map.Entry<String, List<Map.Entry<String, StreamingStackWriter.BandSource>>> entry :
+                    variables.entrySet()) {
+                if (entry.getValue().size() != numPeriods) {
+                    // e.g. an '_mjd' band missing in one of the periods
+                    continue;
+                }
+                final Band firstBand = product.getBand(entry.getValue().get(0).getKey());
+                final int nhType = getNhType(firstBand.getDataType());
+                final NhVariable stackVar = rootGroup.addVariable(entry.getKey(), nhType,
+                                                                  new NhDimension[]{timeDim, latDim, lonDim},
+                                                                  new int[]{numPeriods, chunkHeight, chunkWidth},
+                                                                  getFillValue(firstBand, nhType),
+                                                                  compressionLevel);
+                stackVar.addAttribute("coordinates", NhVariable.TP_STRING_VAR, "time lat lon");
+                stackVars.add(stackVar);
+                stackVarPeriods.add(entry.getValue());
+            }
+            nhFileWriter.endDefine();
+
+            timeVar.writeData(new int[]{0}, getTimes(periods), true);
+            writeCoordinates(product.getGeoCoding(), width, height, latVar, lonVar);
+
+            final int[] dataTypes = new int[stackVars.size()];
+            for (int v = 0; v < dataTypes.length; v++) {
+                dataTypes[v] = product.getBand(stackVarPeriods.get(v).get(0).getKey()).getDataType();
+            }
+            final Map<File, List<int[]>> periodsByFile = groupByFile(stackVarPeriods);
+            PeriodSpill spill = null;
+            try {
+                if (periodsByFile.size() > maxOpenProducts) {
+                    spill = spillPeriods(stack.file, periodsByFile, stackVarPeriods, dataTypes, productCache,
+                                         width, height, chunkHeight);
+                }
+                final ProductData[] stripes = new ProductData[numPeriods];
+                for (int y = 0; y < height; y += chunkHeight) {
+                    final int rows = Math.min(chunkHeight, height - y);
+                    for (int v = 0; v < stackVars.size(); v++) {
+                        final List<Map.Entry<String, StreamingStackWriter.BandSource>> varPeriods =
+                                stackVarPeriods.get(v);
+                        for (int t = 0; t < numPeriods; t++) {
+                            if (spill != null) {
+                                stripes[t] = spill.read(v, t, y, rows);
+                            } else {
+                                stripes[t] = readStripe(productCache, varPeriods.get(t).getValue(), dataTypes[v],
+                                                        width, y, rows);
+                            }
+                        }
+                        for (int x = 0; x < width; x += chunkWidth) {
+                            final int columns = Math.min(chunkWidth, width - x);
+                            stackVars.get(v).writeData(new int[]{0, y, x},
+                                                       createChunk(getNhType(dataTypes[v]), stripes, width, x,
+                                                                   columns, rows),
+                                                       true);
+                        }
+                    }
+                }
+            } finally {
+                if (spill != null) {
+                    spill.dispose();
+                }
+            }
+            nhFileWriter.close();
+        } catch (NhException e) {
+            throw new IOException("Failed to write " + stack.file + ": " + e.getMessage(), e);
+        } finally {
+            productCache.dispose();
+        }
+    }
+
+    private static ProductData readStripe(StreamingStackWriter.ProductCache productCache,
+                                          StreamingStackWriter.BandSource source, int dataType,
+                                          int width, int y, int rows) throws IOException {
+        final Band sourceBand = productCache.get(source.file).getBand(source.bandName);
+        if (sourceBand == null) {
+            throw new IOException("Band '" + source.bandName + "' not found in " + source.file);
+        }
+        return StreamingStackWriter.readStripe(sourceBand, source.scaleFactor, source.aggregation, dataType,
+                                               width, y, rows);
+    }
+
+    // the (variable, period) indexes of the stack variables sourced from each file, in file order
+    private static Map<File, List<int[]>> groupByFile(
+            List<List<Map.Entry<String, StreamingStackWriter.BandSource>>> stackVarPeriods) {
+        final Map<File, List<int[]>> periodsByFile = new TreeMap<File, List<int[]>>();
+        for (int v = 0; v < stackVarPeriods.size(); v++) {
+            final List<Map.Entry<String, StreamingStackWriter.BandSource>> varPeriods = stackVarPeriods.get(v);
+            for (int t = 0; t < varPeriods.size(); t++) {
+                final File file = varPeriods.get(t).getValue().file;
+                List<int[]> periods = periodsByFile.get(file);
+                if (periods == null) {
+                    periods = new ArrayList<int[]>();
+                    periodsByFile.put(file, periods);
+                }
+                periods.add(new int[]{v, t});
+            }
+        }
+        return periodsByFile;
+    }
+
+    // opens each source product once and copies all its periods into the spill, stripe by stripe
+    private static PeriodSpill spillPeriods(
+            File stackFile, Map<File, List<int[]>> periodsByFile,
+            List<List<Map.Entry<String, StreamingStackWriter.BandSource>>> stackVarPeriods,
+            int[] dataTypes, StreamingStackWriter.ProductCache productCache,
+            int width, int height, int stripeHeight) throws IOException {
+        final int numPeriods = stackVarPeriods.get(0).size();
+        final PeriodSpill spill = new PeriodSpill(stackFile.getAbsoluteFile().getParentFile(), dataTypes,
+                                                  numPeriods, width, height);
+        try {
+            for (List<int[]> periods : periodsByFile.values()) {
+                for (int[] period : periods) {
+                    final StreamingStackWriter.BandSource source =
+                            stackVarPeriods.get(period[0]).get(period[1]).getValue();
+                    for (int y = 0; y < height; y += stripeHeight) {
+                        final int rows = Math.min(stripeHeight, height - y);
+                        spill.write(period[0], period[1], y,
+                                    readStripe(productCache, source, dataTypes[period[0]], width, y, rows));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            spill.dispose();
+            throw e;
+        } catch (RuntimeException e) {
+            spill.dispose();
+            throw e;
+        }
+        return spill;
+    }
+
+    // stack band names are like 'fapar_jun16', 'fapar_mjd_jun16', 'fapar_count_jun16'
+    private static Map<String, List<Map.Entry<String, StreamingStackWriter.BandSource>>> groupByVariable(
+            Map<String, StreamingStackWriter.BandSource> bandSources, String variableName) {
+        final Map<String, List<Map.Entry<String, StreamingStackWriter.BandSource>>> variables =
+                new LinkedHashMap<String, List<Map.Entry<String, StreamingStackWriter.BandSource>>>();
+        for (String name : new String[]{variableName,
+                variableName + StackType.MJD_SUFFIX, variableName + StackType.COUNT_SUFFIX}) {
+            final Pattern pattern = Pattern.compile(Pattern.quote(name) + "_[a-z]{3}\\d{2}");
+            final List<Map.Entry<String, StreamingStackWriter.BandSource>> periods =
+                    new ArrayList<Map.Entry<String, StreamingStackWriter.BandSource>>();
+            for (Map.Entry<String, StreamingStackWriter.BandSource> entry : bandSources.entrySet()) {
+                if (pattern.matcher(entry.getKey()).matches()) {
+                    periods.add(entry);
+                }
+            }
+            if (!periods.isEmpty()) {
+                variables.put(name, periods);
+            }
+        }
+        return variables;
+    }
+
+    /**
+     * @return the number of chunks of a stack of the given size
+     */
+    long getChunkCount(int width, int height) {
+        final long chunksX = (width + chunkSize - 1) / chunkSize;
+        final long chunksY = (height + chunkSize - 1) / chunkSize;
+        return chunksX * chunksY;
+    }
+
+    private static void writeCoordinates(GeoCoding geoCoding, int width, int height,
+                                         NhVariable latVar, NhVariable lonVar) throws NhException {
+        final float[] lats = new float[height];
+        final float[] lons = new float[width];
+        if (geoCoding != null) {
+            final GeoPos geoPos = new GeoPos();
+            for (int y = 0; y < height; y++) {
+                geoCoding.getGeoPos(new PixelPos(0.5f * width, y + 0.5f), geoPos);
+                lats[y] = geoPos.lat;
+            }
+            for (int x = 0; x < width; x++) {
+                geoCoding.getGeoPos(new PixelPos(x + 0.5f, 0.5f * height), geoPos);
+                lons[x] = geoPos.lon;
+            }
+        }
+        latVar.writeData(new int[]{0}, lats, true);
+        lonVar.writeData(new int[]{0}, lons, true);
+    }
+
+    private static double[] getTimes(List<Map.Entry<String, StreamingStackWriter.BandSource>> periods)
+            throws IOException {
+        final double[] times = new double[periods.size()];
+        for (int t = 0; t < times.length; t++) {
+            // source file names are like 'L3_2010-06-16_2010-06-25.nc'
+            final String fileName = periods.get(t).getValue().file.getName();
+            try {
+                times[t] = ProductData.UTC.parse(fileName.substring(3, 13), "yyyy-MM-dd").getMJD();
+            } catch (ParseException e) {
+                throw new IOException("Cannot derive the period start from file name " + fileName, e);
+            } catch (IndexOutOfBoundsException e) {
+                throw new IOException("Cannot derive the period start from file name " + fileName, e);
+            }
+        }
+        return times;
+    }
+
+    private static Object createChunk(int nhType, ProductData[] stripes, int width, int x0, int columns, int rows) {
+        final int numPeriods = stripes.length;
+        final int length = numPeriods * rows * columns;
+        int index = 0;
+        switch (nhType) {
+            case NhVariable.TP_FLOAT: {
+                final float[] chunk = new float[length];
+                for (ProductData stripe : stripes) {
+                    for (int j = 0; j < rows; j++) {
+                        for (int i = 0; i < columns; i++) {
+                            chunk[index++] = stripe.getElemFloatAt(j * width + x0 + i);
+                        }
+                    }
+                }
+                return chunk;
+            }
+            case NhVariable.TP_DOUBLE: {
+                final double[] chunk = new double[length];
+                for (ProductData stripe : stripes) {
+                    for (int j = 0; j < rows; j++) {
+                        for (int i = 0; i < columns; i++) {
+                            chunk[index++] = stripe.getElemDoubleAt(j * width + x0 + i);
+                        }
+                    }
+                }
+                return chunk;
+            }
+            case NhVariable.TP_SHORT: {
+                final short[] chunk = new short[length];
+                for (ProductData stripe : stripes) {
+                    for (int j = 0; j < rows; j++) {
+                        for (int i = 0; i < columns; i++) {
+                            chunk[index++] = (short) stripe.getElemIntAt(j * width + x0 + i);
+                        }
+                    }
+                }
+                return chunk;
+            }
+            default: {
+                final int[] chunk = new int[length];
+                for (ProductData stripe : stripes) {
+                    for (int j = 0; j < rows; j++) {
+                        for (int i = 0; i < columns; i++) {
+                            chunk[index++] = stripe.getElemIntAt(j * width + x0 + i);
+                        }
+                    }
+                }
+                return chunk;
+            }
+        }
+    }
+
+    /**
+     * A temporary file holding the periods of the stack variables, each as a full raster in the
+     * data type written to the NetCDF file, so that row stripes of all periods can be read back in any order.
+     */
+    static class PeriodSpill {
+
+        private final File file;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final int[] spillTypes;
+        private final long[] variableOffsets;
+        private final int width;
+        private final int height;
+
+        /**
+         * @param dir       the directory of the temporary file
+         * @param dataTypes the data types of the stack variables
+         */
+        PeriodSpill(File dir, int[] dataTypes, int numPeriods, int width, int height) throws IOException {
+            this.width = width;
+            this.height = height;
+            spillTypes = new int[dataTypes.length];
+            variableOffsets = new long[dataTypes.length];
+            long offset = 0;
+            for (int v = 0; v < dataTypes.length; v++) {
+                spillTypes[v] = getSpillType(getNhType(dataTypes[v]));
+                variableOffsets[v] = offset;
+                offset += (long) numPeriods * height * width * ProductData.getElemSize(spillTypes[v]);
+            }
+            file = File.createTempFile("globveg-stack-", ".tmp", dir);
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+        }
+
+        void write(int variable, int period, int y, ProductData stripe) throws IOException {
+            final int spillType = spillTypes[variable];
+            final int numElems = stripe.getNumElems();
+            final ByteBuffer buffer = ByteBuffer.allocate(numElems * ProductData.getElemSize(spillType));
+            for (int i = 0; i < numElems; i++) {
+                switch (spillType) {
+                    case ProductData.TYPE_FLOAT32:
+                        buffer.putFloat(stripe.getElemFloatAt(i));
+                        break;
+                    case ProductData.TYPE_FLOAT64:
+                        buffer.putDouble(stripe.getElemDoubleAt(i));
+                        break;
+                    case ProductData.TYPE_INT16:
+                        buffer.putShort((short) stripe.getElemIntAt(i));
+                        break;
+                    default:
+                        buffer.putInt(stripe.getElemIntAt(i));
+                }
+            }
+            buffer.flip();
+            final long position = getPosition(variable, period, y);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, position + buffer.position());
+            }
+        }
+
+        ProductData read(int variable, int period, int y, int rows) throws IOException {
+            final int spillType = spillTypes[variable];
+            final int numElems = rows * width;
+            final ByteBuffer buffer = ByteBuffer.allocate(numElems * ProductData.getElemSize(spillType));
+            final long position = getPosition(variable, period, y);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+            }
+            buffer.flip();
+            final ProductData stripe = ProductData.createInstance(spillType, numElems);
+            for (int i = 0; i < numElems; i++) {
+                switch (spillType) {
+                    case ProductData.TYPE_FLOAT32:
+                        stripe.setElemFloatAt(i, buffer.getFloat());
+                        break;
+                    case ProductData.TYPE_FLOAT64:
+                        stripe.setElemDoubleAt(i, buffer.getDouble());
+                        break;
+                    case ProductData.TYPE_INT16:
+                        stripe.setElemIntAt(i, buffer.getShort());
+                        break;
+                    default:
+                        stripe.setElemIntAt(i, buffer.getInt());
+                }
+            }
+            return stripe;
+        }
+
+        void dispose() {
+            try {
+                raf.close();
+            } catch (IOException ignore) {
+                // nothing to do, the file is deleted anyway
+            }
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+
+        private long getPosition(int variable, int period, int y) {
+            return variableOffsets[variable] +
+                    ((long) period * height + y) * width * ProductData.getElemSize(spillTypes[variable]);
+        }
+
+        // the values are kept as they are written to the NetCDF file
+        private static int getSpillType(int nhType) {
+            switch (nhType) {
+                case NhVariable.TP_FLOAT:
+                    return ProductData.TYPE_FLOAT32;
+                case NhVariable.TP_DOUBLE:
+                    return ProductData.TYPE_FLOAT64;
+                case NhVariable.TP_SHORT:
+                    return ProductData.TYPE_INT16;
+                default:
+                    return ProductData.TYPE_INT32;
+            }
+        }
+    }
+
+    private static int getNhType(int dataType) {
+        switch (dataType) {
+            case ProductData.TYPE_FLOAT32:
+                return NhVariable.TP_FLOAT;
+            case ProductData.TYPE_FLOAT64:
+                return NhVariable.TP_DOUBLE;
+            case ProductData.TYPE_INT8:
+            case ProductData.TYPE_UINT8:
+            case ProductData.TYPE_INT16:
+                return NhVariable.TP_SHORT;
+            default:
+                return NhVariable.TP_INT;
+        }
+    }
+
+    private static Object getFillValue(Band band, int nhType) {
+        if (!band.isNoDataValueUsed()) {
+            return null;
+        }
+        final double noDataValue = band.getNoDataValue();
+        switch (nhType) {
+            case NhVariable.TP_FLOAT:
+                return (float) noDataValue;
+            case NhVariable.TP_DOUBLE:
+                return noDataValue;
+            case NhVariable.TP_SHORT:
+                return (short) noDataValue;
+            default:
+                return (int) noDataValue;
+        }
+    }
+}
@@ -3,17 +3,25 @@ package org.esa.beam.globveg;
 import com.bc.ceres.core.ProgressMonitor;
 import org.esa.beam.framework.dataio.ProductIO;
 import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.CrsGeoCoding;
+import org.esa.beam.framework.datamodel.GeoCoding;
 import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
 import org.esa.beam.framework.gpf.Operator;
 import org.esa.beam.framework.gpf.OperatorException;
 import org.esa.beam.framework.gpf.OperatorSpi;
 import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
 import org.esa.beam.framework.gpf.annotations.Parameter;
+import org.esa.beam.globveg.util.BlockReducer;
 import org.esa.beam.globveg.util.Constants;
 import org.esa.beam.globveg.util.GlobvegUtils;
 import org.esa.beam.gpf.operators.standard.WriteOp;
 import org.esa.beam.util.ProductUtils;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.operation.TransformException;
 
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
 import java.awt.image.RenderedImage;
 import java.io.File;
 import java.io.FileFilter;
@@ -21,7 +29,14 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Operator to build yearly stacks of biweekly Globveg products
@@ -51,85 +66,476 @@ public class YearlyStackOp extends Operator {
     @Parameter(defaultValue = "1.0f", description = "The scale factor of the target product")
     private float scaleFactor;
 
+    @Parameter(defaultValue = "NEAREST", valueSet = {"NEAREST", "MEAN", "MAX", "MEDIAN", "COUNT"},
+               description = "How pixels are aggregated for a scale factor < 1: nearest neighbour, or the " +
+                       "mean, maximum, median or number of the valid pixels of each block")
+    private String aggregation;
+
+    @Parameter(defaultValue = "FAPAR,NDVI", description = "The stacks to write, any of FAPAR, LAI, NDVI, META")
+    private String[] stacks;
+
+    @Parameter(defaultValue = "false",
+               description = "Also stack the '_mjd' and '_count' bands of the FAPAR, LAI and NDVI bands")
+    private boolean includeMetadataBands;
+
+    @Parameter(defaultValue = "false",
+               description = "Write the stacks in row stripes, opening only a limited number of source products")
+    private boolean streaming;
+
+    @Parameter(defaultValue = "8", interval = "[1,1000]",
+               description = "The maximum number of source products open at the same time in streaming mode")
+    private int maxOpenProducts;
+
+    @Parameter(defaultValue = "256", interval = "[1,100000]",
+               description = "The memory budget in MB for the stripe buffers in streaming mode")
+    private int memoryBudgetMB;
+
+    @Parameter(defaultValue = "false",
+               description = "Only add new or changed source products to existing stacks (implies streaming)")
+    private boolean incremental;
+
+    @Parameter(defaultValue = "0", interval = "[0,8]",
+               description = "The number of overview levels (2x, 4x, 8x, ...) written next to each stack " +
+                       "of the BANDS layout, reduced as given by 'aggregation' (MEAN for NEAREST)")
+    private int overviewLevels;
+
+    @Parameter(defaultValue = "BANDS", valueSet = {"BANDS", "TIME_SERIES"},
+               description = "The stack layout: GeoTIFF with one band per period, or chunked and compressed " +
+                       "NetCDF4 with a time dimension, for reading per-pixel time series")
+    private String layout;
+
+    @Parameter(defaultValue = "32", interval = "[1,4096]",
+               description = "The spatial chunk size of the TIME_SERIES layout")
+    private int chunkSize;
+
+    @Parameter(defaultValue = "5", interval = "[0,9]",
+               description = "The deflate level of the TIME_SERIES layout, 0 for no compression")
+    private int compressionLevel;
+
     private Product[] globvegSourceProducts;
 
     @Override
     public void initialize() throws OperatorException {
+        final StackType[] stackTypes = getStackTypes();
+
+        if (isTimeSeriesLayout() && incremental) {
+            throw new OperatorException("Incremental updates are not supported for the TIME_SERIES layout");
+        }
+        if (isTimeSeriesLayout() && overviewLevels > 0) {
+            throw new OperatorException("Overviews are not supported for the TIME_SERIES layout");
+        }
+        if (streaming || incremental || isTimeSeriesLayout() || overviewLevels > 0) {
+            writeYearlyProductsStreaming(stackTypes);
+            setTargetProduct(new Product("a", "b", 0, 0));
+            return;
+        }
+
         globvegSourceProducts = getGlobvegSourceProducts();
 
         Arrays.sort(globvegSourceProducts, new ProductNameComparator());
 
-        final Product yearlyGlobvegFaparProduct = createYearlyProduct("FAPAR");
-        final Product yearlyGlobvegNdviProduct = createYearlyProduct("NDVI");
-//        final Product yearlyGlobvegLaiProduct = createYearlyProduct("LAI");
-//        final Product yearlyGlobvegMetaProduct = createYearlyProduct("META");
+        final Map<StackType, Product> yearlyProducts = new EnumMap<StackType, Product>(StackType.class);
+        for (StackType stackType : stackTypes) {
+            yearlyProducts.put(stackType, createYearlyProduct(globvegSourceProducts[0], stackType.name()));
+        }
 
+        // every source band goes to exactly one stack, so each source tile is read once by the writer of its stack
         for (Product product : globvegSourceProducts) {
             for (Band b : product.getBands()) {
+                final Product yearlyProduct =
+                        yearlyProducts.get(StackType.forSourceBand(b.getName(), includeMetadataBands));
+                if (yearlyProduct == null) {
+                    continue;
+                }
                 final String targetBandName = getTargetBandName(b.getName(), product.getName());
+                if (!yearlyProduct.containsBand(targetBandName)) {
+                    RenderedImage targetImage;
+                    if (scaleFactor < 1.0f && getAggregationMethod() != null) {
+                        targetImage = GlobvegUtils.reduce(b.getSourceImage(), scaleFactor, getAggregationMethod(),
+                                                          b.isNoDataValueUsed(), b.getNoDataValue());
+                    } else if (scaleFactor != 1.0f) {
+                        targetImage = GlobvegUtils.scale(b.getSourceImage(), scaleFactor);
+                    } else {
+                        targetImage = b.getSourceImage();
+                    }
+                    yearlyProduct.addBand(targetBandName, b.getDataType());
+                    yearlyProduct.getBand(targetBandName).setSourceImage(targetImage);
+                    yearlyProduct.getBand(targetBandName).setNoDataValue(b.getNoDataValue());
+                    yearlyProduct.getBand(targetBandName).setNoDataValueUsed(true);
+                }
+            }
+        }
 
-                RenderedImage targetImage;
-                if (scaleFactor != 1.0f) {
-                    targetImage = GlobvegUtils.scale(b.getSourceImage(), scaleFactor);
-                } else {
-                    targetImage = b.getSourceImage();
+        writeYearlyProducts(yearlyProducts);
+        for (Map.Entry<StackType, Product> entry : yearlyProducts.entrySet()) {
+            reportStack(getTargetFile(entry.getKey()), entry.getValue(), -1);
+        }
+
+        final Product dummyTargetProduct = new Product("a", "b", 0, 0);
+        setTargetProduct(dummyTargetProduct);
+    }
+
+    private StackType[] getStackTypes() {
+        if (stacks == null || stacks.length == 0) {
+            throw new OperatorException("No stacks given, expected any of " + Arrays.toString(StackType.values()));
+        }
+        final StackType[] stackTypes = new StackType[stacks.length];
+        for (int i = 0; i < stacks.length; i++) {
+            try {
+                stackTypes[i] = StackType.valueOf(stacks[i].trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new OperatorException("Unknown stack '" + stacks[i] + "', expected one of " +
+                                                    Arrays.toString(StackType.values()));
+            }
+        }
+        return stackTypes;
+    }
+
+    private void writeYearlyProducts(Map<StackType, Product> yearlyProducts) {
+        // the stacks are written concurrently, each by its own writer
+        final int numThreads = Math.min(yearlyProducts.size(), Runtime.getRuntime().availableProcessors());
+        final ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
+        try {
+            final List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (Map.Entry<StackType, Product> entry : yearlyProducts.entrySet()) {
+                final File targetFile = getTargetFile(entry.getKey());
+                final WriteOp writeOp = new WriteOp(entry.getValue(), targetFile, "GeoTIFF");
+//                final WriteOp writeOp = new WriteOp(entry.getValue(), targetFile, "NetCDF4-CF");
+                futures.add(executorService.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeOp.writeProduct(ProgressMonitor.NULL);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OperatorException("Interrupted while writing yearly stacks", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof OperatorException) {
+                throw (OperatorException) cause;
+            }
+            throw new OperatorException("Failed to write yearly stack: " + cause.getMessage(), cause);
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    private void writeYearlyProductsStreaming(StackType[] stackTypes) {
+        final File[] sourceFiles = getGlobvegSourceProductFiles();
+        if (sourceFiles.length == 0) {
+            System.out.println("No GlobVeg source products found for region " + globvegSite +
+                                       ", year " + year + " - nothing to do.");
+            return;
+        }
+        Arrays.sort(sourceFiles);
+
+        final File manifestFile = getManifestFile();
+        final Map<String, String> configuration =
+                createStackConfiguration(scaleFactor, aggregation, includeMetadataBands, layout);
+        StackManifest manifest = new StackManifest();
+        final Map<StackType, Product> existingStacks = new EnumMap<StackType, Product>(StackType.class);
+        if (incremental) {
+            try {
+                manifest = StackManifest.read(manifestFile);
+            } catch (IOException e) {
+                System.err.println("WARNING: Manifest '" + manifestFile.getName() +
+                                           "' could not be read - writing complete stacks.");
+            }
+            if (!manifest.getSourceFileNames().isEmpty() && !manifest.hasConfiguration(configuration)) {
+                // the existing bands have another size or aggregation, or lack the metadata bands
+                System.out.println("Stack configuration for region " + globvegSite + ", year " + year +
+                                           " has changed - writing complete stacks.");
+                manifest = new StackManifest();
+            }
+        }
+        if (!manifest.getSourceFileNames().isEmpty()) {
+            for (StackType stackType : stackTypes) {
+                final File stackFile = getTargetFile(stackType);
+                if (stackFile.isFile()) {
+                    try {
+                        final Product stackProduct = ProductIO.readProduct(stackFile);
+                        if (stackProduct != null) {
+                            existingStacks.put(stackType, stackProduct);
+                        }
+                    } catch (IOException e) {
+                        System.err.println("WARNING: Yearly stack '" + stackFile.getName() +
+                                                   "' could not be read - rewriting it.");
+                    }
                 }
+            }
+        }
 
-                if (b.getName().equalsIgnoreCase("fapar")) {
-                    if (!yearlyGlobvegFaparProduct.containsBand(targetBandName)) {
-                        yearlyGlobvegFaparProduct.addBand(targetBandName, b.getDataType());
-                        yearlyGlobvegFaparProduct.getBand(targetBandName).setSourceImage(targetImage);
-                        yearlyGlobvegFaparProduct.getBand(targetBandName).setNoDataValue(b.getNoDataValue());
-                        yearlyGlobvegFaparProduct.getBand(targetBandName).setNoDataValueUsed(true);
+        final Map<StackType, StreamingStackWriter.Stack> stackMap =
+                new EnumMap<StackType, StreamingStackWriter.Stack>(StackType.class);
+        final StackManifest newManifest = new StackManifest();
+        newManifest.setConfiguration(configuration);
+        final List<String> sourceFileNames = new ArrayList<String>();
+        int changedFileCount = 0;
+        try {
+            // header pass: set up the stack products and the sources of their bands, one product open at a time.
+            // Bands of unchanged source files are copied from the existing stacks.
+            for (File sourceFile : sourceFiles) {
+                sourceFileNames.add(sourceFile.getName());
+                final boolean upToDate = isUpToDate(sourceFile, manifest, existingStacks, stackTypes);
+                if (upToDate && !stackMap.isEmpty()) {
+                    addExistingBands(sourceFile, manifest, existingStacks, stackMap);
+                    newManifest.put(sourceFile, manifest.getBands(sourceFile));
+                    continue;
+                }
+                final Product product;
+                try {
+                    product = ProductIO.readProduct(sourceFile);
+                } catch (IOException e) {
+                    System.err.println("WARNING: Globveg L3 netcdf file '" +
+                                               sourceFile.getName() + "' could not be read - skipping.");
+                    continue;
+                }
+                if (product == null) {
+                    continue;
+                }
+                try {
+                    if (stackMap.isEmpty()) {
+                        for (StackType stackType : stackTypes) {
+                            stackMap.put(stackType, new StreamingStackWriter.Stack(
+                                    createYearlyProduct(product, stackType.name()),
+                                    incremental ? getTemporaryTargetFile(stackType) : getTargetFile(stackType),
+                                    isTimeSeriesLayout() ? "NetCDF4-CF" : "GeoTIFF"));
+                        }
+                    }
+                    if (upToDate) {
+                        addExistingBands(sourceFile, manifest, existingStacks, stackMap);
+                        newManifest.put(sourceFile, manifest.getBands(sourceFile));
+                        continue;
                     }
-                } else if (b.getName().equalsIgnoreCase("lai")) {
-//                    if (!yearlyGlobvegLaiProduct.containsBand(targetBandName)) {
-//                        yearlyGlobvegLaiProduct.addBand(targetBandName, b.getDataType());
-//                        yearlyGlobvegLaiProduct.getBand(targetBandName).setSourceImage(targetImage);
-//                        yearlyGlobvegLaiProduct.getBand(targetBandName).setNoDataValue(b.getNoDataValue());
-//                        yearlyGlobvegLaiProduct.getBand(targetBandName).setNoDataValueUsed(true);
-//                    }
-                } else if (b.getName().equalsIgnoreCase("ndvi_kg_max")) {
-                    if (!yearlyGlobvegNdviProduct.containsBand(targetBandName)) {
-                        yearlyGlobvegNdviProduct.addBand(targetBandName, b.getDataType());
-                        yearlyGlobvegNdviProduct.getBand(targetBandName).setSourceImage(targetImage);
-                        yearlyGlobvegNdviProduct.getBand(targetBandName).setNoDataValue(b.getNoDataValue());
-                        yearlyGlobvegNdviProduct.getBand(targetBandName).setNoDataValueUsed(true);
+                    changedFileCount++;
+                    final List<String> stackBandNames = new ArrayList<String>();
+                    for (Band b : product.getBands()) {
+                        final StackType stackType = StackType.forSourceBand(b.getName(), includeMetadataBands);
+                        if (stackType == null) {
+                            continue;
+                        }
+                        final String targetBandName = getTargetBandName(b.getName(), sourceFile.getName());
+                        stackBandNames.add(targetBandName);
+                        final StreamingStackWriter.Stack stack = stackMap.get(stackType);
+                        if (stack != null && !stack.product.containsBand(targetBandName)) {
+                            final Band targetBand = stack.product.addBand(targetBandName, b.getDataType());
+                            targetBand.setNoDataValue(b.getNoDataValue());
+                            targetBand.setNoDataValueUsed(true);
+                            stack.addBandSource(targetBandName,
+                                                new StreamingStackWriter.BandSource(sourceFile, b.getName(),
+                                                                                    scaleFactor,
+                                                                                    getAggregationMethod()));
+                        }
                     }
-                } else if (b.getName().equalsIgnoreCase("num_obs")) {
-//                    if (!yearlyGlobvegMetaProduct.containsBand(targetBandName)) {
-//                        yearlyGlobvegMetaProduct.addBand(targetBandName, b.getDataType());
-//                        yearlyGlobvegMetaProduct.getBand(targetBandName).setSourceImage(targetImage);
-//                        yearlyGlobvegMetaProduct.getBand(targetBandName).setNoDataValue(b.getNoDataValue());
-//                        yearlyGlobvegMetaProduct.getBand(targetBandName).setNoDataValueUsed(true);
-//                    }
+                    newManifest.put(sourceFile, stackBandNames);
+                } finally {
+                    product.dispose();
+                }
+            }
+        } finally {
+            for (Product stackProduct : existingStacks.values()) {
+                stackProduct.dispose();
+            }
+        }
+
+        final boolean sourceFileRemoved = !sourceFileNames.containsAll(manifest.getSourceFileNames());
+        if (incremental && changedFileCount == 0 && !sourceFileRemoved &&
+                existingStacks.size() == stackMap.size() && overviewsExist(stackMap)) {
+            System.out.println("Yearly stacks for region " + globvegSite + ", year " + year + " are up to date.");
+            return;
+        }
+
+        try {
+            if (isTimeSeriesLayout()) {
+                final TimeSeriesStackWriter writer =
+                        new TimeSeriesStackWriter(maxOpenProducts, chunkSize, compressionLevel);
+                for (Map.Entry<StackType, StreamingStackWriter.Stack> entry : stackMap.entrySet()) {
+                    final StreamingStackWriter.Stack stack = entry.getValue();
+                    writer.write(stack, entry.getKey().getSourceBandName());
+                    reportStack(stack.file, stack.product, writer.getChunkCount(stack.product.getSceneRasterWidth(),
+                                                                                stack.product.getSceneRasterHeight()));
+                }
+            } else {
+                for (Map.Entry<StackType, StreamingStackWriter.Stack> entry : stackMap.entrySet()) {
+                    addOverviews(entry.getValue());
+                }
+                final StreamingStackWriter writer =
+                        new StreamingStackWriter(maxOpenProducts, memoryBudgetMB * 1024L * 1024L);
+                writer.write(new ArrayList<StreamingStackWriter.Stack>(stackMap.values()));
+                for (StackType stackType : stackMap.keySet()) {
+                    if (incremental) {
+                        replaceFile(getTemporaryTargetFile(stackType), getTargetFile(stackType));
+                        final List<StreamingStackWriter.Stack> overviews = stackMap.get(stackType).overviews;
+                        for (int i = 0; i < overviews.size(); i++) {
+                            replaceFile(overviews.get(i).file,
+                                        StackOverviews.getOverviewFile(getTargetFile(stackType), 1 << (i + 1)));
+                        }
+                    }
+                    StackOverviews.deleteSurplusLevels(getTargetFile(stackType),
+                                                       stackMap.get(stackType).overviews.size());
+                    reportStack(getTargetFile(stackType), stackMap.get(stackType).product, -1);
+                }
+            }
+            newManifest.write(manifestFile);
+        } catch (IOException e) {
+            throw new OperatorException("Failed to write yearly stacks: " + e.getMessage(), e);
+        }
+        if (incremental) {
+            System.out.println("Updated yearly stacks for region " + globvegSite + ", year " + year + ": " +
+                                       changedFileCount + " new or changed source file(s).");
+        }
+    }
+
+    private void addOverviews(StreamingStackWriter.Stack stack) {
+        final Product product = stack.product;
+        final int levelCount = StackOverviews.getLevelCount(product.getSceneRasterWidth(),
+                                                            product.getSceneRasterHeight(), overviewLevels);
+        for (int level = 1; level <= levelCount; level++) {
+            final int factor = 1 << level;
+            final int width = product.getSceneRasterWidth() / factor;
+            final int height = product.getSceneRasterHeight() / factor;
+            final Product overviewProduct = new Product(product.getName() + "_ovr" + factor,
+                                                        product.getProductType(), width, height);
+            final GeoCoding geoCoding = product.getGeoCoding();
+            if (geoCoding instanceof CrsGeoCoding &&
+                    ((CrsGeoCoding) geoCoding).getImageToMapTransform() instanceof AffineTransform) {
+                overviewProduct.setGeoCoding(createScaledGeoCoding((CrsGeoCoding) geoCoding, 1.0 / factor,
+                                                                   width, height));
+            }
+            for (Band band : product.getBands()) {
+                final Band overviewBand = overviewProduct.addBand(band.getName(), band.getDataType());
+                overviewBand.setNoDataValue(band.getNoDataValue());
+                overviewBand.setNoDataValueUsed(band.isNoDataValueUsed());
+            }
+            stack.addOverview(new StreamingStackWriter.Stack(overviewProduct,
+                                                             StackOverviews.getOverviewFile(stack.file, factor),
+                                                             stack.formatName));
+        }
+        final BlockReducer.Method aggregationMethod = getAggregationMethod();
+        stack.overviewAggregation = aggregationMethod != null ? aggregationMethod : BlockReducer.Method.MEAN;
+    }
+
+    // exactly the levels that can be written for the stack size, no more and no less
+    private boolean overviewsExist(Map<StackType, StreamingStackWriter.Stack> stackMap) {
+        for (Map.Entry<StackType, StreamingStackWriter.Stack> entry : stackMap.entrySet()) {
+            final Product product = entry.getValue().product;
+            final int levelCount = StackOverviews.getLevelCount(product.getSceneRasterWidth(),
+                                                                product.getSceneRasterHeight(), overviewLevels);
+            if (StackOverviews.getAvailableFactors(getTargetFile(entry.getKey())).length != levelCount + 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isUpToDate(File sourceFile, StackManifest manifest, Map<StackType, Product> existingStacks,
+                               StackType[] stackTypes) {
+        if (!manifest.isUpToDate(sourceFile)) {
+            return false;
+        }
+        final List<String> bands = manifest.getBands(sourceFile);
+        for (StackType stackType : stackTypes) {
+            final Product existingStack = existingStacks.get(stackType);
+            final String bandName = getTargetBandName(stackType.getSourceBandName(), sourceFile.getName());
+            if (bands.contains(bandName) && (existingStack == null || !existingStack.containsBand(bandName))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addExistingBands(File sourceFile, StackManifest manifest, Map<StackType, Product> existingStacks,
+                                  Map<StackType, StreamingStackWriter.Stack> stackMap) {
+        for (String bandName : manifest.getBands(sourceFile)) {
+            for (Map.Entry<StackType, StreamingStackWriter.Stack> entry : stackMap.entrySet()) {
+                final Product existingStack = existingStacks.get(entry.getKey());
+                final StreamingStackWriter.Stack stack = entry.getValue();
+                if (existingStack != null && existingStack.containsBand(bandName) &&
+                        !stack.product.containsBand(bandName)) {
+                    final Band existingBand = existingStack.getBand(bandName);
+                    final Band targetBand = stack.product.addBand(bandName, existingBand.getDataType());
+                    targetBand.setNoDataValue(existingBand.getNoDataValue());
+                    targetBand.setNoDataValueUsed(true);
+                    stack.addBandSource(bandName, new StreamingStackWriter.BandSource(
+                            getTargetFile(entry.getKey()), bandName, 1.0f));
                 }
             }
         }
+    }
 
-        final String faparTargetFileName = outputDataDir + File.separator + "L3_" + year + "_" + globvegSite + "_FAPAR.tif";
-        final File faparTargetFile = new File(faparTargetFileName);
-        final WriteOp faparWriteOp = new WriteOp(yearlyGlobvegFaparProduct, faparTargetFile, "GeoTIFF");
-//        final WriteOp faparWriteOp = new WriteOp(yearlyGlobvegFaparProduct, faparTargetFile, "NetCDF4-CF");
-        faparWriteOp.writeProduct(ProgressMonitor.NULL);
+    private static void replaceFile(File source, File target) throws IOException {
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Cannot delete " + target);
+        }
+        if (!source.renameTo(target)) {
+            throw new IOException("Cannot rename " + source + " to " + target);
+        }
+    }
 
-//        final String laiTargetFileName = outputDataDir + File.separator + "L3_" + year + "_" + globvegSite + "_LAI.tif";
-//        final File laiTargetFile = new File(laiTargetFileName);
-//        final WriteOp laiWriteOp = new WriteOp(yearlyGlobvegLaiProduct, laiTargetFile, "GeoTIFF");
-//        laiWriteOp.writeProduct(ProgressMonitor.NULL);
+    private File getManifestFile() {
+        return new File(outputDataDir, "L3_" + year + "_" + globvegSite + "_manifest.properties");
+    }
 
-        final String ndviTargetFileName = outputDataDir + File.separator + "L3_" + year + "_" + globvegSite + "_NDVI.tif";
-        final File ndviTargetFile = new File(ndviTargetFileName);
-        final WriteOp ndviWriteOp = new WriteOp(yearlyGlobvegNdviProduct, ndviTargetFile, "GeoTIFF");
-        ndviWriteOp.writeProduct(ProgressMonitor.NULL);
+    private File getTemporaryTargetFile(StackType stackType) {
+        return new File(outputDataDir, "L3_" + year + "_" + globvegSite + "_" + stackType.getFileSuffix() + ".tmp.tif");
+    }
 
-//        final String metaTargetFileName = outputDataDir + File.separator + "L3_" + year + "_" + globvegSite + "_meta.tif";
-//        final File metaTargetFile = new File(metaTargetFileName);
-//        final WriteOp metaWriteOp = new WriteOp(yearlyGlobvegMetaProduct, metaTargetFile, "GeoTIFF");
-//        metaWriteOp.writeProduct(ProgressMonitor.NULL);
+    /**
+     * Prints the size of a written stack and what reading the time series of one pixel costs.
+     *
+     * @param chunkCount the number of chunks of the TIME_SERIES layout, -1 for the BANDS layout
+     */
+    private static void reportStack(File stackFile, Product stackProduct, long chunkCount) {
+        final int numPeriods = stackProduct.getNumBands();
+        if (numPeriods == 0) {
+            return;
+        }
+        final long elemSize = ProductData.getElemSize(stackProduct.getBandAt(0).getDataType());
+        final long timeSeriesBytes = numPeriods * elemSize;
+        final long fileSize = stackFile.length();
+        final long bytesRead;
+        if (chunkCount > 0) {
+            // one (compressed) chunk holds the complete time series
+            bytesRead = fileSize / chunkCount;
+        } else {
+            // one image row of each period band
+            bytesRead = numPeriods * stackProduct.getSceneRasterWidth() * elemSize;
+        }
+        System.out.printf("Yearly stack %s: %d bytes, %d periods; reading a pixel time series touches ~%d bytes " +
+                                  "for %d bytes of data (read amplification %.1f)%n",
+                          stackFile.getName(), fileSize, numPeriods, bytesRead, timeSeriesBytes,
+                          (double) bytesRead / timeSeriesBytes);
+    }
 
-        final Product dummyTargetProduct = new Product("a", "b", 0, 0);
-        setTargetProduct(dummyTargetProduct);
+    private BlockReducer.Method getAggregationMethod() {
+        return "NEAREST".equals(aggregation) ? null : BlockReducer.Method.valueOf(aggregation);
+    }
+
+    /**
+     * @return the parameters that determine the content of the stack bands, as recorded in the manifest
+     */
+    static Map<String, String> createStackConfiguration(float scaleFactor, String aggregation,
+                                                        boolean includeMetadataBands, String layout) {
+        final Map<String, String> configuration = new TreeMap<String, String>();
+        configuration.put("scaleFactor", String.valueOf(scaleFactor));
+        configuration.put("aggregation", aggregation);
+        configuration.put("includeMetadataBands", String.valueOf(includeMetadataBands));
+        configuration.put("layout", layout);
+        return configuration;
+    }
+
+    private boolean isTimeSeriesLayout() {
+        return "TIME_SERIES".equals(layout);
+    }
+
+    private File getTargetFile(StackType stackType) {
+        final String extension = isTimeSeriesLayout() ? ".nc" : ".tif";
+        return new File(outputDataDir, "L3_" + year + "_" + globvegSite + "_" + stackType.getFileSuffix() + extension);
     }
 
     private String getTargetBandName(String prefix, String name) {
@@ -145,48 +551,54 @@ public class YearlyStackOp extends Operator {
         return prefix + "_" + Constants.MONTHS[monthIndex] + suffix;
     }
 
-    private Product createYearlyProduct(String productType) {
-        final int width = (int) (globvegSourceProducts[0].getSceneRasterWidth() * scaleFactor);
-        final int height = (int) (globvegSourceProducts[0].getSceneRasterHeight() * scaleFactor);
+    private Product createYearlyProduct(Product templateProduct, String productType) {
+        final int width = (int) (templateProduct.getSceneRasterWidth() * scaleFactor);
+        final int height = (int) (templateProduct.getSceneRasterHeight() * scaleFactor);
 
         Product yearlyProduct = new Product("DIVERSITY_GLOBVEG_" + productType,
                                             "DIVERSITY_GLOBVEG_" + productType,
                                             width,
                                             height);
 
-        ProductUtils.copyGeoCoding(globvegSourceProducts[0], yearlyProduct);
+        final GeoCoding geoCoding = templateProduct.getGeoCoding();
+        if (scaleFactor != 1.0f && geoCoding instanceof CrsGeoCoding &&
+                ((CrsGeoCoding) geoCoding).getImageToMapTransform() instanceof AffineTransform) {
+            yearlyProduct.setGeoCoding(createScaledGeoCoding((CrsGeoCoding) geoCoding, scaleFactor, width, height));
+        } else {
+            ProductUtils.copyGeoCoding(templateProduct, yearlyProduct);
+        }
 
         return yearlyProduct;
     }
 
-    private Product[] getGlobvegSourceProducts() {
-        final FileFilter globvegProductsFilter = new FileFilter() {
-            @Override
-            public boolean accept(File file) {
-                return file.isFile() && file.getName().startsWith("L3_" + year) && file.getName().endsWith(".nc");
-            }
-        };
-
-//        final String globvegDir = inputDataDir + File.separator + globvegSite + File.separator + year;
-        // we expect as inputDataDir the directory where all files from one year for this region are located
-        final String globvegDir = inputDataDir.getAbsolutePath();
+    private static CrsGeoCoding createScaledGeoCoding(CrsGeoCoding geoCoding, double scale, int width, int height) {
+        // target pixel i starts at source pixel i / scale
+        final AffineTransform imageToMap = new AffineTransform((AffineTransform) geoCoding.getImageToMapTransform());
+        imageToMap.scale(1.0 / scale, 1.0 / scale);
+        try {
+            return new CrsGeoCoding(geoCoding.getMapCRS(), new Rectangle(width, height), imageToMap);
+        } catch (FactoryException e) {
+            throw new OperatorException("Cannot create geo-coding of scaled stack: " + e.getMessage(), e);
+        } catch (TransformException e) {
+            throw new OperatorException("Cannot create geo-coding of scaled stack: " + e.getMessage(), e);
+        }
+    }
 
-        final File[] globvegSourceProductFiles = (new File(globvegDir)).listFiles(globvegProductsFilter);
+    private Product[] getGlobvegSourceProducts() {
+        final File[] globvegSourceProductFiles = getGlobvegSourceProductFiles();
         List<Product> globvegSourceProductsList = new ArrayList<Product>();
 
         int productIndex = 0;
-        if (globvegSourceProductFiles != null && globvegSourceProductFiles.length > 0) {
-            for (File globvegSourceProductFile : globvegSourceProductFiles) {
-                try {
-                    final Product product = ProductIO.readProduct(globvegSourceProductFile.getAbsolutePath());
-                    if (product != null) {
-                        globvegSourceProductsList.add(product);
-                        productIndex++;
-                    }
-                } catch (IOException e) {
-                    System.err.println("WARNING: Globveg L3 netcdf file '" +
-                                               globvegSourceProductFile.getName() + "' could not be read - skipping.");
+        for (File globvegSourceProductFile : globvegSourceProductFiles) {
+            try {
+                final Product product = ProductIO.readProduct(globvegSourceProductFile.getAbsolutePath());
+                if (product != null) {
+                    globvegSourceProductsList.add(product);
+                    productIndex++;
                 }
+            } catch (IOException e) {
+                System.err.println("WARNING: Globveg L3 netcdf file '" +
+                                           globvegSourceProductFile.getName() + "' could not be read - skipping.");
             }
         }
         if (productIndex == 0) {
@@ -197,6 +609,22 @@ public class YearlyStackOp extends Operator {
         return globvegSourceProductsList.toArray(new Product[globvegSourceProductsList.size()]);
     }
 
+    private File[] getGlobvegSourceProductFiles() {
+        final FileFilter globvegProductsFilter = new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().startsWith("L3_" + year) && file.getName().endsWith(".nc");
+            }
+        };
+
+//        final String globvegDir = inputDataDir + File.separator + globvegSite + File.separator + year;
+        // we expect as inputDataDir the directory where all files from one year for this region are located
+        final String globvegDir = inputDataDir.getAbsolutePath();
+
+        final File[] globvegSourceProductFiles = (new File(globvegDir)).listFiles(globvegProductsFilter);
+        return globvegSourceProductFiles != null ? globvegSourceProductFiles : new File[0];
+    }
+
     private class ProductNameComparator implements Comparator<Product> {
         @Override
         public int compare(Product o1, Product o2) {
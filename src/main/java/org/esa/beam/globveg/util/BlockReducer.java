@@ -0,0 +1,151 @@
+package org.esa.beam.globveg.util;
+
+/**
+ * Downsampling by reducing blocks of source pixels to one target pixel, ignoring no-data pixels.
+ * <p/>
+ * For a scale factor {@code f < 1}, the target pixel {@code i} covers the source pixels
+ * {@code floor(i / f)} (inclusive) to {@code floor((i + 1) / f)} (exclusive) in each direction.
+ * A target pixel without any valid source pixel is set to the no-data value (or NaN if no no-data
+ * value is used), except for {@link Method#COUNT}, which is 0 then. NaN source values are always invalid.
+ * <p/>
+ * Instances are immutable and can be shared between threads.
+ */
+public class BlockReducer {
+
+    public enum Method {
+        /**
+         * The mean of the valid pixels.
+         */
+        MEAN,
+        /**
+         * The maximum of the valid pixels.
+         */
+        MAX,
+        /**
+         * The median of the valid pixels, the mean of the two middle values for an even count.
+         */
+        MEDIAN,
+        /**
+         * The number of valid pixels.
+         */
+        COUNT
+    }
+
+    // guards against e.g. 3 / (1/3f) = 8.99999
+    private static final double EPS = 1.0e-6;
+
+    private final Method method;
+    private final double inverseScaleFactor;
+    private final boolean noDataValueUsed;
+    private final float noDataValue;
+
+    /**
+     * @param method          the reduction method
+     * @param scaleFactor     the factor from the source to the target raster size, in (0, 1]
+     * @param noDataValueUsed if source pixels equal to {@code noDataValue} are invalid
+     * @param noDataValue     the no-data value of source and target
+     */
+    public BlockReducer(Method method, float scaleFactor, boolean noDataValueUsed, double noDataValue) {
+        if (!(scaleFactor > 0.0f && scaleFactor <= 1.0f)) {
+            throw new IllegalArgumentException("scaleFactor not in (0, 1]");
+        }
+        this.method = method;
+        this.inverseScaleFactor = 1.0 / scaleFactor;
+        this.noDataValueUsed = noDataValueUsed;
+        this.noDataValue = (float) noDataValue;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    /**
+     * @return the first source coordinate of the block of the target coordinate
+     */
+    public int getSourceMin(int targetCoordinate) {
+        return (int) Math.floor(targetCoordinate * inverseScaleFactor + EPS);
+    }
+
+    /**
+     * @return the source coordinate after the block of the target coordinate
+     */
+    public int getSourceMax(int targetCoordinate) {
+        return Math.max(getSourceMin(targetCoordinate) + 1, getSourceMin(targetCoordinate + 1));
+    }
+
+    /**
+     * Reduces a source region to a target region.
+     * The parts of the blocks outside of the source region are ignored.
+     *
+     * @param source       the samples of the source region, row by row
+     * @param sourceX      the x of the source region
+     * @param sourceY      the y of the source region
+     * @param sourceWidth  the width of the source region
+     * @param sourceHeight the height of the source region
+     * @param target       the samples of the target region, row by row
+     * @param targetX      the x of the target region
+     * @param targetY      the y of the target region
+     * @param targetWidth  the width of the target region
+     * @param targetHeight the height of the target region
+     */
+    public void reduce(float[] source, int sourceX, int sourceY, int sourceWidth, int sourceHeight,
+                       float[] target, int targetX, int targetY, int targetWidth, int targetHeight) {
+        final float invalidValue = method == Method.COUNT ? 0.0f : noDataValueUsed ? noDataValue : Float.NaN;
+        float[] blockValues = null;
+        if (method == Method.MEDIAN) {
+            blockValues = new float[(getSourceMax(0) + 1) * (getSourceMax(0) + 1)];
+        }
+        for (int j = 0; j < targetHeight; j++) {
+            final int sy0 = Math.max(sourceY, getSourceMin(targetY + j));
+            final int sy1 = Math.min(sourceY + sourceHeight, getSourceMax(targetY + j));
+            for (int i = 0; i < targetWidth; i++) {
+                final int sx0 = Math.max(sourceX, getSourceMin(targetX + i));
+                final int sx1 = Math.min(sourceX + sourceWidth, getSourceMax(targetX + i));
+                int count = 0;
+                double sum = 0.0;
+                float max = Float.NEGATIVE_INFINITY;
+                if (blockValues != null && blockValues.length < (sy1 - sy0) * (sx1 - sx0)) {
+                    blockValues = new float[(sy1 - sy0) * (sx1 - sx0)];
+                }
+                for (int sy = sy0; sy < sy1; sy++) {
+                    final int rowOffset = (sy - sourceY) * sourceWidth - sourceX;
+                    for (int sx = sx0; sx < sx1; sx++) {
+                        final float value = source[rowOffset + sx];
+                        if (Float.isNaN(value) || noDataValueUsed && value == noDataValue) {
+                            continue;
+                        }
+                        switch (method) {
+                            case MEAN:
+                                sum += value;
+                                break;
+                            case MAX:
+                                if (value > max) {
+                                    max = value;
+                                }
+                                break;
+                            case MEDIAN:
+                                blockValues[count] = value;
+                                break;
+                            default:
+                                break;
+                        }
+                        count++;
+                    }
+                }
+                final float result;
+                if (method == Method.COUNT) {
+                    result = count;
+                } else if (count == 0) {
+                    result = invalidValue;
+                } else if (method == Method.MEAN) {
+                    result = (float) (sum / count);
+                } else if (method == Method.MAX) {
+                    result = max;
+                } else {
+                    result = QuickSelect.median(blockValues, null, 0, count);
+                }
+                target[j * targetWidth + i] = result;
+            }
+        }
+    }
+}
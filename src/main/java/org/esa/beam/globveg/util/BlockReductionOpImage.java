@@ -0,0 +1,88 @@
+package org.esa.beam.globveg.util;
+
+import javax.media.jai.ImageLayout;
+import javax.media.jai.OpImage;
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.util.Vector;
+
+/**
+ * A single-band image downsampled by a {@link BlockReducer}. The target has the data type of the source,
+ * integer results are rounded. Tiles are computed independently, so JAI computes them in parallel.
+ */
+class BlockReductionOpImage extends OpImage {
+
+    private final BlockReducer reducer;
+
+    BlockReductionOpImage(RenderedImage source, BlockReducer reducer, int width, int height) {
+        super(vectorize(source), createLayout(source, width, height), null, true);
+        this.reducer = reducer;
+    }
+
+    private static Vector<RenderedImage> vectorize(RenderedImage source) {
+        final Vector<RenderedImage> sources = new Vector<RenderedImage>(1);
+        sources.add(source);
+        return sources;
+    }
+
+    private static ImageLayout createLayout(RenderedImage source, int width, int height) {
+        final int tileWidth = Math.min(width, source.getTileWidth());
+        final int tileHeight = Math.min(height, source.getTileHeight());
+        return new ImageLayout(0, 0, width, height, 0, 0, tileWidth, tileHeight,
+                               source.getSampleModel().createCompatibleSampleModel(tileWidth, tileHeight),
+                               source.getColorModel());
+    }
+
+    @Override
+    public Rectangle mapSourceRect(Rectangle sourceRect, int sourceIndex) {
+        // all target pixels whose block intersects the source rectangle
+        int x0 = 0;
+        while (reducer.getSourceMax(x0) <= sourceRect.x) {
+            x0++;
+        }
+        int x1 = x0;
+        while (x1 < getWidth() && reducer.getSourceMin(x1) < sourceRect.x + sourceRect.width) {
+            x1++;
+        }
+        int y0 = 0;
+        while (reducer.getSourceMax(y0) <= sourceRect.y) {
+            y0++;
+        }
+        int y1 = y0;
+        while (y1 < getHeight() && reducer.getSourceMin(y1) < sourceRect.y + sourceRect.height) {
+            y1++;
+        }
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    @Override
+    public Rectangle mapDestRect(Rectangle destRect, int sourceIndex) {
+        final int x0 = reducer.getSourceMin(destRect.x);
+        final int y0 = reducer.getSourceMin(destRect.y);
+        final int x1 = reducer.getSourceMax(destRect.x + destRect.width - 1);
+        final int y1 = reducer.getSourceMax(destRect.y + destRect.height - 1);
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0).intersection(getSourceImage(sourceIndex).getBounds());
+    }
+
+    @Override
+    protected void computeRect(Raster[] sources, WritableRaster dest, Rectangle destRect) {
+        final Rectangle sourceRect = mapDestRect(destRect, 0).intersection(sources[0].getBounds());
+        final float[] target = new float[destRect.width * destRect.height];
+        if (!sourceRect.isEmpty()) {
+            final float[] source = sources[0].getSamples(sourceRect.x, sourceRect.y,
+                                                         sourceRect.width, sourceRect.height, 0, (float[]) null);
+            reducer.reduce(source, sourceRect.x, sourceRect.y, sourceRect.width, sourceRect.height,
+                           target, destRect.x, destRect.y, destRect.width, destRect.height);
+        }
+        final int dataType = dest.getSampleModel().getDataType();
+        if (dataType != DataBuffer.TYPE_FLOAT && dataType != DataBuffer.TYPE_DOUBLE) {
+            for (int i = 0; i < target.length; i++) {
+                target[i] = (float) Math.floor(target[i] + 0.5f);
+            }
+        }
+        dest.setSamples(destRect.x, destRect.y, destRect.width, destRect.height, 0, target);
+    }
+}
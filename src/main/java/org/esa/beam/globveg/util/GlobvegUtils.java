@@ -6,6 +6,7 @@ import org.esa.beam.framework.datamodel.Product;
 import javax.media.jai.Interpolation;
 import javax.media.jai.RenderedOp;
 import javax.media.jai.operator.ScaleDescriptor;
+import java.awt.image.RenderedImage;
 
 /**
  * Globveg Utility Class
@@ -30,4 +31,35 @@ public class GlobvegUtils {
                         Interpolation.INTERP_NEAREST),
                 null);
     }
+
+    /**
+     * Downsamples a single-band image by reducing blocks of pixels, ignoring no-data pixels.
+     *
+     * @param sourceImage     the image
+     * @param scaleFactor     the factor from the source to the target size, in (0, 1]
+     * @param method          the reduction method
+     * @param noDataValueUsed if pixels equal to {@code noDataValue} are invalid
+     * @param noDataValue     the no-data value of the source and target images
+     * @return the downsampled image
+     * @see BlockReducer
+     */
+    public static RenderedImage reduce(RenderedImage sourceImage, float scaleFactor, BlockReducer.Method method,
+                                       boolean noDataValueUsed, double noDataValue) {
+        final int width = (int) (sourceImage.getWidth() * scaleFactor);
+        final int height = (int) (sourceImage.getHeight() * scaleFactor);
+        return new BlockReductionOpImage(sourceImage,
+                                         new BlockReducer(method, scaleFactor, noDataValueUsed, noDataValue),
+                                         width, height);
+    }
+
+    /**
+     * Quantizes a single-band geophysical image.
+     *
+     * @param sourceImage the image
+     * @param quantizer   the quantizer
+     * @return the image of raw values, of the quantizer's data type
+     */
+    public static RenderedImage quantize(RenderedImage sourceImage, Quantizer quantizer) {
+        return new QuantizationOpImage(sourceImage, quantizer);
+    }
 }
@@ -0,0 +1,46 @@
+package org.esa.beam.globveg.util;
+
+import org.esa.beam.jai.ImageManager;
+
+import javax.media.jai.ImageLayout;
+import javax.media.jai.PointOpImage;
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * A single-band image with the raw values of a {@link Quantizer} applied to a geophysical source image.
+ */
+class QuantizationOpImage extends PointOpImage {
+
+    private final Quantizer quantizer;
+
+    QuantizationOpImage(RenderedImage source, Quantizer quantizer) {
+        super(source, createLayout(source, quantizer), null, true);
+        this.quantizer = quantizer;
+    }
+
+    private static ImageLayout createLayout(RenderedImage source, Quantizer quantizer) {
+        final int dataBufferType = ImageManager.getDataBufferType(quantizer.getDataType());
+        final SampleModel sampleModel = ImageManager.createSingleBandedSampleModel(dataBufferType,
+                                                                                   source.getTileWidth(),
+                                                                                   source.getTileHeight());
+        final ImageLayout layout = new ImageLayout(source);
+        layout.setSampleModel(sampleModel);
+        layout.setColorModel(ImageManager.createColorModel(sampleModel));
+        return layout;
+    }
+
+    @Override
+    protected void computeRect(Raster[] sources, WritableRaster dest, Rectangle destRect) {
+        final float[] values = sources[0].getSamples(destRect.x, destRect.y, destRect.width, destRect.height,
+                                                     0, (float[]) null);
+        final int[] raw = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            raw[i] = quantizer.quantize(values[i]);
+        }
+        dest.setSamples(destRect.x, destRect.y, destRect.width, destRect.height, 0, raw);
+    }
+}
@@ -0,0 +1,139 @@
+package org.esa.beam.globveg.util;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.ProductData;
+
+/**
+ * Linear quantization of a float value range to a 16 bit integer type, following the CF conventions:
+ * {@code value = raw * scaleFactor + addOffset}.
+ * <p/>
+ * The raw value -32768 (INT16) or 65535 (UINT16) is reserved as no-data value, NaN is quantized to it.
+ * Values outside the range are clamped to the nearest valid raw value, unless they are below the valid minimum
+ * set by {@link #withValidMin}, which are quantized to the no-data value as well.
+ * Values are rounded to the nearest raw value, or truncated towards zero by a quantizer created by
+ * {@link #withTruncation}.
+ * <p/>
+ * Instances are immutable and can be shared between threads.
+ */
+public class Quantizer {
+
+    private final int dataType;
+    private final double scaleFactor;
+    private final double addOffset;
+    private final int rawMin;
+    private final int rawMax;
+    private final int noDataRaw;
+    private final double validMin;
+    private final boolean truncating;
+
+    /**
+     * @param dataType    {@link ProductData#TYPE_INT16} or {@link ProductData#TYPE_UINT16}
+     * @param scaleFactor the CF scale_factor
+     * @param addOffset   the CF add_offset
+     */
+    public Quantizer(int dataType, double scaleFactor, double addOffset) {
+        this(dataType, scaleFactor, addOffset, Double.NEGATIVE_INFINITY, false);
+    }
+
+    private Quantizer(int dataType, double scaleFactor, double addOffset, double validMin, boolean truncating) {
+        if (dataType == ProductData.TYPE_INT16) {
+            rawMin = Short.MIN_VALUE + 1;
+            rawMax = Short.MAX_VALUE;
+            noDataRaw = Short.MIN_VALUE;
+        } else if (dataType == ProductData.TYPE_UINT16) {
+            rawMin = 0;
+            rawMax = 65534;
+            noDataRaw = 65535;
+        } else {
+            throw new IllegalArgumentException("unsupported data type " + ProductData.getTypeString(dataType));
+        }
+        if (!(scaleFactor > 0.0)) {
+            throw new IllegalArgumentException("scaleFactor <= 0");
+        }
+        this.dataType = dataType;
+        this.scaleFactor = scaleFactor;
+        this.addOffset = addOffset;
+        this.validMin = validMin;
+        this.truncating = truncating;
+    }
+
+    /**
+     * Creates a quantizer spreading the raw values of the type over the value range.
+     *
+     * @param dataType {@link ProductData#TYPE_INT16} or {@link ProductData#TYPE_UINT16}
+     * @param minValue the smallest value represented exactly
+     * @param maxValue the largest value represented exactly
+     */
+    public static Quantizer create(int dataType, double minValue, double maxValue) {
+        if (!(maxValue > minValue)) {
+            throw new IllegalArgumentException("maxValue <= minValue");
+        }
+        final int rawMin = dataType == ProductData.TYPE_UINT16 ? 0 : Short.MIN_VALUE + 1;
+        final int rawMax = dataType == ProductData.TYPE_UINT16 ? 65534 : Short.MAX_VALUE;
+        final double scaleFactor = (maxValue - minValue) / (rawMax - rawMin);
+        return new Quantizer(dataType, scaleFactor, minValue - rawMin * scaleFactor);
+    }
+
+    /**
+     * @param validMin the smallest valid value, e.g. 0 for a band using negative values as error codes
+     * @return a quantizer with the same scaling, which quantizes values below {@code validMin} to the
+     *         no-data value instead of clamping them
+     */
+    public Quantizer withValidMin(double validMin) {
+        return new Quantizer(dataType, scaleFactor, addOffset, validMin, truncating);
+    }
+
+    /**
+     * @return a quantizer with the same scaling, which truncates towards zero in float arithmetic like a plain
+     *         {@code (int) (value * 10000.0f)}, for outputs that have to stay compatible with such integer bands
+     */
+    public Quantizer withTruncation() {
+        return new Quantizer(dataType, scaleFactor, addOffset, validMin, true);
+    }
+
+    public int getDataType() {
+        return dataType;
+    }
+
+    public double getScaleFactor() {
+        return scaleFactor;
+    }
+
+    public double getAddOffset() {
+        return addOffset;
+    }
+
+    public int getNoDataRaw() {
+        return noDataRaw;
+    }
+
+    /**
+     * @return the raw value, rounded to the nearest step or truncated
+     */
+    public int quantize(double value) {
+        if (Double.isNaN(value) || value < validMin) {
+            return noDataRaw;
+        }
+        final double raw;
+        if (truncating) {
+            raw = (int) (((float) value - (float) addOffset) * (float) (1.0 / scaleFactor));
+        } else {
+            raw = Math.floor((value - addOffset) / scaleFactor + 0.5);
+        }
+        return raw < rawMin ? rawMin : raw > rawMax ? rawMax : (int) raw;
+    }
+
+    public double dequantize(int raw) {
+        return raw == noDataRaw ? Double.NaN : raw * scaleFactor + addOffset;
+    }
+
+    /**
+     * Sets scaling and no-data value of a band of the quantizer's data type.
+     */
+    public void applyTo(Band band) {
+        band.setScalingFactor(scaleFactor);
+        band.setScalingOffset(addOffset);
+        band.setNoDataValue(noDataRaw);
+        band.setNoDataValueUsed(true);
+    }
+}
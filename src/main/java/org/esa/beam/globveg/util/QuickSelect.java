@@ -0,0 +1,102 @@
+package org.esa.beam.globveg.util;
+
+/**
+ * Linear-time (on average) selection of order statistics on primitive arrays, working in place.
+ */
+public class QuickSelect {
+
+    /**
+     * Rearranges the elements {@code from} (inclusive) to {@code to} (exclusive) such that the element at
+     * index {@code k} is the one that would be there if the range were sorted, all elements before it are
+     * less or equal and all elements after it are greater or equal. NaN values must not be contained.
+     *
+     * @param values    the values
+     * @param companion an optional array permuted along with the values (e.g. observation times), may be null
+     * @param from      the first index of the range
+     * @param to        the end index (exclusive) of the range
+     * @param k         the index of the order statistic, {@code from <= k < to}
+     * @return the k-th smallest value of the range
+     */
+    public static float select(float[] values, float[] companion, int from, int to, int k) {
+        if (k < from || k >= to) {
+            throw new IllegalArgumentException("k out of range");
+        }
+        int left = from;
+        int right = to - 1;
+        while (right > left) {
+            // median of three as pivot
+            final int mid = (left + right) >>> 1;
+            if (values[mid] < values[left]) {
+                swap(values, companion, mid, left);
+            }
+            if (values[right] < values[left]) {
+                swap(values, companion, right, left);
+            }
+            if (values[mid] < values[right]) {
+                swap(values, companion, mid, right);
+            }
+            final float pivot = values[right];
+
+            // three-way partition, so that runs of equal values (frequent for quantized data) take one pass:
+            // [left, lt) < pivot, [lt, i) == pivot, (gt, right] > pivot
+            int lt = left;
+            int gt = right;
+            int i = left;
+            while (i <= gt) {
+                if (values[i] < pivot) {
+                    swap(values, companion, i++, lt++);
+                } else if (values[i] > pivot) {
+                    swap(values, companion, i, gt--);
+                } else {
+                    i++;
+                }
+            }
+
+            if (k < lt) {
+                right = lt - 1;
+            } else if (k > gt) {
+                left = gt + 1;
+            } else {
+                break;
+            }
+        }
+        return values[k];
+    }
+
+    /**
+     * Computes the median of the range in place, the mean of the two middle elements for an even length.
+     *
+     * @param values    the values, rearranged by this method
+     * @param companion an optional array permuted along with the values, may be null
+     * @param from      the first index of the range
+     * @param to        the end index (exclusive) of the range
+     * @return the median
+     */
+    public static float median(float[] values, float[] companion, int from, int to) {
+        final int n = to - from;
+        final int upper = from + n / 2;
+        final float upperMedian = select(values, companion, from, to, upper);
+        if (n % 2 == 1) {
+            return upperMedian;
+        }
+        // after selection, the lower middle element is the maximum of the lower part
+        float lowerMedian = values[from];
+        for (int i = from + 1; i < upper; i++) {
+            if (values[i] > lowerMedian) {
+                lowerMedian = values[i];
+            }
+        }
+        return 0.5f * (lowerMedian + upperMedian);
+    }
+
+    private static void swap(float[] values, float[] companion, int i, int j) {
+        final float value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+        if (companion != null) {
+            final float c = companion[i];
+            companion[i] = companion[j];
+            companion[j] = c;
+        }
+    }
+}
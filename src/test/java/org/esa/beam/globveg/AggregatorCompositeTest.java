@@ -0,0 +1,129 @@
+package org.esa.beam.globveg;
+
+import org.esa.beam.binning.BinContext;
+import org.esa.beam.binning.support.VectorImpl;
+import org.junit.Test;
+
+import static java.lang.Float.NaN;
+import static org.esa.beam.globveg.AggregatorTestUtils.*;
+import static org.junit.Assert.*;
+
+public class AggregatorCompositeTest {
+
+    private static final float[] VALUES = {0.3f, 0.7f, NaN, 0.1f, 0.7f, 0.4f};
+    private static final float[] TIMES = {5003.0f, 5005.0f, 5006.0f, 5001.0f, 5002.0f, 5004.0f};
+
+    @Test
+    public void testMetadata() {
+        final AggregatorComposite agg = create(AggregatorComposite.Method.MVC);
+        assertEquals("MVC", agg.getName());
+        assertEquals(2, agg.getSpatialFeatureNames().length);
+        assertEquals("ndvi_mvc", agg.getSpatialFeatureNames()[0]);
+        assertEquals(3, agg.getOutputFeatureNames().length);
+        assertEquals("ndvi_mvc", agg.getOutputFeatureNames()[0]);
+        assertEquals("ndvi_mvc_mjd", agg.getOutputFeatureNames()[1]);
+        assertEquals("ndvi_mvc_count", agg.getOutputFeatureNames()[2]);
+        assertEquals("ndvi_median", create(AggregatorComposite.Method.MEDIAN).getOutputFeatureNames()[0]);
+        assertEquals("ndvi_cmed", create(AggregatorComposite.Method.CLOSEST_TO_MEDIAN).getOutputFeatureNames()[0]);
+    }
+
+    @Test
+    public void testSpatial() {
+        final AggregatorComposite agg = create(AggregatorComposite.Method.MVC);
+        final BinContext ctx = createCtx();
+        final VectorImpl svec = vec(NaN, NaN);
+        agg.initSpatial(ctx, svec);
+        agg.aggregateSpatial(ctx, obs(5001.0, 0.4f, 0.0f), svec);
+        assertEquals(NaN, svec.get(0), 0.0f);
+        agg.aggregateSpatial(ctx, obs(5001.0, 0.4f, 1.0f), svec);
+        assertEquals(0.4f, svec.get(0), 0.0f);
+        assertEquals(5001.0f, svec.get(1), 0.0f);
+    }
+
+    @Test
+    public void testComposites() {
+        // valid values 0.1, 0.3, 0.4, 0.7, 0.7, median 0.4
+        assertResult(aggregateAlone(AggregatorComposite.Method.MVC), 0.7f, 5002.0f, 5);
+        assertResult(aggregateAlone(AggregatorComposite.Method.MEDIAN), 0.4f, 5003.0f, 5);
+        assertResult(aggregateAlone(AggregatorComposite.Method.CLOSEST_TO_MEDIAN), 0.4f, 5004.0f, 5);
+    }
+
+    @Test
+    public void testClosestToMedianOfEvenCount() {
+        final VectorImpl tvec = vec(NaN, NaN, NaN);
+        // median 0.625, 0.5 and 0.75 are equally close, the larger value wins
+        AggregatorComposite.composite(AggregatorComposite.Method.CLOSEST_TO_MEDIAN,
+                                      new float[]{0.75f, 0.25f, 0.5f, 1.0f}, new float[]{1.0f, 2.0f, 3.0f, 4.0f}, 4,
+                                      new float[4], tvec);
+        assertResult(tvec, 0.75f, 1.0f, 4);
+
+        AggregatorComposite.composite(AggregatorComposite.Method.MEDIAN,
+                                      new float[]{0.75f, 0.25f, 0.5f, 1.0f}, new float[]{1.0f, 2.0f, 3.0f, 4.0f}, 4,
+                                      new float[4], tvec);
+        assertResult(tvec, 0.625f, 2.5f, 4);
+    }
+
+    @Test
+    public void testEmptyBin() {
+        final VectorImpl tvec = vec(NaN, NaN, NaN);
+        AggregatorComposite.composite(AggregatorComposite.Method.MEDIAN, new float[0], new float[0], 0,
+                                      new float[0], tvec);
+        assertEquals(NaN, tvec.get(0), 0.0f);
+        assertEquals(NaN, tvec.get(1), 0.0f);
+        assertEquals(0.0f, tvec.get(2), 0.0f);
+    }
+
+    @Test
+    public void testCompositesShareOneBuffer() {
+        final AggregatorComposite[] aggs = {
+                create(AggregatorComposite.Method.MVC),
+                create(AggregatorComposite.Method.MEDIAN),
+                create(AggregatorComposite.Method.CLOSEST_TO_MEDIAN)
+        };
+        final BinContext ctx = createCtx();
+        final VectorImpl[] tvecs = new VectorImpl[aggs.length];
+        for (int a = 0; a < aggs.length; a++) {
+            tvecs[a] = vec(NaN, NaN, NaN);
+            aggs[a].initTemporal(ctx, tvecs[a]);
+        }
+        final SharedObservationBuffer shared = ctx.get("obs.shared.ndvi.valid");
+        assertNotNull(shared);
+        for (int i = 0; i < VALUES.length; i++) {
+            for (int a = 0; a < aggs.length; a++) {
+                aggs[a].aggregateTemporal(ctx, vec(VALUES[i], TIMES[i]), 1, tvecs[a]);
+            }
+        }
+        // each valid observation is buffered once
+        assertEquals(5, shared.getBuffer().size());
+
+        for (int a = 0; a < aggs.length; a++) {
+            aggs[a].completeTemporal(ctx, VALUES.length, tvecs[a]);
+        }
+        assertNull(ctx.get("obs.shared.ndvi.valid"));
+        assertResult(tvecs[0], 0.7f, 5002.0f, 5);
+        assertResult(tvecs[1], 0.4f, 5003.0f, 5);
+        assertResult(tvecs[2], 0.4f, 5004.0f, 5);
+    }
+
+    private static AggregatorComposite create(AggregatorComposite.Method method) {
+        return new AggregatorComposite(new MyVariableContext("ndvi", "valid"), method, "ndvi", "valid");
+    }
+
+    private static VectorImpl aggregateAlone(AggregatorComposite.Method method) {
+        final AggregatorComposite agg = create(method);
+        final BinContext ctx = createCtx();
+        final VectorImpl tvec = vec(NaN, NaN, NaN);
+        agg.initTemporal(ctx, tvec);
+        for (int i = 0; i < VALUES.length; i++) {
+            agg.aggregateTemporal(ctx, vec(VALUES[i], TIMES[i]), 1, tvec);
+        }
+        agg.completeTemporal(ctx, VALUES.length, tvec);
+        return tvec;
+    }
+
+    private static void assertResult(VectorImpl tvec, float value, float time, int count) {
+        assertEquals(value, tvec.get(0), 1e-6f);
+        assertEquals(time, tvec.get(1), 0.0f);
+        assertEquals(count, tvec.get(2), 0.0f);
+    }
+}
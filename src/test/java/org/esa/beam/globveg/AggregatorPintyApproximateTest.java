@@ -0,0 +1,115 @@
+package org.esa.beam.globveg;
+
+import org.esa.beam.binning.BinContext;
+import org.esa.beam.binning.support.VectorImpl;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static java.lang.Float.NaN;
+import static org.esa.beam.globveg.AggregatorTestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * Compares the approximate mode of the PINTY aggregator with the exact mode.
+ */
+public class AggregatorPintyApproximateTest {
+
+    private static final int BIN_COUNT = 64;
+
+    @Test
+    public void testEmptyBin() {
+        AggregatorPinty agg = createApproximate();
+        BinContext ctx = createCtx();
+        VectorImpl tvec = vec(NaN, NaN, NaN, NaN);
+
+        agg.initTemporal(ctx, tvec);
+        agg.aggregateTemporal(ctx, vec(NaN, NaN), 1, tvec);
+        agg.completeTemporal(ctx, 1, tvec);
+
+        assertEquals(NaN, tvec.get(0), 0.0f);
+        assertEquals(NaN, tvec.get(1), 0.0f);
+        assertEquals(0f, tvec.get(2), 0.0f);
+        assertEquals(NaN, tvec.get(3), 0.0f);
+    }
+
+    @Test
+    public void testSameResultAsExactForFewObservations() {
+        AggregatorPinty exact = new AggregatorPinty(new MyVariableContext("a", "va"), "a", "va");
+        AggregatorPinty approximate = createApproximate();
+
+        float[] values = {0.15f, 0.6f, 0.18f};
+        float[] times = {2013.38f, 2013.48f, 2013.58f};
+        VectorImpl exactResult = aggregate(exact, values, times);
+        VectorImpl approximateResult = aggregate(approximate, values, times);
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(exactResult.get(i), approximateResult.get(i), 1e-5f);
+        }
+    }
+
+    @Test
+    public void testWithinErrorBoundOfExactMode() {
+        AggregatorPinty exact = new AggregatorPinty(new MyVariableContext("a", "va"), "a", "va");
+        AggregatorPinty approximate = createApproximate();
+        final float binWidth = 1.0f / BIN_COUNT;
+        final int[] obsCounts = {1, 2, 5, 30, 200, 1000};
+
+        Random random = new Random(5);
+        for (int obsCount : obsCounts) {
+            for (int run = 0; run < 50; run++) {
+                float[] values = new float[obsCount];
+                float[] times = new float[obsCount];
+                double sum = 0.0;
+                for (int i = 0; i < obsCount; i++) {
+                    values[i] = random.nextFloat();
+                    times[i] = 5000.0f + i;
+                    sum += values[i];
+                }
+                final float mean = (float) (sum / obsCount);
+
+                VectorImpl exactResult = aggregate(exact, values, times);
+                VectorImpl approximateResult = aggregate(approximate, values, times);
+
+                final float exactDistance = Math.abs(exactResult.get(0) - mean);
+                final float approximateDistance = Math.abs(approximateResult.get(0) - mean);
+                assertTrue(approximateDistance <= Math.max(exactDistance, binWidth) + 1e-5f);
+                assertEquals(timeOf(approximateResult.get(0), values, times), approximateResult.get(1), 0.0f);
+                assertEquals(exactResult.get(2), approximateResult.get(2), 0.0f);
+                assertEquals(exactResult.get(3), approximateResult.get(3), 1e-4f);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidValueRange() {
+        new AggregatorPinty(new MyVariableContext("a", "va"), "a", "va",
+                            AggregatorPinty.OutlierFilter.NONE, 0.0f, true, BIN_COUNT, 1.0f, 0.0f);
+    }
+
+    private static AggregatorPinty createApproximate() {
+        return new AggregatorPinty(new MyVariableContext("a", "va"), "a", "va",
+                                   AggregatorPinty.OutlierFilter.NONE, 0.0f, true, BIN_COUNT, 0.0f, 1.0f);
+    }
+
+    private static VectorImpl aggregate(AggregatorPinty agg, float[] values, float[] times) {
+        BinContext ctx = createCtx();
+        VectorImpl tvec = vec(NaN, NaN, NaN, NaN);
+        agg.initTemporal(ctx, tvec);
+        for (int i = 0; i < values.length; i++) {
+            agg.aggregateTemporal(ctx, vec(values[i], times[i]), 1, tvec);
+        }
+        agg.completeTemporal(ctx, values.length, tvec);
+        return tvec;
+    }
+
+    private static float timeOf(float value, float[] values, float[] times) {
+        float time = NaN;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value && (Float.isNaN(time) || times[i] < time)) {
+                time = times[i];
+            }
+        }
+        return time;
+    }
+}
@@ -0,0 +1,227 @@
+package org.esa.beam.globveg;
+
+import org.esa.beam.binning.BinContext;
+import org.esa.beam.binning.support.VectorImpl;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static java.lang.Float.NaN;
+import static org.esa.beam.globveg.AggregatorTestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that merging partial temporal states of the PINTY aggregator gives the single-reducer result,
+ * and that neither depends on the order the observations arrive in.
+ */
+public class AggregatorPintyMergeTest {
+
+    private static final int PARTS = 4;
+
+    // values at distances of about 0, 0.7E-6, 1.4E-6 and 2.1E-6 from their mean 0.5, in arrival order
+    // and with decreasing times, so that sorting by time reverses them
+    private static final float[] NEAR_TIE_VALUES = {0.5f, 0.5f + 0.7e-6f, 0.5f + 1.4e-6f, 0.5f - 2.1e-6f};
+    private static final float[] NEAR_TIE_TIMES = {5004.0f, 5003.0f, 5002.0f, 5001.0f};
+
+    @Test
+    public void testMergedExactIsIdenticalToSingleReducer() throws IOException {
+        assertMergedIdentical(new AggregatorPinty(new MyVariableContext("a", "va"), "a", "va"));
+    }
+
+    @Test
+    public void testMergedWithOutlierFilterIsIdenticalToSingleReducer() throws IOException {
+        assertMergedIdentical(new AggregatorPinty(new MyVariableContext("a", "va"), "a", "va",
+                                                  AggregatorPinty.OutlierFilter.MAD, 2.0f, false, 0, 0.0f, 0.0f));
+    }
+
+    @Test
+    public void testMergedApproximate() throws IOException {
+        final AggregatorPinty agg = new AggregatorPinty(new MyVariableContext("a", "va"), "a", "va",
+                                                        AggregatorPinty.OutlierFilter.NONE, 0.0f,
+                                                        true, 64, 0.0f, 1.0f);
+        final Random random = new Random(23);
+        for (int run = 0; run < 50; run++) {
+            final float[][] observations = createObservations(random, 1 + random.nextInt(200));
+            final VectorImpl single = aggregate(agg, observations[0], observations[1]);
+            final VectorImpl merged = aggregateMerged(agg, observations[0], observations[1], random);
+            assertEquals(single.get(0), merged.get(0), 0.0f);
+            assertEquals(single.get(1), merged.get(1), 0.0f);
+            assertEquals(single.get(2), merged.get(2), 0.0f);
+            assertEquals(single.get(3), merged.get(3), 1e-5f);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testExactAndApproximateStatesDoNotMerge() throws IOException {
+        final AggregatorPinty exact = new AggregatorPinty(new MyVariableContext("a", "va"), "a", "va");
+        final AggregatorPinty approximate = new AggregatorPinty(new MyVariableContext("a", "va"), "a", "va",
+                                                                AggregatorPinty.OutlierFilter.NONE, 0.0f,
+                                                                true, 64, 0.0f, 1.0f);
+        final BinContext ctx = createCtx();
+        exact.initTemporal(ctx, vec(NaN, NaN, NaN, NaN));
+        final byte[] state = writeState(exact, ctx);
+
+        final BinContext ctx2 = createCtx();
+        approximate.initTemporal(ctx2, vec(NaN, NaN, NaN, NaN));
+        approximate.mergeTemporalState(ctx2, new DataInputStream(new ByteArrayInputStream(state)));
+    }
+
+    @Test
+    public void testNearTiesDoNotDependOnArrivalOrder() throws IOException {
+        final AggregatorPinty agg = new AggregatorPinty(new MyVariableContext("a", "va"), "a", "va");
+        final Random random = new Random(5);
+        for (int run = 0; run < 20; run++) {
+            final float[][] observations = shuffle(random, NEAR_TIE_VALUES, NEAR_TIE_TIMES);
+            final VectorImpl single = aggregate(agg, observations[0], observations[1]);
+            final VectorImpl merged = aggregateMerged(agg, observations[0], observations[1], random);
+            for (int i = 0; i < 4; i++) {
+                assertEquals(merged.get(i), single.get(i), 0.0f);
+            }
+            // in time order, the chain of near ties ends at the value closest to the mean
+            assertEquals(NEAR_TIE_VALUES[0], single.get(0), 0.0f);
+            assertEquals(NEAR_TIE_TIMES[0], single.get(1), 0.0f);
+        }
+    }
+
+    @Test
+    public void testMergedNearTiesDoNotDependOnMergeOrder() throws IOException {
+        final AggregatorPinty agg = new AggregatorPinty(new MyVariableContext("a", "va"), "a", "va");
+        final byte[][] states = new byte[NEAR_TIE_VALUES.length][];
+        for (int i = 0; i < states.length; i++) {
+            final BinContext ctx = createCtx();
+            agg.initTemporal(ctx, vec(NaN, NaN, NaN, NaN));
+            agg.aggregateTemporal(ctx, vec(NEAR_TIE_VALUES[i], NEAR_TIE_TIMES[i]), 1, vec(NaN, NaN, NaN, NaN));
+            states[i] = writeState(agg, ctx);
+        }
+
+        final VectorImpl forward = vec(NaN, NaN, NaN, NaN);
+        final VectorImpl backward = vec(NaN, NaN, NaN, NaN);
+        final BinContext forwardCtx = createCtx();
+        final BinContext backwardCtx = createCtx();
+        agg.initTemporal(forwardCtx, forward);
+        agg.initTemporal(backwardCtx, backward);
+        for (int i = 0; i < states.length; i++) {
+            agg.mergeTemporalState(forwardCtx, new DataInputStream(new ByteArrayInputStream(states[i])));
+            agg.mergeTemporalState(backwardCtx,
+                                   new DataInputStream(new ByteArrayInputStream(states[states.length - 1 - i])));
+        }
+        agg.completeTemporal(forwardCtx, states.length, forward);
+        agg.completeTemporal(backwardCtx, states.length, backward);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(forward.get(i), backward.get(i), 0.0f);
+        }
+        // in time order, the chain of near ties ends at the value closest to the mean
+        assertEquals(NEAR_TIE_VALUES[0], forward.get(0), 0.0f);
+    }
+
+    @Test
+    public void testObservationBufferSort() {
+        final ObservationBuffer buffer = new ObservationBuffer(2);
+        buffer.add(0.5f, 3.0f);
+        buffer.add(-0.25f, 1.0f);
+        buffer.add(0.75f, 1.0f);
+        buffer.add(-1.5f, 1.0f);
+        buffer.add(0.0f, -2.0f);
+        buffer.sort();
+        assertEquals(5, buffer.size());
+        final float[] values = {0.0f, -1.5f, -0.25f, 0.75f, 0.5f};
+        final float[] times = {-2.0f, 1.0f, 1.0f, 1.0f, 3.0f};
+        for (int i = 0; i < 5; i++) {
+            assertEquals(values[i], buffer.getValues()[i], 0.0f);
+            assertEquals(times[i], buffer.getTimes()[i], 0.0f);
+        }
+    }
+
+    // single reducer and merged partial states, each on its own random order of the observations
+    private static void assertMergedIdentical(AggregatorPinty agg) throws IOException {
+        final Random random = new Random(17);
+        for (int run = 0; run < 50; run++) {
+            final float[][] observations = createObservations(random, 1 + random.nextInt(200));
+            final float[][] shuffled = shuffle(random, observations[0], observations[1]);
+            final VectorImpl single = aggregate(agg, observations[0], observations[1]);
+            final VectorImpl shuffledSingle = aggregate(agg, shuffled[0], shuffled[1]);
+            final VectorImpl merged = aggregateMerged(agg, shuffled[0], shuffled[1], random);
+            for (int i = 0; i < 4; i++) {
+                assertEquals(single.get(i), shuffledSingle.get(i), 0.0f);
+                assertEquals(single.get(i), merged.get(i), 0.0f);
+            }
+        }
+    }
+
+    private static float[][] shuffle(Random random, float[] values, float[] times) {
+        final float[] shuffledValues = values.clone();
+        final float[] shuffledTimes = times.clone();
+        for (int i = shuffledValues.length - 1; i > 0; i--) {
+            final int j = random.nextInt(i + 1);
+            final float value = shuffledValues[i];
+            shuffledValues[i] = shuffledValues[j];
+            shuffledValues[j] = value;
+            final float time = shuffledTimes[i];
+            shuffledTimes[i] = shuffledTimes[j];
+            shuffledTimes[j] = time;
+        }
+        return new float[][]{shuffledValues, shuffledTimes};
+    }
+
+    // values and times, with repeated values to exercise the tie breaking
+    private static float[][] createObservations(Random random, int count) {
+        final float[] values = new float[count];
+        final float[] times = new float[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = random.nextInt(50) / 50.0f;
+            times[i] = 5000.0f + random.nextInt(365);
+        }
+        return new float[][]{values, times};
+    }
+
+    private static VectorImpl aggregate(AggregatorPinty agg, float[] values, float[] times) {
+        final BinContext ctx = createCtx();
+        final VectorImpl tvec = vec(NaN, NaN, NaN, NaN);
+        agg.initTemporal(ctx, tvec);
+        for (int i = 0; i < values.length; i++) {
+            agg.aggregateTemporal(ctx, vec(values[i], times[i]), 1, tvec);
+        }
+        agg.completeTemporal(ctx, values.length, tvec);
+        return tvec;
+    }
+
+    // aggregates random parts of the observations separately and merges their states in reverse order
+    private static VectorImpl aggregateMerged(AggregatorPinty agg, float[] values, float[] times,
+                                              Random random) throws IOException {
+        final List<BinContext> partCtxs = new ArrayList<BinContext>();
+        for (int p = 0; p < PARTS; p++) {
+            final BinContext ctx = createCtx();
+            agg.initTemporal(ctx, vec(NaN, NaN, NaN, NaN));
+            partCtxs.add(ctx);
+        }
+        for (int i = 0; i < values.length; i++) {
+            agg.aggregateTemporal(partCtxs.get(random.nextInt(PARTS)), vec(values[i], times[i]), 1,
+                                  vec(NaN, NaN, NaN, NaN));
+        }
+
+        final BinContext ctx = createCtx();
+        final VectorImpl tvec = vec(NaN, NaN, NaN, NaN);
+        agg.initTemporal(ctx, tvec);
+        for (int p = PARTS - 1; p >= 0; p--) {
+            final byte[] state = writeState(agg, partCtxs.get(p));
+            agg.mergeTemporalState(ctx, new DataInputStream(new ByteArrayInputStream(state)));
+        }
+        agg.completeTemporal(ctx, values.length, tvec);
+        return tvec;
+    }
+
+    private static byte[] writeState(AggregatorPinty agg, BinContext ctx) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        agg.writeTemporalState(ctx, out);
+        out.close();
+        return bytes.toByteArray();
+    }
+}
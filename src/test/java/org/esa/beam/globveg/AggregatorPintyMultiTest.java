@@ -0,0 +1,101 @@
+package org.esa.beam.globveg;
+
+import org.esa.beam.binning.BinContext;
+import org.esa.beam.binning.Observation;
+import org.esa.beam.binning.support.VectorImpl;
+import org.junit.Test;
+
+import static java.lang.Float.NaN;
+import static org.esa.beam.globveg.AggregatorTestUtils.*;
+import static org.junit.Assert.assertEquals;
+
+public class AggregatorPintyMultiTest {
+
+    @Test
+    public void testMetadata() {
+        AggregatorPintyMulti agg = new AggregatorPintyMulti(new MyVariableContext("a", "va", "b", "vb"),
+                                                            new String[]{"a", "b"}, new String[]{"va", "vb"});
+
+        assertEquals("PINTY_MULTI", agg.getName());
+
+        assertEquals(3, agg.getSpatialFeatureNames().length);
+        assertEquals("a", agg.getSpatialFeatureNames()[0]);
+        assertEquals("b", agg.getSpatialFeatureNames()[1]);
+        assertEquals("mjd", agg.getSpatialFeatureNames()[2]);
+
+        assertEquals(8, agg.getOutputFeatureNames().length);
+        assertEquals("a", agg.getOutputFeatureNames()[0]);
+        assertEquals("a_mjd", agg.getOutputFeatureNames()[1]);
+        assertEquals("a_count", agg.getOutputFeatureNames()[2]);
+        assertEquals("a_sigma", agg.getOutputFeatureNames()[3]);
+        assertEquals("b", agg.getOutputFeatureNames()[4]);
+        assertEquals("b_sigma", agg.getOutputFeatureNames()[7]);
+    }
+
+    @Test
+    public void testSameResultsAsSingleVariableAggregators() {
+        MyVariableContext varCtx = new MyVariableContext("a", "va", "b", "vb");
+        AggregatorPintyMulti multi = new AggregatorPintyMulti(varCtx, new String[]{"a", "b"}, new String[]{"va", "vb"});
+        AggregatorPinty pintyA = new AggregatorPinty(varCtx, "a", "va");
+        AggregatorPinty pintyB = new AggregatorPinty(varCtx, "b", "vb");
+
+        Observation[] observations = {
+                obs(2013.38f, 1.5f, 1f, 2.5f, 0f),
+                obs(2013.48f, 1.6f, 1f, 2.6f, 1f),
+                obs(2013.58f, 1.8f, 0f, 2.9f, 1f),
+                obs(2013.68f, 1.7f, 1f, 2.0f, 1f),
+                obs(2013.78f, 1.0f, 0f, 2.0f, 0f),
+        };
+
+        BinContext ctx = createCtx();
+        VectorImpl multiResult = vec(new float[8]);
+        VectorImpl resultA = vec(NaN, NaN, NaN, NaN);
+        VectorImpl resultB = vec(NaN, NaN, NaN, NaN);
+        multi.initTemporal(ctx, multiResult);
+        pintyA.initTemporal(ctx, resultA);
+        pintyB.initTemporal(ctx, resultB);
+        for (Observation observation : observations) {
+            VectorImpl multiSpatial = vec(NaN, NaN, NaN);
+            multi.initSpatial(ctx, multiSpatial);
+            multi.aggregateSpatial(ctx, observation, multiSpatial);
+            multi.aggregateTemporal(ctx, multiSpatial, 1, multiResult);
+
+            VectorImpl spatialA = vec(NaN, NaN);
+            pintyA.initSpatial(ctx, spatialA);
+            pintyA.aggregateSpatial(ctx, observation, spatialA);
+            pintyA.aggregateTemporal(ctx, spatialA, 1, resultA);
+
+            VectorImpl spatialB = vec(NaN, NaN);
+            pintyB.initSpatial(ctx, spatialB);
+            pintyB.aggregateSpatial(ctx, observation, spatialB);
+            pintyB.aggregateTemporal(ctx, spatialB, 1, resultB);
+        }
+        multi.completeTemporal(ctx, observations.length, multiResult);
+        pintyA.completeTemporal(ctx, observations.length, resultA);
+        pintyB.completeTemporal(ctx, observations.length, resultB);
+
+        assertEquals(3f, resultA.get(2), 0.0f);
+        assertEquals(3f, resultB.get(2), 0.0f);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(resultA.get(i), multiResult.get(i), 0.0f);
+            assertEquals(resultB.get(i), multiResult.get(4 + i), 0.0f);
+        }
+    }
+
+    @Test
+    public void testEmptyBin() {
+        AggregatorPintyMulti agg = new AggregatorPintyMulti(new MyVariableContext("a", "b"),
+                                                            new String[]{"a", "b"}, null);
+        BinContext ctx = createCtx();
+        VectorImpl tvec = vec(new float[8]);
+        agg.initTemporal(ctx, tvec);
+        agg.aggregateTemporal(ctx, vec(NaN, NaN, NaN), 1, tvec);
+        agg.completeTemporal(ctx, 1, tvec);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(NaN, tvec.get(4 * i), 0.0f);
+            assertEquals(NaN, tvec.get(4 * i + 1), 0.0f);
+            assertEquals(0f, tvec.get(4 * i + 2), 0.0f);
+            assertEquals(NaN, tvec.get(4 * i + 3), 0.0f);
+        }
+    }
+}
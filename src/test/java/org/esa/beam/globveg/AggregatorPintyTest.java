@@ -5,6 +5,8 @@ import org.esa.beam.binning.support.VectorImpl;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Arrays;
+
 import static java.lang.Float.NaN;
 import static org.esa.beam.globveg.AggregatorTestUtils.*;
 import static org.junit.Assert.assertEquals;
@@ -86,4 +88,113 @@ public class AggregatorPintyTest {
         assertEquals(0.124721855f, tvec.get(3), 1e-5f);
     }
 
+    @Test
+    public void testBuffersAreReusedAcrossBins() {
+        AggregatorPinty agg = new AggregatorPinty(new MyVariableContext("a", "va"), "a", "va");
+
+        VectorImpl tvec = vec(NaN, NaN, NaN, NaN);
+        agg.initTemporal(ctx, tvec);
+        for (int i = 0; i < 300; i++) {
+            agg.aggregateTemporal(ctx, vec(0.5f + 0.001f * (i % 3), 2013.0f + i), 1, tvec);
+        }
+        agg.completeTemporal(ctx, 300, tvec);
+        assertEquals(0.501f, tvec.get(0), 1e-5f);
+        assertEquals(300f, tvec.get(2), 1e-5f);
+
+        BinContext ctx2 = createCtx();
+        agg.initTemporal(ctx2, tvec);
+        agg.aggregateTemporal(ctx2, vec(0.7f, 2014.1f), 1, tvec);
+        agg.completeTemporal(ctx2, 1, tvec);
+        assertEquals(0.7f, tvec.get(0), 1e-5f);
+        assertEquals(2014.1f, tvec.get(1), 1e-5f);
+        assertEquals(1f, tvec.get(2), 1e-5f);
+        assertEquals(0f, tvec.get(3), 1e-5f);
+
+        BinContext ctx3 = createCtx();
+        agg.initTemporal(ctx3, tvec);
+        agg.completeTemporal(ctx3, 0, tvec);
+        assertEquals(Float.NaN, tvec.get(0), 0.0f);
+        assertEquals(0f, tvec.get(2), 1e-5f);
+    }
+
+    @Test
+    public void testOutlierFilters() {
+        final float[] values = {0.5f, 0.53f, 0.51f, 0.49f, 0.95f};
+
+        VectorImpl tvec = aggregateTemporal(new AggregatorPinty(new MyVariableContext("a", "va"), "a", "va"), values);
+        assertEquals(0.53f, tvec.get(0), 1e-5f);
+        assertEquals(5f, tvec.get(2), 1e-5f);
+
+        AggregatorPinty sigmaFiltered = new AggregatorPinty(new MyVariableContext("a", "va"), "a", "va",
+                                                            AggregatorPinty.OutlierFilter.SIGMA, 1.5f,
+                                                            false, 0, 0.0f, 0.0f);
+        tvec = aggregateTemporal(sigmaFiltered, values);
+        assertEquals(0.51f, tvec.get(0), 1e-5f);
+        assertEquals(2013.2f, tvec.get(1), 1e-5f);
+        assertEquals(4f, tvec.get(2), 1e-5f);
+        assertEquals(0.0147902f, tvec.get(3), 1e-5f);
+
+        AggregatorPinty madFiltered = new AggregatorPinty(new MyVariableContext("a", "va"), "a", "va",
+                                                          AggregatorPinty.OutlierFilter.MAD, 3.0f,
+                                                          false, 0, 0.0f, 0.0f);
+        tvec = aggregateTemporal(madFiltered, values);
+        assertEquals(0.51f, tvec.get(0), 1e-5f);
+        assertEquals(2013.2f, tvec.get(1), 1e-5f);
+        assertEquals(4f, tvec.get(2), 1e-5f);
+    }
+
+    @Test
+    public void testMetrics() {
+        AggregatorPinty agg = new AggregatorPinty(new MyVariableContext("m", "vm"), "m", "vm",
+                                                  AggregatorPinty.OutlierFilter.SIGMA, 1.5f,
+                                                  false, 0, 0.0f, 0.0f, true);
+        aggregateTemporal(agg, new float[]{0.5f, 0.53f, 0.51f, 0.49f, 0.95f});
+        final float[] manyValues = new float[20];
+        Arrays.fill(manyValues, 0.5f);
+        aggregateTemporal(agg, manyValues);
+        aggregateTemporal(agg, new float[0]);
+
+        final PintyMetrics.Snapshot snapshot = PintyMetrics.forVariable("m").snapshot();
+        assertEquals("PINTY.m", snapshot.getName());
+        assertEquals(3, snapshot.getBinCount());
+        assertEquals(1, snapshot.getEmptyBinCount());
+        assertEquals(25, snapshot.getObservationCount());
+        assertEquals(1, snapshot.getRejectedObservationCount());
+        // the pooled buffer has an initial capacity of 8
+        assertEquals(1, snapshot.getGrownBufferCount());
+        final long[] countHistogram = snapshot.getCountHistogram();
+        assertEquals(1, countHistogram[0]);
+        assertEquals(1, countHistogram[3]);
+        assertEquals(1, countHistogram[5]);
+        long timedBins = 0;
+        for (long bins : snapshot.getTimeHistogram()) {
+            timedBins += bins;
+        }
+        assertEquals(3, timedBins);
+    }
+
+    @Test
+    public void testMetricsBuckets() {
+        assertEquals(0, PintyMetrics.getCountBucket(0));
+        assertEquals(1, PintyMetrics.getCountBucket(1));
+        assertEquals(2, PintyMetrics.getCountBucket(3));
+        assertEquals(9, PintyMetrics.getCountBucket(256));
+        assertEquals(PintyMetrics.COUNT_BUCKETS - 1, PintyMetrics.getCountBucket(Integer.MAX_VALUE));
+        assertEquals(0, PintyMetrics.getTimeBucket(1500L));
+        assertEquals(1, PintyMetrics.getTimeBucket(2000L));
+        assertEquals(10, PintyMetrics.getTimeBucket(1024000L));
+        assertEquals(PintyMetrics.TIME_BUCKETS - 1, PintyMetrics.getTimeBucket(Long.MAX_VALUE));
+    }
+
+    private VectorImpl aggregateTemporal(AggregatorPinty agg, float[] values) {
+        BinContext binContext = createCtx();
+        VectorImpl tvec = vec(NaN, NaN, NaN, NaN);
+        agg.initTemporal(binContext, tvec);
+        for (int i = 0; i < values.length; i++) {
+            agg.aggregateTemporal(binContext, vec(values[i], 2013.0f + 0.1f * i), 1, tvec);
+        }
+        agg.completeTemporal(binContext, values.length, tvec);
+        return tvec;
+    }
+
 }
@@ -0,0 +1,103 @@
+package org.esa.beam.globveg;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.FlagCoding;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.gpf.operators.standard.BandMathsOp;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class FlagMaskExpressionTest {
+
+    private static final int SIZE = 16;
+
+    private Product product;
+
+    @Before
+    public void setUp() {
+        product = new Product("test", "test", SIZE, SIZE);
+
+        final FlagCoding l1FlagCoding = new FlagCoding("l1_flags");
+        l1FlagCoding.addFlag("BRIGHT", 0x20, null);
+        l1FlagCoding.addFlag("INVALID", 0x80, null);
+        final FlagCoding cloudFlagCoding = new FlagCoding("cloud_classif_flags");
+        cloudFlagCoding.addFlag("F_WATER", 0x01, null);
+        cloudFlagCoding.addFlag("F_CLOUD", 0x02, null);
+        cloudFlagCoding.addFlag("F_CLOUD_BUFFER", 0x04, null);
+        cloudFlagCoding.addFlag("F_CLOUD_SHADOW", 0x08, null);
+        cloudFlagCoding.addFlag("F_SNOW_ICE", 0x10, null);
+        cloudFlagCoding.addFlag("F_CLEAR_LAND", 0x20, null);
+        product.getFlagCodingGroup().add(l1FlagCoding);
+        product.getFlagCodingGroup().add(cloudFlagCoding);
+
+        // all 256 combinations of the two l1 flags and the six cloud flags
+        final int[] l1Flags = new int[SIZE * SIZE];
+        final int[] cloudFlags = new int[SIZE * SIZE];
+        for (int i = 0; i < l1Flags.length; i++) {
+            cloudFlags[i] = i & 0x3F;
+            l1Flags[i] = ((i & 0x40) != 0 ? 0x20 : 0) | ((i & 0x80) != 0 ? 0x80 : 0);
+        }
+        addFlagBand("l1_flags", l1FlagCoding, l1Flags);
+        addFlagBand("cloud_classif_flags", cloudFlagCoding, cloudFlags);
+    }
+
+    private void addFlagBand(String name, FlagCoding flagCoding, int[] samples) {
+        final Band band = product.addBand(name, ProductData.TYPE_UINT8);
+        band.setSampleCoding(flagCoding);
+        final ProductData data = band.createCompatibleRasterData();
+        for (int i = 0; i < samples.length; i++) {
+            data.setElemIntAt(i, samples[i]);
+        }
+        band.setRasterData(data);
+    }
+
+    @Test
+    public void testEquivalentToBandMaths() {
+        assertEquivalentToBandMaths(GlobVegOp.CLOUD_FREE_EXPRESSION);
+        assertEquivalentToBandMaths("l1_flags.INVALID");
+        assertEquivalentToBandMaths("not l1_flags.INVALID and not l1_flags.BRIGHT");
+        assertEquivalentToBandMaths("l1_flags.BRIGHT and cloud_classif_flags.F_CLOUD and cloud_classif_flags.F_SNOW_ICE");
+        assertEquivalentToBandMaths("cloud_classif_flags.F_CLEAR_LAND && !cloud_classif_flags.F_CLOUD");
+        assertEquivalentToBandMaths("not not cloud_classif_flags.F_WATER");
+    }
+
+    @Test
+    public void testUnsupportedExpressions() {
+        assertNull(compile("l1_flags.INVALID or l1_flags.BRIGHT"));
+        assertNull(compile("not (l1_flags.INVALID and l1_flags.BRIGHT)"));
+        assertNull(compile("cloud_classif_flags == 0"));
+        assertNull(compile("l1_flags.UNKNOWN"));
+        assertNull(compile("l1_flags.INVALID and"));
+        assertNull(compile(""));
+        assertNull(compile(null));
+    }
+
+    private FlagMaskExpression compile(String expression) {
+        return FlagMaskExpression.compile(expression, product);
+    }
+
+    private void assertEquivalentToBandMaths(String expression) {
+        final FlagMaskExpression flagMask = compile(expression);
+        assertNotNull(expression, flagMask);
+
+        final Band[] flagBands = flagMask.getBands();
+        final int[][] flagSamples = new int[flagBands.length][];
+        for (int i = 0; i < flagBands.length; i++) {
+            flagSamples[i] = flagBands[i].getSourceImage().getData().getSamples(0, 0, SIZE, SIZE, 0, (int[]) null);
+        }
+        final int[] actual = new int[SIZE * SIZE];
+        flagMask.evaluate(flagSamples, actual);
+
+        final Band maskBand = BandMathsOp.createBooleanExpressionBand(expression, product).getTargetProduct().getBandAt(0);
+        final int[] expected = maskBand.getSourceImage().getData().getSamples(0, 0, SIZE, SIZE, 0, (int[]) null);
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = expected[i] != 0 ? 1 : 0;
+        }
+        assertArrayEquals(expression, expected, actual);
+    }
+}
@@ -0,0 +1,56 @@
+package org.esa.beam.globveg;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GlobVegBatchOpTest {
+
+    @Test
+    public void testFilenamePattern() {
+        final Pattern pattern = GlobVegBatchOp.toPattern("MER_*.N1");
+        assertTrue(pattern.matcher("MER_RR__1PNACR20050601_091234_000026192037_00337_17132_0000.N1").matches());
+        assertTrue(pattern.matcher("MER_.N1").matches());
+        assertFalse(pattern.matcher("MER_RR__1P.N1.gz").matches());
+        assertFalse(pattern.matcher("MER_RR__1PxN1").matches());
+
+        assertTrue(GlobVegBatchOp.toPattern("MER_??__1P*").matcher("MER_FR__1PNACR.N1").matches());
+        assertFalse(GlobVegBatchOp.toPattern("MER_??__1P*").matcher("MER_FRS_1PNACR.N1").matches());
+    }
+
+    @Test
+    public void testDeletePartialOutput() throws IOException {
+        final File dir = File.createTempFile("globveg-batch", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        try {
+            // a partially written BEAM-DIMAP product
+            final File targetFile = new File(dir, "MER_RR__1P_globveg.dim");
+            final File dataDir = new File(dir, "MER_RR__1P_globveg.data");
+            final File otherFile = new File(dir, "MER_RR__2P_globveg.dim");
+            assertTrue(targetFile.createNewFile());
+            assertTrue(dataDir.mkdir());
+            assertTrue(new File(dataDir, "fapar.img").createNewFile());
+            assertTrue(new File(dataDir, "fapar.hdr").createNewFile());
+            assertTrue(otherFile.createNewFile());
+
+            assertTrue(GlobVegBatchOp.deletePartialOutput(targetFile));
+            assertFalse(targetFile.exists());
+            assertFalse(dataDir.exists());
+            assertTrue(otherFile.exists());
+
+            // nothing written yet
+            assertTrue(GlobVegBatchOp.deletePartialOutput(targetFile));
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+}
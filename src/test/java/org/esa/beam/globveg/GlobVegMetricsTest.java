@@ -0,0 +1,105 @@
+package org.esa.beam.globveg;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class GlobVegMetricsTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("globveg-metrics", ".json");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".prom").delete();
+    }
+
+    @Test
+    public void testJsonReport() throws IOException {
+        final GlobVegMetrics metrics = createMetrics();
+        metrics.writeReport(file, 1);
+
+        final String json = readFile(file);
+        assertTrue(json, json.startsWith("{"));
+        assertTrue(json, json.contains("\"Meris.Rad2Refl\": {\"tiles\": 2, \"wallSeconds\": 0.003000, " +
+                                       "\"cpuSeconds\": 0.002000}"));
+        assertTrue(json, json.contains("\"tiles\": 1, \"skippedTiles\": 1, " +
+                                       "\"exclusiveWallSeconds\": 0.007000, \"exclusiveCpuSeconds\": 0.003000}"));
+        // the copied FAPAR tile is pulled by the writer, outside computeTileStack
+        assertTrue(json, json.contains("\"FAPAR\": {\"tiles\": 1, \"bytes\": 400}"));
+        assertTrue(json, json.contains("\"reflec_6\": {\"tiles\": 2, \"bytes\": 800}"));
+        assertTrue(json, json.contains("\"tileCache\": {"));
+    }
+
+    @Test
+    public void testPrometheusReport() throws IOException {
+        final File promFile = new File(file.getPath() + ".prom");
+        createMetrics().writeReport(promFile, 1);
+
+        final String text = readFile(promFile);
+        assertTrue(text, text.contains("# TYPE globveg_stage_tiles_total counter\n"));
+        assertTrue(text, text.contains("globveg_stage_tiles_total{stage=\"Meris.Rad2Refl\"} 2\n"));
+        assertTrue(text, text.contains("globveg_stage_wall_seconds_total{stage=\"Fapar.copied\"} 0.020000\n"));
+        assertTrue(text, text.contains("globveg_compute_tile_stack_exclusive_wall_seconds_total 0.007000\n"));
+        assertTrue(text, text.contains("globveg_skipped_tiles_total 1\n"));
+        assertTrue(text, text.contains("globveg_band_bytes_total{band=\"reflec_6\"} 800\n"));
+    }
+
+    @Test
+    public void testCopiedTilesOfSourceStage() throws IOException {
+        final Raster floatTile = Raster.createWritableRaster(
+                new BandedSampleModel(DataBuffer.TYPE_FLOAT, 10, 10, 1), null);
+        final GlobVegMetrics metrics = createMetrics();
+        // reflectance bands copied to the target product, from the stage computeTileStack also requests
+        metrics.recordCopiedTile("Meris.Rad2Refl", "reflec_6", floatTile, 20000000L, 10000000L);
+        metrics.writeReport(file, 1);
+
+        final String json = readFile(file);
+        assertTrue(json, json.contains("\"Meris.Rad2Refl\": {\"tiles\": 2, \"wallSeconds\": 0.003000, " +
+                                       "\"cpuSeconds\": 0.002000}"));
+        assertTrue(json, json.contains("\"Meris.Rad2Refl.copied\": {\"tiles\": 1, \"wallSeconds\": 0.020000, " +
+                                       "\"cpuSeconds\": 0.010000}"));
+        // not subtracted from the time of computeTileStack
+        assertTrue(json, json.contains("\"exclusiveWallSeconds\": 0.007000, \"exclusiveCpuSeconds\": 0.003000}"));
+    }
+
+    private static GlobVegMetrics createMetrics() {
+        final Raster floatTile = Raster.createWritableRaster(
+                new BandedSampleModel(DataBuffer.TYPE_FLOAT, 10, 10, 1), null);
+        final GlobVegMetrics metrics = new GlobVegMetrics();
+        metrics.recordSourceTile("Meris.Rad2Refl", "reflec_6", floatTile, 1000000L, 1000000L);
+        metrics.recordSourceTile("Meris.Rad2Refl", "reflec_6", floatTile, 2000000L, 1000000L);
+        metrics.recordCopiedTile("Fapar", "FAPAR", floatTile, 20000000L, 10000000L);
+        metrics.recordComputeTileStack(10000000L, 5000000L);
+        return metrics;
+    }
+
+    private static String readFile(File file) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        final BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                sb.append(line).append('\n');
+            }
+        } finally {
+            reader.close();
+        }
+        return sb.toString();
+    }
+}
@@ -1,13 +1,35 @@
 package org.esa.beam.globveg;
 
+import com.vividsolutions.jts.geom.Geometry;
 import junit.framework.TestCase;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.CrsGeoCoding;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
 import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.framework.gpf.Tile;
+import org.esa.beam.framework.gpf.internal.TileImpl;
+import org.esa.beam.globveg.util.Quantizer;
+import org.esa.beam.jai.ImageManager;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
 import java.text.ParseException;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
 public class GlobVegOpTest {
     @Before
@@ -38,4 +60,237 @@ public class GlobVegOpTest {
         Assert.assertEquals(0.333333f, ndvi, 1.E-5);    // (0.2 - 0.1)/(0.2 + 0.1)
     }
 
+    @Test
+    public void testNdviKgValuesMatchPerPixelComputation() {
+        final float[] refl_6 = {0.08f, 0.05f, 0.2f};
+        final float[] refl_7 = {0.12f, 0.06f, 0.3f};
+        final float[] refl_10 = {0.2f, 0.3f, 0.1f};
+        final float[] refl_12 = {0.3f, 0.35f, 0.1f};
+        final float[] refl_13 = {0.5f, 0.4f, 0.15f};
+        final float[] refl_14 = {0.6f, 0.45f, 0.1f};
+        final float[] refl_15 = {0.4f, 0.5f, 0.12f};
+        final float[] ndvi = new float[3];
+
+        GlobVegOp.computeNdviKgValues(0.5f, 0.1f, refl_6, refl_7, refl_10, refl_12, refl_13, refl_14, refl_15, ndvi);
+
+        for (int i = 0; i < ndvi.length; i++) {
+            final float expected = GlobVegOp.computeNdviKgValue(0.5f, 0.1f, refl_6[i], refl_7[i], refl_10[i],
+                                                                refl_12[i], refl_13[i], refl_14[i], refl_15[i]);
+            Assert.assertEquals(expected, ndvi[i], 0.0f);
+        }
+        Assert.assertEquals(0.333333f, ndvi[0], 1.E-5);
+    }
+
+    @Test
+    public void testResolveBandDependencies() {
+        Map<String, Set<GlobVegStage>> dependencies = GlobVegOp.resolveBandDependencies(false, false, true);
+        Assert.assertFalse(dependencies.containsKey("ndvi_kg"));
+        Assert.assertFalse(dependencies.containsKey("ndvi_from_radiance_6_and_10"));
+        Assert.assertEquals(EnumSet.of(GlobVegStage.RADIOMETRY, GlobVegStage.FAPAR), dependencies.get("fapar"));
+        Assert.assertEquals(EnumSet.of(GlobVegStage.RADIOMETRY, GlobVegStage.LAI, GlobVegStage.IDEPIX),
+                            dependencies.get("valid_lai"));
+        for (Set<GlobVegStage> stages : dependencies.values()) {
+            Assert.assertFalse(stages.contains(GlobVegStage.RAD2REFL));
+            Assert.assertFalse(stages.contains(GlobVegStage.NDVI_SIMPLE));
+        }
+
+        dependencies = GlobVegOp.resolveBandDependencies(true, false, true);
+        Assert.assertEquals(EnumSet.of(GlobVegStage.RAD2REFL, GlobVegStage.IDEPIX), dependencies.get("ndvi_kg"));
+        Assert.assertEquals(EnumSet.of(GlobVegStage.NDVI_SIMPLE), dependencies.get("ndvi_from_radiance_6_and_10"));
+    }
+
+    @Test
+    public void testComputeRowSetsNdviKgNoDataForCloudyPixels() {
+        final Quantizer quantizer = GlobVegOp.NDVI_X10000_QUANTIZER;
+        final byte[] validFapar = new byte[3];
+        final byte[] validLai = new byte[3];
+        final short[] ndviKg = new short[3];
+
+        GlobVegOp.computeRow(3, 0, new int[]{1, 0, 1}, new int[]{1, 1, 0}, new int[]{0, 1, 1},
+                             new float[]{0.33336f, 0.5f, Float.NaN},
+                             validFapar, 0, validLai, 0, ndviKg, 0, quantizer);
+
+        Assert.assertArrayEquals(new byte[]{1, 0, 0}, validFapar);
+        Assert.assertArrayEquals(new byte[]{0, 0, 1}, validLai);
+        Assert.assertArrayEquals(new short[]{3333, Short.MIN_VALUE, Short.MIN_VALUE}, ndviKg);
+    }
+
+    @Test
+    public void testArrayPathMatchesPerPixelPath() {
+        // a tile not at the origin, rows not aligned to the obs_time quantization steps
+        final Rectangle rectangle = new Rectangle(3, 5, 7, 16);
+        final Random random = new Random(5);
+        final int[] cloudFree = createMask(random, rectangle, 0.6f);
+        final int[] validFapar = createMask(random, rectangle, 0.8f);
+        final int[] validLai = createMask(random, rectangle, 0.8f);
+        final Tile[] reflectances = createReflectanceTiles(random, rectangle);
+        final double[] rowMjds = createRowMjds(random, rectangle);
+
+        final Quantizer quantizer = Quantizer.create(ProductData.TYPE_INT16, 4000.0, 4000.01);
+        for (Quantizer timeQuantizer : new Quantizer[]{null, quantizer}) {
+            final Quantizer ndviKgQuantizer = Quantizer.create(ProductData.TYPE_INT16, -1.0, 1.0);
+            final Tile[] arrayTiles = createTargetTiles(rectangle, timeQuantizer, ndviKgQuantizer);
+            final Tile[] pixelTiles = createTargetTiles(rectangle, timeQuantizer, ndviKgQuantizer);
+
+            computeFromArrays(rectangle, rowMjds, arrayTiles, timeQuantizer, ndviKgQuantizer,
+                              validFapar, validLai, cloudFree, reflectances);
+            GlobVegOp.computeTileStackPerPixel(rectangle, rowMjds, pixelTiles[0], timeQuantizer,
+                                               pixelTiles[1], pixelTiles[2], pixelTiles[3], ndviKgQuantizer,
+                                               validFapar, validLai, cloudFree, reflectances);
+
+            for (int i = 0; i < arrayTiles.length; i++) {
+                assertRawSamplesEqual(arrayTiles[i], pixelTiles[i]);
+            }
+            if (timeQuantizer != null) {
+                // rounded, not truncated
+                for (int j = 0; j < rowMjds.length; j++) {
+                    Assert.assertEquals(timeQuantizer.quantize(rowMjds[j]),
+                                        pixelTiles[0].getDataBuffer().getElemIntAt(
+                                                pixelTiles[0].getDataBufferIndex(rectangle.x, rectangle.y + j)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidTileMatchesArrayPathForCloudyTile() {
+        final Rectangle rectangle = new Rectangle(3, 5, 7, 16);
+        final Random random = new Random(7);
+        final int[] cloudFree = new int[rectangle.width * rectangle.height];
+        final int[] validFapar = createMask(random, rectangle, 0.8f);
+        final int[] validLai = createMask(random, rectangle, 0.8f);
+        final Tile[] reflectances = createReflectanceTiles(random, rectangle);
+        final double[] rowMjds = createRowMjds(random, rectangle);
+
+        final Quantizer quantizer = Quantizer.create(ProductData.TYPE_UINT16, 4000.0, 4000.01);
+        for (Quantizer timeQuantizer : new Quantizer[]{null, quantizer}) {
+            final Quantizer ndviKgQuantizer = Quantizer.create(ProductData.TYPE_INT16, -1.0, 1.0);
+            final Tile[] arrayTiles = createTargetTiles(rectangle, timeQuantizer, ndviKgQuantizer);
+            final Tile[] invalidTiles = createTargetTiles(rectangle, timeQuantizer, ndviKgQuantizer);
+
+            computeFromArrays(rectangle, rowMjds, arrayTiles, timeQuantizer, ndviKgQuantizer,
+                              validFapar, validLai, cloudFree, reflectances);
+            GlobVegOp.computeInvalidTile(rectangle, rowMjds, invalidTiles[0], timeQuantizer,
+                                         invalidTiles[1], invalidTiles[2], invalidTiles[3], ndviKgQuantizer);
+
+            for (int i = 0; i < arrayTiles.length; i++) {
+                assertRawSamplesEqual(arrayTiles[i], invalidTiles[i]);
+            }
+        }
+    }
+
+    private static void computeFromArrays(Rectangle rectangle, double[] rowMjds, Tile[] targetTiles,
+                                          Quantizer timeQuantizer, Quantizer ndviKgQuantizer,
+                                          int[] validFapar, int[] validLai, int[] cloudFree, Tile[] reflectances) {
+        final Tile time = targetTiles[0];
+        GlobVegOp.computeTileStackFromArrays(rectangle, rowMjds, time, time.getDataBufferFloat(),
+                                             GlobVegOp.getShortDataBuffer(time), timeQuantizer,
+                                             targetTiles[1], targetTiles[2], targetTiles[3], ndviKgQuantizer,
+                                             validFapar, validLai, cloudFree, reflectances);
+    }
+
+    // obs_time, valid_fapar, valid_lai and ndvi_kg
+    private static Tile[] createTargetTiles(Rectangle rectangle, Quantizer timeQuantizer, Quantizer ndviKgQuantizer) {
+        return new Tile[]{
+                createTile(timeQuantizer != null ? timeQuantizer.getDataType() : ProductData.TYPE_FLOAT32,
+                           rectangle, timeQuantizer),
+                createTile(ProductData.TYPE_INT8, rectangle, null),
+                createTile(ProductData.TYPE_INT8, rectangle, null),
+                createTile(ndviKgQuantizer.getDataType(), rectangle, ndviKgQuantizer)
+        };
+    }
+
+    private static Tile[] createReflectanceTiles(Random random, Rectangle rectangle) {
+        final Tile[] tiles = new Tile[7];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = createTile(ProductData.TYPE_FLOAT32, rectangle, null);
+            for (int y = rectangle.y; y < rectangle.y + rectangle.height; y++) {
+                for (int x = rectangle.x; x < rectangle.x + rectangle.width; x++) {
+                    tiles[i].setSample(x, y, 0.01f + 0.5f * random.nextFloat());
+                }
+            }
+        }
+        return tiles;
+    }
+
+    private static Tile createTile(int dataType, Rectangle rectangle, Quantizer quantizer) {
+        final Band band = new Band("band", dataType, rectangle.x + rectangle.width, rectangle.y + rectangle.height);
+        if (quantizer != null) {
+            quantizer.applyTo(band);
+        }
+        final WritableRaster raster = Raster.createWritableRaster(
+                ImageManager.createSingleBandedSampleModel(ImageManager.getDataBufferType(dataType),
+                                                           rectangle.width, rectangle.height),
+                new Point(rectangle.x, rectangle.y));
+        return new TileImpl(band, raster);
+    }
+
+    private static int[] createMask(Random random, Rectangle rectangle, float fraction) {
+        final int[] mask = new int[rectangle.width * rectangle.height];
+        for (int i = 0; i < mask.length; i++) {
+            mask[i] = random.nextFloat() < fraction ? 1 : 0;
+        }
+        return mask;
+    }
+
+    private static double[] createRowMjds(Random random, Rectangle rectangle) {
+        final double[] rowMjds = new double[rectangle.height];
+        for (int j = 0; j < rowMjds.length; j++) {
+            rowMjds[j] = 4000.0 + 0.01 * random.nextDouble();
+        }
+        return rowMjds;
+    }
+
+    private static void assertRawSamplesEqual(Tile expected, Tile actual) {
+        final Rectangle rectangle = expected.getRectangle();
+        for (int y = rectangle.y; y < rectangle.y + rectangle.height; y++) {
+            for (int x = rectangle.x; x < rectangle.x + rectangle.width; x++) {
+                Assert.assertEquals("pixel " + x + "," + y,
+                                    expected.getDataBuffer().getElemDoubleAt(expected.getDataBufferIndex(x, y)),
+                                    actual.getDataBuffer().getElemDoubleAt(actual.getDataBufferIndex(x, y)), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testComputePixelRegion() throws Exception {
+        // 100 x 100 pixels of 0.1 degrees, upper left corner at 10 E, 50 N
+        final Product product = new Product("test", "test", 100, 100);
+        product.setGeoCoding(new CrsGeoCoding(DefaultGeographicCRS.WGS84, 100, 100, 10.0, 50.0, 0.1, 0.1, 0.0, 0.0));
+
+        final List<Geometry> inside = GlobVegOp.readRegions("POLYGON((11 49, 12 49, 12 48, 11 48, 11 49))", null, null);
+        final Rectangle pixelRegion = GlobVegOp.computePixelRegion(product, inside);
+        // 10 x 10 pixels at (10, 10) plus the cloud buffer margin
+        Assert.assertTrue(pixelRegion.contains(new Rectangle(10, 10, 10, 10)));
+        Assert.assertTrue(new Rectangle(10 - GlobVegOp.CLOUD_BUFFER_WIDTH, 10 - GlobVegOp.CLOUD_BUFFER_WIDTH,
+                                        11 + 2 * GlobVegOp.CLOUD_BUFFER_WIDTH,
+                                        11 + 2 * GlobVegOp.CLOUD_BUFFER_WIDTH).contains(pixelRegion));
+
+        final List<Geometry> outside = GlobVegOp.readRegions("POLYGON((31 49, 32 49, 32 48, 31 48, 31 49))", null, null);
+        Assert.assertTrue(GlobVegOp.computePixelRegion(product, outside).isEmpty());
+    }
+
+    @Test
+    public void testReadRegions() throws Exception {
+        Assert.assertNull(GlobVegOp.readRegions(null, null, null));
+        Assert.assertNull(GlobVegOp.readRegions(" ", null, null));
+
+        final File sitesFile = File.createTempFile("globveg-sites", ".txt");
+        try {
+            final PrintWriter writer = new PrintWriter(new FileWriter(sitesFile));
+            writer.println("siteA\t48.5\t11.5");
+            writer.println("siteB\tPOLYGON((11 49, 12 49, 12 48, 11 48, 11 49))");
+            writer.close();
+            Assert.assertEquals(2, GlobVegOp.readRegions(null, sitesFile, null).size());
+            Assert.assertEquals(1, GlobVegOp.readRegions(null, sitesFile, new String[]{"siteB"}).size());
+            Assert.assertEquals(2, GlobVegOp.readRegions("POINT(11 48)", sitesFile, new String[]{"siteA"}).size());
+        } finally {
+            sitesFile.delete();
+        }
+    }
+
+    @Test(expected = OperatorException.class)
+    public void testReadRegionsFailsForInvalidWkt() {
+        GlobVegOp.readRegions("POLYGON((11 49", null, null);
+    }
 }
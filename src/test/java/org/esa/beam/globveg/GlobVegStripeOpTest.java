@@ -0,0 +1,207 @@
+package org.esa.beam.globveg;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.TiePointGrid;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.util.ProductUtils;
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class GlobVegStripeOpTest {
+
+    @Test
+    public void testComputeStripes() {
+        final Rectangle[][] stripes = GlobVegStripeOp.computeStripes(5, 10, 3, 2);
+        assertEquals(3, stripes.length);
+        assertEquals(new Rectangle(0, 0, 5, 3), stripes[0][0]);
+        assertEquals(new Rectangle(0, 0, 5, 5), stripes[0][1]);
+        assertEquals(new Rectangle(0, 3, 5, 3), stripes[1][0]);
+        assertEquals(new Rectangle(0, 1, 5, 7), stripes[1][1]);
+        assertEquals(new Rectangle(0, 6, 5, 4), stripes[2][0]);
+        assertEquals(new Rectangle(0, 4, 5, 6), stripes[2][1]);
+
+        // no more stripes than rows
+        assertEquals(2, GlobVegStripeOp.computeStripes(5, 2, 4, 3).length);
+        assertEquals(new Rectangle(0, 0, 5, 2), GlobVegStripeOp.computeStripes(5, 2, 1, 3)[0][1]);
+    }
+
+    @Test
+    public void testMergeStripes() {
+        final Product sourceProduct = new Product("source", "MER_RR__1P", 4, 10);
+        final Rectangle[][] stripes = GlobVegStripeOp.computeStripes(4, 10, 3, 2);
+        final Product[] stripeProducts = new Product[stripes.length];
+        for (int i = 0; i < stripes.length; i++) {
+            final Rectangle processed = stripes[i][1];
+            stripeProducts[i] = new Product("globveg", "GLOBVEG", processed.width, processed.height);
+            final Band band = stripeProducts[i].addBand("ndvi", ProductData.TYPE_INT32);
+            final int[] data = new int[processed.width * processed.height];
+            for (int k = 0; k < data.length; k++) {
+                // the scene row, except in the overlap rows, where the processing would differ
+                final int y = processed.y + k / processed.width;
+                data[k] = stripes[i][0].contains(0, y) ? y : -1;
+            }
+            band.setRasterData(ProductData.createInstance(data));
+        }
+
+        final Product mergedProduct = GlobVegStripeOp.mergeStripes(sourceProduct, stripeProducts, stripes);
+        assertEquals(4, mergedProduct.getSceneRasterWidth());
+        assertEquals(10, mergedProduct.getSceneRasterHeight());
+        final Raster raster = mergedProduct.getBand("ndvi").getSourceImage().getData();
+        for (int y = 0; y < 10; y++) {
+            for (int x = 0; x < 4; x++) {
+                assertEquals(y, raster.getSample(x, y, 0));
+            }
+        }
+    }
+
+    @Test
+    public void testMergeFloatStripes() {
+        final Product sourceProduct = new Product("source", "MER_RR__1P", 4, 10);
+        final Rectangle[][] stripes = GlobVegStripeOp.computeStripes(4, 10, 3, 2);
+        final Product[] stripeProducts = new Product[stripes.length];
+        for (int i = 0; i < stripes.length; i++) {
+            final Rectangle processed = stripes[i][1];
+            stripeProducts[i] = new Product("globveg", "GLOBVEG", processed.width, processed.height);
+            final Band band = stripeProducts[i].addBand("fapar", ProductData.TYPE_FLOAT32);
+            final float[] data = new float[processed.width * processed.height];
+            for (int k = 0; k < data.length; k++) {
+                data[k] = getFloatSample(k % processed.width, processed.y + k / processed.width);
+            }
+            band.setRasterData(ProductData.createInstance(data));
+        }
+
+        final Product mergedProduct = GlobVegStripeOp.mergeStripes(sourceProduct, stripeProducts, stripes);
+        final Raster raster = mergedProduct.getBand("fapar").getSourceImage().getData();
+        for (int y = 0; y < 10; y++) {
+            for (int x = 0; x < 4; x++) {
+                assertEquals("pixel " + x + "," + y, getFloatSample(x, y), raster.getSampleFloat(x, y, 0), 0.0f);
+            }
+        }
+    }
+
+    // values in (0, 1), negative values and NaN, none of which must become the mosaic background
+    private static float getFloatSample(int x, int y) {
+        switch (x) {
+            case 0:
+                return 0.05f + 0.09f * y;
+            case 1:
+                return -0.5f - y;
+            case 2:
+                return y % 2 == 0 ? Float.NaN : 0.25f;
+            default:
+                return 1.0e-6f * y;
+        }
+    }
+
+    @Test
+    public void testComputeOverlap() {
+        // 12 km * tan(60 deg) = 20.8 km of cloud shadow
+        assertEquals(GlobVegOp.CLOUD_BUFFER_WIDTH + 18,
+                     GlobVegStripeOp.computeOverlap(createMerisProduct("MER_RR__1P", 40.0f, 60.0f)));
+        assertEquals(GlobVegOp.CLOUD_BUFFER_WIDTH + 70,
+                     GlobVegStripeOp.computeOverlap(createMerisProduct("MER_FR__1P", 40.0f, 60.0f)));
+    }
+
+    @Test(expected = OperatorException.class)
+    public void testComputeOverlapFailsForUnknownProductType() {
+        GlobVegStripeOp.computeOverlap(createMerisProduct("ATS_TOA_1P", 40.0f, 60.0f));
+    }
+
+    @Test(expected = OperatorException.class)
+    public void testComputeOverlapFailsWithoutSunZenith() {
+        GlobVegStripeOp.computeOverlap(new Product("source", "MER_RR__1P", 4, 10));
+    }
+
+    @Test
+    public void testStripesMatchSingleRun() throws ParseException {
+        final int width = 5;
+        final int height = 40;
+        // an upstream operator looking 'reach' rows up and down, like a cloud buffer
+        final int reach = 4;
+        final Random random = new Random(11);
+        final int[] clouds = new int[width * height];
+        for (int i = 0; i < clouds.length; i++) {
+            clouds[i] = random.nextFloat() < 0.05f ? 1 : 0;
+        }
+        // the first stripe has the rows 0 to 12: a cloud three rows below it, the only one near its edge
+        for (int y = 8; y < 20; y++) {
+            clouds[y * width + 2] = 0;
+        }
+        clouds[15 * width + 2] = 1;
+        final Product sourceProduct = new Product("source", "MER_RR__1P", width, height);
+        sourceProduct.setStartTime(ProductData.UTC.parse("16-JUN-2010 10:00:00"));
+        sourceProduct.setEndTime(ProductData.UTC.parse("16-JUN-2010 10:10:00"));
+        final Rectangle scene = new Rectangle(width, height);
+        final int[] singleRun = applyCloudBuffer(clouds, width, scene, reach);
+
+        final Product mergedProduct = mergeStripes(sourceProduct, clouds, reach, reach);
+        final Raster raster = mergedProduct.getBand("cloud_buffer").getSourceImage().getData();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                assertEquals("pixel " + x + "," + y, singleRun[y * width + x], raster.getSample(x, y, 0));
+            }
+        }
+        // like GlobVegOp, the times of the first and last scan line
+        assertEquals(ProductUtils.getScanLineTime(sourceProduct, 0).getAsDate(),
+                     mergedProduct.getStartTime().getAsDate());
+        assertEquals(ProductUtils.getScanLineTime(sourceProduct, height - 1).getAsDate(),
+                     mergedProduct.getEndTime().getAsDate());
+
+        // an overlap smaller than the reach leaves the cloud buffer at the stripe edges incomplete
+        final Raster shortRaster = mergeStripes(sourceProduct, clouds, reach - 2, reach).getBand("cloud_buffer")
+                .getSourceImage().getData();
+        assertEquals(1, singleRun[12 * width + 2]);
+        assertEquals(0, shortRaster.getSample(2, 12, 0));
+    }
+
+    // processes three stripes with the given overlap, as the stripe processes would, and merges them
+    private static Product mergeStripes(Product sourceProduct, int[] clouds, int overlap, int reach) {
+        final int width = sourceProduct.getSceneRasterWidth();
+        final Rectangle[][] stripes = GlobVegStripeOp.computeStripes(width, sourceProduct.getSceneRasterHeight(),
+                                                                     3, overlap);
+        final Product[] stripeProducts = new Product[stripes.length];
+        for (int i = 0; i < stripes.length; i++) {
+            final Rectangle processed = stripes[i][1];
+            stripeProducts[i] = new Product("globveg", "GLOBVEG", processed.width, processed.height);
+            final Band band = stripeProducts[i].addBand("cloud_buffer", ProductData.TYPE_INT32);
+            band.setRasterData(ProductData.createInstance(applyCloudBuffer(clouds, width, processed, reach)));
+        }
+        return GlobVegStripeOp.mergeStripes(sourceProduct, stripeProducts, stripes);
+    }
+
+    // for each pixel of the rectangle, 1 if there is a cloud within the reach rows above or below it
+    // and within the rectangle, which is all an operator processing the rectangle can see
+    private static int[] applyCloudBuffer(int[] clouds, int width, Rectangle rectangle, int reach) {
+        final int[] buffer = new int[rectangle.width * rectangle.height];
+        for (int y = rectangle.y; y < rectangle.y + rectangle.height; y++) {
+            for (int x = rectangle.x; x < rectangle.x + rectangle.width; x++) {
+                final int y0 = Math.max(rectangle.y, y - reach);
+                final int y1 = Math.min(rectangle.y + rectangle.height - 1, y + reach);
+                for (int yy = y0; yy <= y1; yy++) {
+                    if (clouds[yy * width + x] != 0) {
+                        buffer[(y - rectangle.y) * rectangle.width + x - rectangle.x] = 1;
+                    }
+                }
+            }
+        }
+        return buffer;
+    }
+
+    private static Product createMerisProduct(String productType, float minSunZenith, float maxSunZenith) {
+        final Product product = new Product("source", productType, 65, 33);
+        final float[] sunZenith = new float[5 * 3];
+        Arrays.fill(sunZenith, minSunZenith);
+        sunZenith[7] = maxSunZenith;
+        product.addTiePointGrid(new TiePointGrid("sun_zenith", 5, 3, 0.0f, 0.0f, 16.0f, 16.0f, sunZenith));
+        return product;
+    }
+}
@@ -0,0 +1,49 @@
+package org.esa.beam.globveg;
+
+import org.esa.beam.framework.datamodel.FlagCoding;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class QualityFlagsTest {
+
+    @Test
+    public void testPack() {
+        // l1_flags.INVALID = 0x80, cloud_classif_flags F_WATER ... F_CLEAR_LAND = 0x01 ... 0x20
+        final QualityFlags qualityFlags = new QualityFlags(0x80, 0x01, 0x02, 0x04, 0x08, 0x20);
+        final int[] l1Flags = {0x00, 0x80, 0x00, 0x00};
+        final int[] cloudFlags = {0x20, 0x20, 0x02 | 0x04, 0x01};
+        final int[] cloudFree = {1, 0, 0, 0};
+        final int[] validFapar = {1, 1, 1, 1};
+        final int[] validLai = {0, 1, 1, 1};
+        final int[] quality = new int[4];
+
+        qualityFlags.pack(l1Flags, cloudFlags, cloudFree, validFapar, validLai, quality);
+
+        assertArrayEquals(new int[]{
+                QualityFlags.CLEAR_LAND | QualityFlags.CLOUD_FREE | QualityFlags.VALID_FAPAR,
+                QualityFlags.L1_INVALID | QualityFlags.CLEAR_LAND,
+                QualityFlags.CLOUD | QualityFlags.CLOUD_BUFFER,
+                QualityFlags.WATER
+        }, quality);
+    }
+
+    @Test
+    public void testPackWithoutValidMasks() {
+        final QualityFlags qualityFlags = new QualityFlags(0x80, 0x01, 0x02, 0x04, 0x08, 0x20);
+        final int[] quality = new int[1];
+        qualityFlags.pack(new int[]{0}, new int[]{0x20}, new int[]{1}, null, null, quality);
+        assertEquals(QualityFlags.CLEAR_LAND | QualityFlags.CLOUD_FREE, quality[0]);
+    }
+
+    @Test
+    public void testFlagCoding() {
+        final FlagCoding flagCoding = QualityFlags.createFlagCoding();
+        assertEquals(QualityFlags.BAND_NAME, flagCoding.getName());
+        assertEquals(9, flagCoding.getNumAttributes());
+        assertEquals(QualityFlags.VALID_FAPAR, flagCoding.getFlagMask("VALID_FAPAR"));
+        assertEquals(QualityFlags.VALID_LAI, flagCoding.getFlagMask("VALID_LAI"));
+        assertEquals(QualityFlags.CLEAR_LAND, flagCoding.getFlagMask("CLEAR_LAND"));
+    }
+}
@@ -0,0 +1,111 @@
+package org.esa.beam.globveg;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class StackManifestTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("globveg-manifest", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testReadMissingFile() throws IOException {
+        final StackManifest manifest = StackManifest.read(new File(dir, "missing.properties"));
+        assertTrue(manifest.getSourceFileNames().isEmpty());
+        assertFalse(manifest.isUpToDate(createFile("L3_2010-06-16_2010-06-25.nc", 10)));
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        final File sourceFile = createFile("L3_2010-06-16_2010-06-25.nc", 10);
+        final StackManifest manifest = new StackManifest();
+        manifest.put(sourceFile, Arrays.asList("fapar_jun16", "ndvi_kg_max_jun16"));
+        final File manifestFile = new File(dir, "manifest.properties");
+        manifest.write(manifestFile);
+
+        final StackManifest readManifest = StackManifest.read(manifestFile);
+        assertEquals(Collections.singletonList("L3_2010-06-16_2010-06-25.nc"), readManifest.getSourceFileNames());
+        assertEquals(Arrays.asList("fapar_jun16", "ndvi_kg_max_jun16"), readManifest.getBands(sourceFile));
+        assertTrue(readManifest.isUpToDate(sourceFile));
+    }
+
+    @Test
+    public void testChangedFileIsNotUpToDate() throws IOException {
+        final File sourceFile = createFile("L3_2010-06-16_2010-06-25.nc", 10);
+        final StackManifest manifest = new StackManifest();
+        manifest.put(sourceFile, Collections.singletonList("fapar_jun16"));
+
+        createFile("L3_2010-06-16_2010-06-25.nc", 20);
+        assertFalse(manifest.isUpToDate(sourceFile));
+        assertTrue(manifest.getBands(new File(dir, "L3_2010-07-01_2010-07-10.nc")).isEmpty());
+    }
+
+    @Test
+    public void testChangedScaleFactorBetweenRuns() throws IOException {
+        final File sourceFile = createFile("L3_2010-06-16_2010-06-25.nc", 10);
+        final File manifestFile = new File(dir, "manifest.properties");
+
+        // first run
+        final StackManifest manifest = new StackManifest();
+        manifest.setConfiguration(YearlyStackOp.createStackConfiguration(1.0f, "MEAN", false, "BANDS"));
+        manifest.put(sourceFile, Collections.singletonList("fapar_jun16"));
+        manifest.write(manifestFile);
+
+        // second run, same configuration: the bands of the unchanged file can be reused
+        final StackManifest readManifest = StackManifest.read(manifestFile);
+        assertTrue(readManifest.hasConfiguration(
+                YearlyStackOp.createStackConfiguration(1.0f, "MEAN", false, "BANDS")));
+        assertTrue(readManifest.isUpToDate(sourceFile));
+
+        // second run, another scale factor: the stacks have to be rebuilt
+        assertFalse(readManifest.hasConfiguration(
+                YearlyStackOp.createStackConfiguration(0.5f, "MEAN", false, "BANDS")));
+        assertFalse(readManifest.hasConfiguration(
+                YearlyStackOp.createStackConfiguration(1.0f, "MEAN", true, "BANDS")));
+        assertEquals(Collections.singletonList("L3_2010-06-16_2010-06-25.nc"), readManifest.getSourceFileNames());
+    }
+
+    @Test
+    public void testManifestWithoutConfiguration() {
+        // written before the configuration was recorded
+        assertFalse(new StackManifest().hasConfiguration(
+                YearlyStackOp.createStackConfiguration(1.0f, "MEAN", false, "BANDS")));
+    }
+
+    private File createFile(String name, int size) throws IOException {
+        final File file = new File(dir, name);
+        final FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(new byte[size]);
+        } finally {
+            outputStream.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,90 @@
+package org.esa.beam.globveg;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class StackOverviewsTest {
+
+    private File dir;
+    private File stackFile;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("globveg-overviews", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        stackFile = new File(dir, "L3_2010_site_FAPAR.tif");
+        assertTrue(stackFile.createNewFile());
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testOverviewFile() {
+        assertEquals(new File(dir, "L3_2010_site_FAPAR_ovr4.tif"), StackOverviews.getOverviewFile(stackFile, 4));
+    }
+
+    @Test
+    public void testSelectLevel() throws IOException {
+        assertArrayEquals(new int[]{1}, StackOverviews.getAvailableFactors(stackFile));
+        assertEquals(stackFile, StackOverviews.selectLevel(stackFile, 0.1));
+
+        assertTrue(StackOverviews.getOverviewFile(stackFile, 2).createNewFile());
+        assertTrue(StackOverviews.getOverviewFile(stackFile, 4).createNewFile());
+        // a gap ends the levels
+        assertTrue(StackOverviews.getOverviewFile(stackFile, 16).createNewFile());
+        assertArrayEquals(new int[]{1, 2, 4}, StackOverviews.getAvailableFactors(stackFile));
+
+        assertEquals(stackFile, StackOverviews.selectLevel(stackFile, 1.0));
+        assertEquals(stackFile, StackOverviews.selectLevel(stackFile, 0.6));
+        assertEquals(StackOverviews.getOverviewFile(stackFile, 2), StackOverviews.selectLevel(stackFile, 0.5));
+        assertEquals(StackOverviews.getOverviewFile(stackFile, 2), StackOverviews.selectLevel(stackFile, 0.3));
+        assertEquals(StackOverviews.getOverviewFile(stackFile, 4), StackOverviews.selectLevel(stackFile, 0.25));
+        assertEquals(StackOverviews.getOverviewFile(stackFile, 4), StackOverviews.selectLevel(stackFile, 0.01));
+    }
+
+    @Test
+    public void testLevelCount() {
+        assertEquals(3, StackOverviews.getLevelCount(1000, 1000, 3));
+        // a 5 x 12 stack has levels of 2 x 6 and 1 x 3 pixels only
+        assertEquals(2, StackOverviews.getLevelCount(5, 12, 8));
+        assertEquals(0, StackOverviews.getLevelCount(1, 12, 8));
+        assertEquals(0, StackOverviews.getLevelCount(1000, 1000, 0));
+    }
+
+    @Test
+    public void testDeleteSurplusLevels() throws IOException {
+        for (int factor = 2; factor <= 16; factor *= 2) {
+            assertTrue(StackOverviews.getOverviewFile(stackFile, factor).createNewFile());
+        }
+        assertArrayEquals(new int[]{1, 2, 4, 8, 16}, StackOverviews.getAvailableFactors(stackFile));
+
+        StackOverviews.deleteSurplusLevels(stackFile, 2);
+        assertArrayEquals(new int[]{1, 2, 4}, StackOverviews.getAvailableFactors(stackFile));
+        assertFalse(StackOverviews.getOverviewFile(stackFile, 16).exists());
+        assertTrue(stackFile.isFile());
+
+        StackOverviews.deleteSurplusLevels(stackFile, 0);
+        assertArrayEquals(new int[]{1}, StackOverviews.getAvailableFactors(stackFile));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidScale() {
+        StackOverviews.selectLevel(stackFile, 0.0);
+    }
+}
@@ -0,0 +1,100 @@
+package org.esa.beam.globveg;
+
+import com.vividsolutions.jts.io.WKTReader;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.CrsGeoCoding;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StackTimeSeriesExtractorTest {
+
+    private static final float NO_DATA = -1.0f;
+
+    private Product stack;
+
+    @Before
+    public void setUp() throws Exception {
+        // 10 x 10 pixels of 1 degree, upper left corner at lon 0, lat 10
+        stack = new Product("L3_2010_site_FAPAR", "DIVERSITY_GLOBVEG_FAPAR", 10, 10);
+        stack.setGeoCoding(new CrsGeoCoding(DefaultGeographicCRS.WGS84, 10, 10, 0.0, 10.0, 1.0, 1.0, 0.0, 0.0));
+        addBand("fapar_jan01", 0.0f);
+        addBand("fapar_jan16", 100.0f);
+        addBand("fapar_mjd_jan01", 3653.0f);
+        addBand("fapar_mjd_jan16", 3668.0f);
+        addBand("fapar_count_jan01", 2.0f);
+        addBand("fapar_count_jan16", 3.0f);
+    }
+
+    // value = offset + 10 * y + x, no-data at (0, 0)
+    private void addBand(String name, float offset) {
+        final float[] data = new float[100];
+        for (int y = 0; y < 10; y++) {
+            for (int x = 0; x < 10; x++) {
+                data[y * 10 + x] = offset + 10 * y + x;
+            }
+        }
+        data[0] = NO_DATA;
+        final Band band = stack.addBand(name, ProductData.TYPE_FLOAT32);
+        band.setNoDataValue(NO_DATA);
+        band.setNoDataValueUsed(true);
+        band.setRasterData(ProductData.createInstance(data));
+    }
+
+    @Test
+    public void testPoints() throws Exception {
+        final StackTimeSeriesExtractor extractor = new StackTimeSeriesExtractor(stack, "fapar", 4);
+        assertArrayEquals(new String[]{"jan01", "jan16"}, extractor.getPeriods());
+
+        final List<StackTimeSeriesExtractor.TimeSeries> timeSeriesList = extractor.extract(Arrays.asList(
+                StackTimeSeriesExtractor.Site.createPoint("a", 7.5, 3.5),     // pixel (3, 2)
+                StackTimeSeriesExtractor.Site.createPoint("b", 0.5, 9.5),     // pixel (9, 9)
+                StackTimeSeriesExtractor.Site.createPoint("c", 7.2, 3.9),     // pixel (3, 2), same block as 'a'
+                StackTimeSeriesExtractor.Site.createPoint("outside", 20.0, 3.5),
+                StackTimeSeriesExtractor.Site.createPoint("noData", 9.5, 0.5)));
+        assertEquals(5, timeSeriesList.size());
+
+        final StackTimeSeriesExtractor.TimeSeries a = timeSeriesList.get(0);
+        assertEquals("a", a.siteName);
+        assertEquals(23.0f, a.values[0], 1e-6f);
+        assertEquals(123.0f, a.values[1], 1e-6f);
+        assertEquals(3653.0f + 23, a.mjds[0], 1e-3f);
+        assertEquals(25, a.counts[0]);
+        assertEquals(1, a.pixelCounts[0]);
+
+        assertEquals(99.0f, timeSeriesList.get(1).values[0], 1e-6f);
+        assertEquals(23.0f, timeSeriesList.get(2).values[0], 1e-6f);
+
+        final StackTimeSeriesExtractor.TimeSeries outside = timeSeriesList.get(3);
+        assertTrue(Float.isNaN(outside.values[0]));
+        assertEquals(-1, outside.counts[0]);
+        assertEquals(0, outside.pixelCounts[0]);
+
+        final StackTimeSeriesExtractor.TimeSeries noData = timeSeriesList.get(4);
+        assertTrue(Float.isNaN(noData.values[0]));
+        assertTrue(Float.isNaN(noData.mjds[0]));
+        assertEquals(0, noData.pixelCounts[0]);
+    }
+
+    @Test
+    public void testPolygon() throws Exception {
+        final StackTimeSeriesExtractor extractor = new StackTimeSeriesExtractor(stack, "fapar", 256);
+        // pixel centres (1, 1), (2, 1), (1, 2), (2, 2)
+        final StackTimeSeriesExtractor.Site site = new StackTimeSeriesExtractor.Site(
+                "polygon", new WKTReader().read("POLYGON((1 9, 3 9, 3 7, 1 7, 1 9))"));
+
+        final StackTimeSeriesExtractor.TimeSeries timeSeries = extractor.extract(Arrays.asList(site)).get(0);
+
+        assertEquals(4, timeSeries.pixelCounts[0]);
+        assertEquals((11 + 12 + 21 + 22) / 4.0f, timeSeries.values[0], 1e-5f);
+        assertEquals(100 + (11 + 12 + 21 + 22) / 4.0f, timeSeries.values[1], 1e-5f);
+        assertEquals(4 * 2 + 11 + 12 + 21 + 22, timeSeries.counts[0]);
+    }
+}
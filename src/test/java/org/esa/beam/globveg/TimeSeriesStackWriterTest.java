@@ -0,0 +1,90 @@
+package org.esa.beam.globveg;
+
+import org.esa.beam.framework.datamodel.ProductData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class TimeSeriesStackWriterTest {
+
+    private static final int WIDTH = 5;
+    private static final int HEIGHT = 7;
+    private static final int NUM_PERIODS = 3;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("globveg-timeseries", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testPeriodSpill() throws IOException {
+        // a float variable, an '_mjd' variable and a UINT8 '_count' variable
+        final int[] dataTypes = {ProductData.TYPE_FLOAT32, ProductData.TYPE_FLOAT64, ProductData.TYPE_UINT8};
+        final TimeSeriesStackWriter.PeriodSpill spill =
+                new TimeSeriesStackWriter.PeriodSpill(dir, dataTypes, NUM_PERIODS, WIDTH, HEIGHT);
+        try {
+            // written file by file in stripes of 3 rows, periods and variables in no particular order
+            for (int t = NUM_PERIODS - 1; t >= 0; t--) {
+                for (int v = 0; v < dataTypes.length; v++) {
+                    for (int y = 0; y < HEIGHT; y += 3) {
+                        spill.write(v, t, y, createStripe(dataTypes[v], v, t, y, Math.min(3, HEIGHT - y)));
+                    }
+                }
+            }
+            // read back in stripes of 2 rows
+            for (int y = 0; y < HEIGHT; y += 2) {
+                final int rows = Math.min(2, HEIGHT - y);
+                for (int v = 0; v < dataTypes.length; v++) {
+                    for (int t = 0; t < NUM_PERIODS; t++) {
+                        final ProductData stripe = spill.read(v, t, y, rows);
+                        final ProductData expected = createStripe(dataTypes[v], v, t, y, rows);
+                        assertEquals(expected.getNumElems(), stripe.getNumElems());
+                        for (int i = 0; i < expected.getNumElems(); i++) {
+                            assertEquals(expected.getElemDoubleAt(i), stripe.getElemDoubleAt(i), 0.0);
+                        }
+                    }
+                }
+            }
+        } finally {
+            spill.dispose();
+        }
+        final File[] files = dir.listFiles();
+        assertNotNull(files);
+        assertEquals(0, files.length);
+    }
+
+    private static ProductData createStripe(int dataType, int v, int t, int y, int rows) {
+        final ProductData stripe = ProductData.createInstance(dataType, rows * WIDTH);
+        for (int j = 0; j < rows; j++) {
+            for (int i = 0; i < WIDTH; i++) {
+                final int index = j * WIDTH + i;
+                if (dataType == ProductData.TYPE_UINT8) {
+                    stripe.setElemIntAt(index, 200 + t * 10 + v + (y + j + i) % 10);
+                } else {
+                    stripe.setElemDoubleAt(index, 5000.25 + 1000 * v + 100 * t + (y + j) * WIDTH + i + 1.0e-7);
+                }
+            }
+        }
+        return stripe;
+    }
+}
@@ -0,0 +1,105 @@
+package org.esa.beam.globveg.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BlockReducerTest {
+
+    private static final float NO_DATA = -999.0f;
+
+    // 4 x 4 source, no-data in the upper left 2 x 2 block except one pixel
+    private static final float[] SOURCE = {
+            NO_DATA, NO_DATA, 1.0f, 2.0f,
+            NO_DATA, 4.0f, 3.0f, 4.0f,
+            5.0f, 6.0f, 9.0f, NO_DATA,
+            7.0f, 8.0f, NO_DATA, NO_DATA
+    };
+
+    @Test
+    public void testMethods() {
+        assertReduced(BlockReducer.Method.MEAN, 4.0f, 2.5f, 6.5f, 9.0f);
+        assertReduced(BlockReducer.Method.MAX, 4.0f, 4.0f, 8.0f, 9.0f);
+        assertReduced(BlockReducer.Method.MEDIAN, 4.0f, 2.5f, 6.5f, 9.0f);
+        assertReduced(BlockReducer.Method.COUNT, 1.0f, 4.0f, 4.0f, 1.0f);
+    }
+
+    @Test
+    public void testBlockWithoutValidPixels() {
+        final float[] source = {NO_DATA, Float.NaN, NO_DATA, NO_DATA};
+        final float[] target = new float[1];
+
+        new BlockReducer(BlockReducer.Method.MEAN, 0.5f, true, NO_DATA).reduce(source, 0, 0, 2, 2, target, 0, 0, 1, 1);
+        assertEquals(NO_DATA, target[0], 0.0f);
+
+        new BlockReducer(BlockReducer.Method.MAX, 0.5f, false, 0.0).reduce(new float[]{Float.NaN, Float.NaN},
+                                                                          0, 0, 2, 1, target, 0, 0, 1, 1);
+        assertTrue(Float.isNaN(target[0]));
+
+        new BlockReducer(BlockReducer.Method.MEDIAN, 0.5f, true, NO_DATA).reduce(new float[]{NO_DATA, Float.NaN},
+                                                                               0, 0, 2, 1, target, 0, 0, 1, 1);
+        assertEquals(NO_DATA, target[0], 0.0f);
+
+        new BlockReducer(BlockReducer.Method.COUNT, 0.5f, true, NO_DATA).reduce(source, 0, 0, 2, 2, target, 0, 0, 1, 1);
+        assertEquals(0.0f, target[0], 0.0f);
+    }
+
+    @Test
+    public void testNonIntegerBlockSize() {
+        final BlockReducer reducer = new BlockReducer(BlockReducer.Method.COUNT, 1.0f / 3.0f, false, 0.0);
+        assertEquals(0, reducer.getSourceMin(0));
+        assertEquals(3, reducer.getSourceMax(0));
+        assertEquals(9, reducer.getSourceMin(3));
+
+        // 10 source pixels to 4 target pixels of 2.5 source pixels
+        final BlockReducer reducer04 = new BlockReducer(BlockReducer.Method.COUNT, 0.4f, false, 0.0);
+        final float[] target = new float[4];
+        reducer04.reduce(new float[10], 0, 0, 10, 1, target, 0, 0, 4, 1);
+        assertEquals("[2.0, 3.0, 2.0, 3.0]", Arrays.toString(target));
+    }
+
+    @Test
+    public void testSubRegionMatchesWholeImage() {
+        final Random random = new Random(3);
+        final int sourceWidth = 37;
+        final int sourceHeight = 23;
+        final float[] source = new float[sourceWidth * sourceHeight];
+        for (int i = 0; i < source.length; i++) {
+            source[i] = random.nextInt(5) == 0 ? NO_DATA : random.nextFloat();
+        }
+        final BlockReducer reducer = new BlockReducer(BlockReducer.Method.MEDIAN, 0.25f, true, NO_DATA);
+        final float[] whole = new float[9 * 5];
+        reducer.reduce(source, 0, 0, sourceWidth, sourceHeight, whole, 0, 0, 9, 5);
+
+        // target region (2, 1, 3, 2) from source region (8, 4, 12, 8)
+        final float[] region = new float[12 * 8];
+        for (int y = 0; y < 8; y++) {
+            System.arraycopy(source, (4 + y) * sourceWidth + 8, region, y * 12, 12);
+        }
+        final float[] part = new float[3 * 2];
+        reducer.reduce(region, 8, 4, 12, 8, part, 2, 1, 3, 2);
+        for (int y = 0; y < 2; y++) {
+            for (int x = 0; x < 3; x++) {
+                assertEquals(whole[(1 + y) * 9 + 2 + x], part[y * 3 + x], 0.0f);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUpsamplingIsRejected() {
+        new BlockReducer(BlockReducer.Method.MEAN, 2.0f, false, 0.0);
+    }
+
+    private static void assertReduced(BlockReducer.Method method, float... expected) {
+        final float[] target = new float[4];
+        new BlockReducer(method, 0.5f, true, NO_DATA).reduce(SOURCE, 0, 0, 4, 4, target, 0, 0, 2, 2);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(method + " at " + i, expected[i], target[i], 1e-6f);
+        }
+        assertTrue(target.length == expected.length);
+    }
+}
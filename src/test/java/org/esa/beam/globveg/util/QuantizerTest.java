@@ -0,0 +1,74 @@
+package org.esa.beam.globveg.util;
+
+import org.esa.beam.framework.datamodel.ProductData;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QuantizerTest {
+
+    @Test
+    public void testInt16() {
+        final Quantizer quantizer = Quantizer.create(ProductData.TYPE_INT16, -1.0, 1.0);
+        assertEquals(2.0 / 65534, quantizer.getScaleFactor(), 1e-15);
+        assertEquals(0.0, quantizer.getAddOffset(), 1e-12);
+        assertEquals(-32767, quantizer.quantize(-1.0));
+        assertEquals(32767, quantizer.quantize(1.0));
+        assertEquals(0, quantizer.quantize(0.0));
+        assertEquals(Short.MIN_VALUE, quantizer.quantize(Double.NaN));
+        // clamped, never the no-data value
+        assertEquals(-32767, quantizer.quantize(-5.0));
+        assertEquals(32767, quantizer.quantize(5.0));
+        assertEquals(0.5, quantizer.dequantize(quantizer.quantize(0.5)), quantizer.getScaleFactor() / 2);
+        assertTrue(Double.isNaN(quantizer.dequantize(Short.MIN_VALUE)));
+    }
+
+    @Test
+    public void testUInt16() {
+        final Quantizer quantizer = Quantizer.create(ProductData.TYPE_UINT16, 4000.0, 4000.1);
+        assertEquals(0, quantizer.quantize(4000.0));
+        assertEquals(65534, quantizer.quantize(4000.1));
+        assertEquals(65535, quantizer.getNoDataRaw());
+        assertEquals(65535, quantizer.quantize(Float.NaN));
+        final double mjd = 4000.0123456;
+        assertEquals(mjd, quantizer.dequantize(quantizer.quantize(mjd)), 0.1 / 65534);
+    }
+
+    @Test
+    public void testFixedScaling() {
+        final Quantizer quantizer = new Quantizer(ProductData.TYPE_INT16, 1.0e-4, 0.0);
+        assertEquals(3333, quantizer.quantize(0.33333f));
+        assertEquals(-5000, quantizer.quantize(-0.5f));
+    }
+
+    @Test
+    public void testValidMin() {
+        // FAPAR, whose negative values are error codes
+        final Quantizer quantizer = Quantizer.create(ProductData.TYPE_INT16, 0.0, 1.0).withValidMin(0.0);
+        assertEquals(Short.MIN_VALUE, quantizer.quantize(-1.0));
+        assertEquals(Short.MIN_VALUE, quantizer.quantize(-1.0e-6));
+        assertTrue(Double.isNaN(quantizer.dequantize(quantizer.quantize(-0.5))));
+        assertEquals(-32767, quantizer.quantize(0.0));
+        assertEquals(0.0, quantizer.dequantize(quantizer.quantize(0.0)), 1e-12);
+        assertEquals(32767, quantizer.quantize(5.0));
+        assertEquals(Short.MIN_VALUE, quantizer.quantize(Double.NaN));
+    }
+
+    @Test
+    public void testTruncation() {
+        // the former integer NDVI output, (int) (ndvi * 10000.0f)
+        final Quantizer quantizer = new Quantizer(ProductData.TYPE_INT16, 1.0e-4, 0.0).withTruncation();
+        final float[] values = {0.33336f, 0.7f, -0.33336f, -0.7f, 0.0f, 1.0f, -1.0f, 0.12345678f, 0.99999f};
+        for (float value : values) {
+            assertEquals(String.valueOf(value), (int) (value * 10000.0f), quantizer.quantize(value));
+        }
+        assertEquals(Short.MIN_VALUE, quantizer.quantize(Double.NaN));
+        assertEquals(Short.MAX_VALUE, quantizer.quantize(5.0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedType() {
+        new Quantizer(ProductData.TYPE_FLOAT32, 1.0, 0.0);
+    }
+}
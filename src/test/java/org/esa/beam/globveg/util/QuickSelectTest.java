@@ -0,0 +1,72 @@
+package org.esa.beam.globveg.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class QuickSelectTest {
+
+    @Test
+    public void testSelectMatchesSorting() {
+        Random random = new Random(7);
+        for (int n = 1; n < 60; n++) {
+            float[] values = new float[n];
+            for (int i = 0; i < n; i++) {
+                // few distinct values to exercise duplicates
+                values[i] = random.nextInt(10) * 0.1f;
+            }
+            float[] sorted = values.clone();
+            Arrays.sort(sorted);
+            for (int k = 0; k < n; k++) {
+                float[] work = values.clone();
+                assertEquals(sorted[k], QuickSelect.select(work, null, 0, n, k), 0.0f);
+                for (int i = 0; i < k; i++) {
+                    assertEquals(true, work[i] <= work[k]);
+                }
+                for (int i = k + 1; i < n; i++) {
+                    assertEquals(true, work[i] >= work[k]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCompanionIsPermutedAlong() {
+        float[] values = {0.3f, 0.1f, 0.5f, 0.2f, 0.4f};
+        float[] times = {3f, 1f, 5f, 2f, 4f};
+        QuickSelect.select(values, times, 0, values.length, 2);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i] * 10f, times[i], 1e-5f);
+        }
+    }
+
+    @Test
+    public void testMedian() {
+        assertEquals(0.3f, QuickSelect.median(new float[]{0.5f, 0.1f, 0.3f}, null, 0, 3), 0.0f);
+        assertEquals(0.25f, QuickSelect.median(new float[]{0.4f, 0.1f, 0.3f, 0.2f}, null, 0, 4), 1e-6f);
+        assertEquals(0.7f, QuickSelect.median(new float[]{0.7f}, null, 0, 1), 0.0f);
+    }
+
+    @Test(timeout = 5000)
+    public void testEqualValuesTakeLinearTime() {
+        // quadratic with a two-way partition: every pass would only split off the pivot
+        final int n = 200000;
+        final float[] values = new float[n];
+        Arrays.fill(values, 0.0f);
+        assertEquals(0.0f, QuickSelect.median(values, null, 0, n), 0.0f);
+
+        // mostly equal, as the absolute deviations of quantized values from their median
+        final Random random = new Random(11);
+        for (int i = 0; i < n; i++) {
+            values[i] = random.nextInt(100) == 0 ? random.nextInt(5) * 0.01f : 0.02f;
+        }
+        final float[] sorted = values.clone();
+        Arrays.sort(sorted);
+        for (int k : new int[]{0, n / 100, n / 2, n - 1}) {
+            assertEquals(sorted[k], QuickSelect.select(values.clone(), null, 0, n, k), 0.0f);
+        }
+    }
+}